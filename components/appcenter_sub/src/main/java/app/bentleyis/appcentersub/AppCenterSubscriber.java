@@ -58,7 +58,7 @@ public class AppCenterSubscriber implements Subscriber {
 
     private void create() {
         AppCenter.start(m_application, m_key, Analytics.class);
-        MessageBroker.getInstance().subscribe(m_topic, this);
+        MessageBroker.getInstance().subscribe(m_topic, this, Metric.class);
     }
 
     @Override
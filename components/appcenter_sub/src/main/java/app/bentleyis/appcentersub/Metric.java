@@ -27,9 +27,11 @@ import android.support.annotation.Nullable;
 
 import com.microsoft.appcenter.Flags;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import app.bentleyis.messagebroker.BinaryCodec;
 import app.bentleyis.messagebroker.Message;
 
 /**
@@ -38,6 +40,29 @@ import app.bentleyis.messagebroker.Message;
  * The identifier is used as the event name.
  */
 public class Metric extends Message {
+    /**
+     * Writes the properties and flags for a BinaryCodec - register it with
+     * codec.register(tag, Metric.class, Metric.CODEC)
+     */
+    public static final BinaryCodec.TypeCodec<Metric> CODEC = new BinaryCodec.TypeCodec<Metric>() {
+        @Override
+        public Metric create(String id) {
+            return new Metric(id);
+        }
+
+        @Override
+        public void encode(Metric message, ByteBuffer buffer, BinaryCodec codec) {
+            codec.writeProperties(buffer, message.m_properties);
+            BinaryCodec.writeVarLong(buffer, message.m_flags);
+        }
+
+        @Override
+        public void decode(Metric message, ByteBuffer buffer, BinaryCodec codec) {
+            codec.readProperties(buffer, message.m_properties);
+            message.m_flags = (int) BinaryCodec.readVarLong(buffer);
+        }
+    };
+
     private LinkedHashMap<String,String> m_properties = new LinkedHashMap<>();
     private int m_flags = Flags.NORMAL;
 
@@ -50,6 +75,14 @@ public class Metric extends Message {
         setType("application/"+Metric.class.getSimpleName());
     }
 
+    @Override
+    protected synchronized void reset() {
+        super.reset();
+        setType("application/"+Metric.class.getSimpleName());
+        m_properties.clear();
+        m_flags = Flags.NORMAL;
+    }
+
     /**
      * Flags correspond to the Flags types in App Center SDK - Critical and Normal
      * @param flags
@@ -71,6 +104,7 @@ public class Metric extends Message {
         m_properties.put(name,value);
     }
 
+    @Override
     public synchronized @Nullable String getProperty(String name) {
         return m_properties.get(name);
     }
@@ -25,11 +25,13 @@ package app.bentleyis.appinsightssub;
 import com.microsoft.applicationinsights.TelemetryClient;
 import com.microsoft.applicationinsights.TelemetryConfiguration;
 
+import java.util.List;
+
+import app.bentleyis.messagebroker.BatchSubscriber;
 import app.bentleyis.messagebroker.Message;
 import app.bentleyis.messagebroker.MessageBroker;
-import app.bentleyis.messagebroker.Subscriber;
 
-public class AppInsightsSubscriber implements Subscriber {
+public class AppInsightsSubscriber implements BatchSubscriber {
 
     private final String m_instrumentationKey;
     private final String m_topic;
@@ -58,22 +60,41 @@ public class AppInsightsSubscriber implements Subscriber {
         m_configuration.setTrackingIsDisabled(false);
         // can set role name here for more filtering options in app insights
         m_configuration.setRoleName(m_roleName);
-        MessageBroker.getInstance().subscribe(m_topic,this);
+        MessageBroker.getInstance().subscribe(m_topic, this, Metric.class);
     }
 
     @Override
     public void receive(Message message) {
-        if(!(message instanceof Metric)) {
-            return;
+        track(message);
+
+        if(m_flushOnReceive) {
+            m_client.flush();
         }
 
-        Metric metric = (Metric)message;
-        m_client.trackEvent(metric.getId(),metric.getProperties(),metric.getMetrics());
+    }
+
+    /**
+     * Track a batch of metrics - with flush on receive, flushed once per batch rather than per metric
+     * @param messages
+     */
+    @Override
+    public void receiveBatch(List<Message> messages) {
+        for(Message message: messages) {
+            track(message);
+        }
 
         if(m_flushOnReceive) {
             m_client.flush();
         }
+    }
+
+    private void track(Message message) {
+        if(!(message instanceof Metric)) {
+            return;
+        }
 
+        Metric metric = (Metric)message;
+        m_client.trackEvent(metric.getId(),metric.getProperties(),metric.getMetrics());
     }
 
     public void setFlushOnReceive(boolean state) {
@@ -22,12 +22,48 @@
 
 package app.bentleyis.appinsightssub;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import app.bentleyis.messagebroker.BinaryCodec;
 import app.bentleyis.messagebroker.Message;
 
 public class Metric extends Message {
+    /**
+     * Writes the properties and metrics for a BinaryCodec - register it with
+     * codec.register(tag, Metric.class, Metric.CODEC)
+     */
+    public static final BinaryCodec.TypeCodec<Metric> CODEC = new BinaryCodec.TypeCodec<Metric>() {
+        @Override
+        public Metric create(String id) {
+            return new Metric(id);
+        }
+
+        @Override
+        public void encode(Metric message, ByteBuffer buffer, BinaryCodec codec) {
+            codec.writeProperties(buffer, message.m_properties);
+            BinaryCodec.writeVarLong(buffer, message.m_metrics.size());
+            for(Map.Entry<String,Double> metric: message.m_metrics.entrySet()) {
+                codec.writeString(buffer, metric.getKey());
+                // NaN stands for null
+                buffer.putDouble(metric.getValue() == null ? Double.NaN : metric.getValue());
+            }
+        }
+
+        @Override
+        public void decode(Metric message, ByteBuffer buffer, BinaryCodec codec) {
+            // the encoded properties include the defaults they were created with
+            message.m_properties.clear();
+            codec.readProperties(buffer, message.m_properties);
+            for(long count = BinaryCodec.readVarLong(buffer); count > 0; count--) {
+                String name = codec.readString(buffer);
+                double value = buffer.getDouble();
+                message.m_metrics.put(name, Double.isNaN(value) ? null : value);
+            }
+        }
+    };
+
     static LinkedHashMap<String,String> s_defaultProperties = new LinkedHashMap<>();
 
     LinkedHashMap<String,String> m_properties = new LinkedHashMap<>();
@@ -42,10 +78,23 @@ public class Metric extends Message {
         s_defaultProperties.putAll(defaults);
     }
 
+    @Override
+    protected synchronized void reset() {
+        super.reset();
+        m_properties.clear();
+        m_properties.putAll(s_defaultProperties);
+        m_metrics.clear();
+    }
+
     public synchronized void setProperty(String name, String value) {
         m_properties.put(name, value);
     }
 
+    @Override
+    public synchronized String getProperty(String name) {
+        return m_properties.get(name);
+    }
+
     public Map<String,String> getProperties() {
         return m_properties;
     }
@@ -108,7 +108,7 @@ public class Agent implements IotHubEventCallback {
 
     /**
      * Specify a topic the Agent should relay messages to
-     * @param topic
+     * @param topic topic or wildcard filter, e.g. "sensors/#" relays every sensor topic
      */
     public synchronized void relayMessagesFrom(String topic) {
         if(m_relays.containsKey(topic)) {
@@ -116,7 +116,7 @@ public class Agent implements IotHubEventCallback {
         }
         MessageRelay relay = new MessageRelay(this);
         m_relays.put(topic, relay);
-        MessageBroker.getInstance().subscribe(topic,relay);
+        MessageBroker.getInstance().subscribe(topic, relay, IotMessage.class);
     }
 
     /**
@@ -22,9 +22,11 @@
 
 package app.bentleyis.azureiot;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
+import app.bentleyis.messagebroker.BinaryCodec;
 import app.bentleyis.messagebroker.Message;
 
 /**
@@ -32,6 +34,38 @@ import app.bentleyis.messagebroker.Message;
  * The id is set in the properties
  */
 public class IotMessage extends Message {
+    /**
+     * Writes the properties and payload for a BinaryCodec - register it with
+     * codec.register(tag, IotMessage.class, IotMessage.CODEC)
+     */
+    public static final BinaryCodec.TypeCodec<IotMessage> CODEC = new BinaryCodec.TypeCodec<IotMessage>() {
+        @Override
+        public IotMessage create(String id) {
+            return new IotMessage(id);
+        }
+
+        @Override
+        public void encode(IotMessage message, ByteBuffer buffer, BinaryCodec codec) {
+            codec.writeProperties(buffer, message.m_properties);
+            byte[] payload = message.m_payload;
+            // 0 for no payload, otherwise length + 1
+            BinaryCodec.writeVarLong(buffer, payload == null ? 0 : payload.length + 1L);
+            if(payload != null) {
+                buffer.put(payload);
+            }
+        }
+
+        @Override
+        public void decode(IotMessage message, ByteBuffer buffer, BinaryCodec codec) {
+            codec.readProperties(buffer, message.m_properties);
+            int length = (int) BinaryCodec.readVarLong(buffer);
+            if(length > 0) {
+                message.m_payload = new byte[length - 1];
+                buffer.get(message.m_payload);
+            }
+        }
+    };
+
     LinkedHashMap<String,String> m_properties = new LinkedHashMap<>();
     private byte[] m_payload;
 
@@ -40,10 +74,28 @@ public class IotMessage extends Message {
         m_properties.put("id",id);
     }
 
+    @Override
+    public synchronized void setId(String id) {
+        super.setId(id);
+        m_properties.put("id", id);
+    }
+
+    @Override
+    protected synchronized void reset() {
+        super.reset();
+        m_properties.clear();
+        m_payload = null;
+    }
+
     public synchronized void setProperty(String name, String value) {
         m_properties.put(name,value);
     }
 
+    @Override
+    public synchronized String getProperty(String name) {
+        return m_properties.get(name);
+    }
+
     public Map<String,String> getProperties() {
         return m_properties;
     }
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import app.bentleyis.messagebroker.benchmarks.BenchmarkMessage;
+
+/**
+ * Messages per second matched against 10k filtered subscriptions - equality on a property and a prefix on the
+ * id - through the FilterIndex, or by testing every filter as the Exchange did before it. In the broker's
+ * package to reach the package-private index.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FilterBenchmark {
+    static final int FILTERS = 10000;
+    static final int MESSAGES = 1000;
+
+    @Param({"index", "scan"})
+    String matching;
+
+    FilterIndex m_index;
+    Subscription[] m_subscriptions;
+    BenchmarkMessage[] m_messages;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        m_index = new FilterIndex(FILTERS);
+        m_subscriptions = new Subscription[FILTERS];
+        for(int i = 0; i < FILTERS; i++) {
+            MessageFilter filter = i % 2 == 0 ? new MessageFilter().propertyEquals("device", "device-" + i)
+                    : new MessageFilter().idStartsWith("sensor-" + i + "/");
+            m_subscriptions[i] = new Subscription(null, filter);
+            m_index.add(i, m_subscriptions[i]);
+        }
+        m_messages = new BenchmarkMessage[MESSAGES];
+        for(int i = 0; i < MESSAGES; i++) {
+            int target = (i * 7919) % FILTERS;
+            m_messages[i] = new BenchmarkMessage("sensor-" + target + "/reading", i);
+            m_messages[i].setType("text/plain");
+            m_messages[i].getProperties().put("device", "device-" + target);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int match() {
+        int matched = 0;
+        if("index".equals(matching)) {
+            for(BenchmarkMessage message: m_messages) {
+                matched += m_index.match(message, null);
+            }
+            return matched;
+        }
+        for(BenchmarkMessage message: m_messages) {
+            for(Subscription subscription: m_subscriptions) {
+                if(subscription.accepts(message)) {
+                    matched++;
+                }
+            }
+        }
+        return matched;
+    }
+}
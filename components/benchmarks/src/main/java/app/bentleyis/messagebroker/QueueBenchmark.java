@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import app.bentleyis.messagebroker.benchmarks.BenchmarkMessage;
+
+/**
+ * RingBufferQueue against the LinkedList + synchronized queue the Exchange used before it - messages per second
+ * offered by 1, 4 and 16 producers while one thread drains. Both are bounded to the default topic capacity.
+ * In the broker's package to reach the package-private queue.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueBenchmark {
+    @Param({"ring", "linked"})
+    String queue;
+
+    RingBufferQueue m_ring;
+    final LinkedList<Message> m_linked = new LinkedList<>();
+    Thread m_consumer;
+    volatile boolean m_running;
+
+    @State(Scope.Thread)
+    public static class Producer {
+        final BenchmarkMessage m_message = new BenchmarkMessage("queue", 0);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        m_ring = new RingBufferQueue(Exchange.DEFAULT_CAPACITY);
+        m_running = true;
+        m_consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(m_running) {
+                        if("ring".equals(queue)) {
+                            if(m_ring.poll() == null) {
+                                Thread.yield();
+                            }
+                        } else {
+                            synchronized (m_linked) {
+                                while(m_linked.isEmpty()) {
+                                    m_linked.wait();
+                                }
+                                m_linked.removeFirst();
+                                m_linked.notifyAll();
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // tear down
+                }
+            }
+        }, "QueueBenchmark consumer");
+        m_consumer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        m_running = false;
+        m_consumer.interrupt();
+        m_consumer.join();
+    }
+
+    void offer(Producer producer) throws InterruptedException {
+        if("ring".equals(queue)) {
+            while(!m_ring.offer(producer.m_message)) {
+                Thread.yield();
+            }
+            return;
+        }
+        synchronized (m_linked) {
+            while(m_linked.size() >= Exchange.DEFAULT_CAPACITY) {
+                m_linked.wait();
+            }
+            m_linked.add(producer.m_message);
+            m_linked.notifyAll();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void producers1(Producer producer) throws InterruptedException {
+        offer(producer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void producers4(Producer producer) throws InterruptedException {
+        offer(producer);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void producers16(Producer producer) throws InterruptedException {
+        offer(producer);
+    }
+}
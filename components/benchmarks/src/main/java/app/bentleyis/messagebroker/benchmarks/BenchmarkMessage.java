@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import app.bentleyis.messagebroker.BinaryCodec;
+import app.bentleyis.messagebroker.Message;
+
+/**
+ * A small message with a sequence number and a few properties, similar in size to the telemetry messages the
+ * broker carries
+ */
+public class BenchmarkMessage extends Message {
+    public static final BinaryCodec.TypeCodec<BenchmarkMessage> CODEC = new BinaryCodec.TypeCodec<BenchmarkMessage>() {
+        @Override
+        public BenchmarkMessage create(String id) {
+            return new BenchmarkMessage(id, 0);
+        }
+
+        @Override
+        public void encode(BenchmarkMessage message, ByteBuffer buffer, BinaryCodec codec) {
+            BinaryCodec.writeVarLong(buffer, message.m_sequence);
+            codec.writeProperties(buffer, message.m_properties);
+        }
+
+        @Override
+        public void decode(BenchmarkMessage message, ByteBuffer buffer, BinaryCodec codec) {
+            message.m_sequence = BinaryCodec.readVarLong(buffer);
+            codec.readProperties(buffer, message.m_properties);
+        }
+    };
+
+    long m_sequence;
+    final HashMap<String,String> m_properties = new HashMap<>();
+
+    public BenchmarkMessage(String id, long sequence) {
+        super(id);
+        m_sequence = sequence;
+    }
+
+    public long getSequence() {
+        return m_sequence;
+    }
+
+    public void setSequence(long sequence) {
+        m_sequence = sequence;
+    }
+
+    public Map<String,String> getProperties() {
+        return m_properties;
+    }
+
+    @Override
+    public String getProperty(String name) {
+        return m_properties.get(name);
+    }
+
+    /**
+     * @return a message with the properties the codec benchmarks encode
+     */
+    static BenchmarkMessage sample(long sequence) {
+        BenchmarkMessage message = new BenchmarkMessage("sensor-42", sequence);
+        message.setType("application/json");
+        message.setTimestamp(1588000000000L + sequence);
+        message.m_properties.put("room", "kitchen");
+        message.m_properties.put("unit", "celsius");
+        message.m_properties.put("value", "21.5");
+        return message;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import app.bentleyis.messagebroker.BinaryCodec;
+import app.bentleyis.messagebroker.MessageBridge;
+import app.bentleyis.messagebroker.MessageBroker;
+import app.bentleyis.messagebroker.SocketTransport;
+
+/**
+ * Messages per second carried between two brokers in one JVM, bridged over loopback. Each invocation
+ * publishes a batch on one broker and waits until the other broker's subscriber has it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BridgeBenchmark {
+    static final String TOPIC = "benchmark/bridge";
+    static final int BATCH = 256;
+
+    MessageBroker m_left;
+    MessageBroker m_right;
+    MessageBridge m_leftBridge;
+    MessageBridge m_rightBridge;
+    CountingSubscriber m_subscriber;
+    BenchmarkMessage m_message;
+    long m_published;
+
+    private static BinaryCodec codec() {
+        BinaryCodec codec = new BinaryCodec();
+        codec.register(1, BenchmarkMessage.class, BenchmarkMessage.CODEC);
+        return codec;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        m_left = MessageBroker.newInstance();
+        m_right = MessageBroker.newInstance();
+        m_subscriber = new CountingSubscriber();
+        m_right.subscribe(TOPIC, m_subscriber);
+        SocketTransport server = SocketTransport.server(0);
+        m_leftBridge = new MessageBridge(m_left, server, codec(), TOPIC);
+        m_rightBridge = new MessageBridge(m_right, SocketTransport.client(server.getLocalPort()), codec(), TOPIC);
+        m_leftBridge.start();
+        m_rightBridge.start();
+        m_message = BenchmarkMessage.sample(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_leftBridge.close();
+        m_rightBridge.close();
+        m_left.shutdown();
+        m_right.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publishAcross() {
+        for(int i = 0; i < BATCH; i++) {
+            m_left.publish(TOPIC, m_message);
+        }
+        m_published += BATCH;
+        m_subscriber.awaitReceived(m_published);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import app.bentleyis.messagebroker.BinaryCodec;
+import app.bentleyis.messagebroker.Message;
+
+/**
+ * BinaryCodec against Java serialization - the format the Journal and MessageBridge would otherwise need -
+ * for a message with three properties
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    BinaryCodec m_codec;
+    BenchmarkMessage m_message;
+    ByteBuffer m_buffer;
+    ByteBuffer m_encoded;
+    byte[] m_serialized;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        m_codec = new BinaryCodec();
+        m_codec.register(1, BenchmarkMessage.class, BenchmarkMessage.CODEC);
+        m_codec.addString("application/json");
+        m_codec.addString("room");
+        m_codec.addString("unit");
+        m_codec.addString("value");
+        m_message = BenchmarkMessage.sample(1);
+        m_buffer = ByteBuffer.allocate(1024);
+        m_encoded = ByteBuffer.allocate(1024);
+        m_codec.encode(m_message, m_encoded);
+        m_encoded.flip();
+        m_serialized = serialize();
+    }
+
+    @Benchmark
+    public ByteBuffer binaryEncode() {
+        m_buffer.clear();
+        m_codec.encode(m_message, m_buffer);
+        return m_buffer;
+    }
+
+    @Benchmark
+    public Message binaryDecode() {
+        m_encoded.rewind();
+        return m_codec.decode(m_encoded);
+    }
+
+    @Benchmark
+    public byte[] serializationEncode() throws IOException {
+        return serialize();
+    }
+
+    @Benchmark
+    public Object serializationDecode() throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(m_serialized));
+        try {
+            return in.readObject();
+        } finally {
+            in.close();
+        }
+    }
+
+    private byte[] serialize() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(m_message);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
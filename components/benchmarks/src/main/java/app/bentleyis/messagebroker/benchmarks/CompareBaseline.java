@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker.benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH JSON result files - a stored baseline and a new run - and lists each benchmark's change.
+ * Throughput should not drop, and times (including the sampled p50 and p99) should not rise, by more than a
+ * threshold percentage. Exits with status 1 if any did, so a build can fail on a regression.
+ * <p>
+ * Usage: CompareBaseline baseline.json results.json [threshold percent, default 10]
+ */
+public class CompareBaseline {
+    static final String[] PERCENTILES = {"50.0", "99.0"};
+
+    static class Score {
+        final String m_name;
+        final double m_score;
+        final String m_unit;
+        final boolean m_higherIsBetter;
+
+        Score(String name, double score, String unit, boolean higherIsBetter) {
+            m_name = name;
+            m_score = score;
+            m_unit = unit;
+            m_higherIsBetter = higherIsBetter;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("usage: CompareBaseline baseline.json results.json [threshold percent]");
+            System.exit(2);
+        }
+        File baselineFile = new File(args[0]);
+        if(!baselineFile.exists()) {
+            System.err.println("no baseline at " + baselineFile + " - run jmh then jmhBaseline to store one");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+        Map<String,Score> baseline = read(baselineFile);
+        Map<String,Score> results = read(new File(args[1]));
+        List<String> regressions = compare(baseline, results, threshold);
+        if(!regressions.isEmpty()) {
+            System.out.println();
+            System.out.println(regressions.size() + " regressed by more than " + threshold + "%:");
+            for(String name: regressions) {
+                System.out.println("  " + name);
+            }
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Print the change in each score found in both files
+     * @return names of the scores that got worse by more than the threshold percentage
+     */
+    static List<String> compare(Map<String,Score> baseline, Map<String,Score> results, double threshold) {
+        List<String> regressions = new ArrayList<>();
+        System.out.println(String.format("%-90s %14s %14s %8s", "Benchmark", "Baseline", "Current", "Change"));
+        for(Score current: results.values()) {
+            Score base = baseline.get(current.m_name);
+            if(base == null) {
+                System.out.println(String.format("%-90s %14s %14.3f %8s %s", current.m_name, "-", current.m_score,
+                        "new", current.m_unit));
+                continue;
+            }
+            double change = base.m_score == 0 ? 0 : (current.m_score - base.m_score) * 100 / base.m_score;
+            double worse = current.m_higherIsBetter ? -change : change;
+            boolean regressed = worse > threshold;
+            if(regressed) {
+                regressions.add(current.m_name);
+            }
+            System.out.println(String.format("%-90s %14.3f %14.3f %+7.1f%% %s%s", current.m_name, base.m_score,
+                    current.m_score, change, current.m_unit, regressed ? "  REGRESSED" : ""));
+        }
+        for(String name: baseline.keySet()) {
+            if(!results.containsKey(name)) {
+                System.out.println(String.format("%-90s %14.3f %14s %8s", name, baseline.get(name).m_score, "-",
+                        "missing"));
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * @return scores by benchmark, parameters, thread count and mode - sampled benchmarks add their percentiles
+     */
+    static Map<String,Score> read(File file) throws IOException {
+        String json = new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+        JSONArray runs = new JSONArray(json);
+        Map<String,Score> scores = new LinkedHashMap<>();
+        for(int i = 0; i < runs.length(); i++) {
+            JSONObject run = runs.getJSONObject(i);
+            String mode = run.getString("mode");
+            StringBuilder name = new StringBuilder(run.getString("benchmark"));
+            JSONObject params = run.optJSONObject("params");
+            if(params != null) {
+                // sorted, so the name doesn't depend on the order JMH wrote them
+                TreeMap<String,Object> sorted = new TreeMap<>(params.toMap());
+                for(Map.Entry<String,Object> param: sorted.entrySet()) {
+                    name.append(':').append(param.getKey()).append('=').append(param.getValue());
+                }
+            }
+            name.append(" t=").append(run.getInt("threads")).append(' ').append(mode);
+            JSONObject metric = run.getJSONObject("primaryMetric");
+            String unit = metric.getString("scoreUnit");
+            boolean higherIsBetter = "thrpt".equals(mode);
+            scores.put(name.toString(), new Score(name.toString(), metric.getDouble("score"), unit, higherIsBetter));
+            JSONObject percentiles = metric.optJSONObject("scorePercentiles");
+            if("sample".equals(mode) && percentiles != null) {
+                for(String percentile: PERCENTILES) {
+                    if(percentiles.has(percentile)) {
+                        String key = name + " p" + percentile;
+                        scores.put(key, new Score(key, percentiles.getDouble(percentile), unit, false));
+                    }
+                }
+            }
+        }
+        return scores;
+    }
+}
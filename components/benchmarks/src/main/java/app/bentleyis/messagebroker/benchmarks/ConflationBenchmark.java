@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import app.bentleyis.messagebroker.Exchange;
+import app.bentleyis.messagebroker.Message;
+import app.bentleyis.messagebroker.PooledDispatcher;
+import app.bentleyis.messagebroker.TopicConfiguration;
+
+/**
+ * Updates per second published for 16 keys to a subscriber that spends about 1us per message. Each invocation
+ * publishes a batch and waits until every update has been delivered or, on a conflated topic, replaced by a
+ * newer one for its key.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConflationBenchmark {
+    static final int KEYS = 16;
+    static final int BATCH = 256;
+
+    @Param({"false", "true"})
+    boolean conflated;
+
+    PooledDispatcher m_dispatcher;
+    Exchange m_exchange;
+    CountingSubscriber m_subscriber;
+    BenchmarkMessage[] m_updates;
+    long m_published;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        m_dispatcher = new PooledDispatcher(1);
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setConflated(conflated);
+        m_exchange = new Exchange(m_dispatcher, configuration);
+        m_subscriber = new CountingSubscriber() {
+            @Override
+            public void receive(Message message) {
+                // simulate work per message
+                long end = System.nanoTime() + 1000;
+                while(System.nanoTime() < end) {
+                    // spin
+                }
+                super.receive(message);
+            }
+        };
+        m_exchange.register(m_subscriber);
+        // conflated by id - one message per key
+        m_updates = new BenchmarkMessage[KEYS];
+        for(int i = 0; i < KEYS; i++) {
+            m_updates[i] = new BenchmarkMessage("sensor-" + i, i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_exchange.shutdown();
+        m_dispatcher.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publish() {
+        for(int i = 0; i < BATCH; i++) {
+            m_exchange.enqueue(m_updates[i % KEYS]);
+        }
+        m_published += BATCH;
+        for(int spins = 0; m_subscriber.getReceived() + m_exchange.getConflatedCount() < m_published; spins++) {
+            if((spins & 0xff) == 0xff) {
+                Thread.yield();
+            }
+        }
+    }
+}
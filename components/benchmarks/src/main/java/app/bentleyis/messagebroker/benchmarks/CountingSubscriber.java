@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker.benchmarks;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import app.bentleyis.messagebroker.Message;
+import app.bentleyis.messagebroker.Subscriber;
+
+/**
+ * Counts deliveries and remembers the last sequence number, so a benchmark thread can wait for them
+ */
+public class CountingSubscriber implements Subscriber {
+    final AtomicLong m_received = new AtomicLong();
+    volatile long m_sequence;
+
+    @Override
+    public void receive(Message message) {
+        // only the delivering thread writes
+        m_received.lazySet(m_received.get() + 1);
+        if(message instanceof BenchmarkMessage) {
+            m_sequence = ((BenchmarkMessage) message).getSequence();
+        }
+    }
+
+    public long getReceived() {
+        return m_received.get();
+    }
+
+    /**
+     * Spin until the subscriber has received a count of messages
+     * @param count
+     */
+    public void awaitReceived(long count) {
+        for(int spins = 0; m_received.get() < count; spins++) {
+            if((spins & 0xff) == 0xff) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Spin until the subscriber has received the message with a sequence number
+     * @param sequence
+     */
+    public void awaitSequence(long sequence) {
+        for(int spins = 0; m_sequence != sequence; spins++) {
+            if((spins & 0xff) == 0xff) {
+                Thread.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import app.bentleyis.messagebroker.Exchange;
+import app.bentleyis.messagebroker.TimingWheel;
+import app.bentleyis.messagebroker.TopicConfiguration;
+
+/**
+ * Time to queue a topic full of messages with a 1ms time-to-live and have the timing wheel expire them all,
+ * at several queue depths. Expiry removes each message in place, so the score divided by the depth - the cost
+ * per message - should stay flat as the depth grows.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExpiryBenchmark {
+    @Param({"1000", "10000", "200000"})
+    int depth;
+
+    TimingWheel m_timingWheel;
+    Exchange m_exchange;
+    BenchmarkMessage[] m_messages;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        m_timingWheel = new TimingWheel(1, 512);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_timingWheel.shutdown();
+    }
+
+    @Setup(Level.Invocation)
+    public void fill() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(depth);
+        configuration.setTimeToLive(1);
+        m_exchange = new Exchange(new HeldDispatcher(), configuration, m_timingWheel);
+        // new messages each time - a published message keeps the timestamp its expiry is measured from
+        m_messages = new BenchmarkMessage[depth];
+        for(int i = 0; i < depth; i++) {
+            m_messages[i] = new BenchmarkMessage("expiry", i);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void drain() {
+        m_exchange.shutdown();
+    }
+
+    @Benchmark
+    public long expire() {
+        for(BenchmarkMessage message: m_messages) {
+            m_exchange.enqueue(message);
+        }
+        while(m_exchange.getExpiredCount() < depth) {
+            Thread.yield();
+        }
+        return m_exchange.getExpiredCount();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import app.bentleyis.messagebroker.MessageBroker;
+import app.bentleyis.messagebroker.OverflowPolicy;
+import app.bentleyis.messagebroker.PooledDispatcher;
+import app.bentleyis.messagebroker.Topic;
+import app.bentleyis.messagebroker.TopicConfiguration;
+
+/**
+ * Cost of delivering to more subscribers - messages per second that reach every subscriber. Each invocation
+ * publishes a batch and waits until all subscribers have it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+    static final String TOPIC = "benchmark/fanout";
+    static final int BATCH = 256;
+
+    @Param({"1", "4", "16", "64"})
+    int subscribers;
+
+    /**
+     * Each subscriber gets its own channel and pool thread rather than sharing the topic's thread
+     */
+    @Param({"false", "true"})
+    boolean fanOut;
+
+    MessageBroker m_broker;
+    Topic m_topic;
+    CountingSubscriber[] m_subscribers;
+    BenchmarkMessage m_message;
+    long m_published;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        m_broker = MessageBroker.newInstance();
+        m_broker.setDispatcher(new PooledDispatcher());
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setFanOut(fanOut);
+        // publishers wait for delivery rather than dropping
+        configuration.setOverflowPolicy(OverflowPolicy.BLOCK);
+        m_broker.configure(TOPIC, configuration);
+        m_subscribers = new CountingSubscriber[subscribers];
+        for(int i = 0; i < subscribers; i++) {
+            m_subscribers[i] = new CountingSubscriber();
+            m_broker.subscribe(TOPIC, m_subscribers[i]);
+        }
+        m_topic = m_broker.topic(TOPIC);
+        m_message = BenchmarkMessage.sample(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_broker.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publishToAll() {
+        for(int i = 0; i < BATCH; i++) {
+            m_topic.publish(m_message);
+        }
+        m_published += BATCH;
+        for(CountingSubscriber subscriber: m_subscribers) {
+            subscriber.awaitReceived(m_published);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker.benchmarks;
+
+import app.bentleyis.messagebroker.Dispatcher;
+
+/**
+ * Never runs an exchange - messages stay queued until the benchmark calls Exchange.run() or they expire.
+ * ExchangeTest has its own copy: this module compiles the broker's main sources only, not its tests.
+ */
+public class HeldDispatcher implements Dispatcher {
+    @Override
+    public void attach(Runnable task) {
+    }
+
+    @Override
+    public void dispatch(Runnable task) {
+    }
+
+    @Override
+    public void detach(Runnable task) {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
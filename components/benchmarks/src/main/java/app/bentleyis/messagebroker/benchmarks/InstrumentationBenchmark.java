@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import app.bentleyis.messagebroker.Exchange;
+import app.bentleyis.messagebroker.TopicConfiguration;
+
+/**
+ * Time per message to queue and deliver a batch to 4 subscribers, with and without the topic's instrumentation.
+ * Delivery runs on the benchmark thread, so the difference is the cost of the counters and latency histograms.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InstrumentationBenchmark {
+    static final int BATCH = 64; // the Exchange's default batch size
+
+    @Param({"false", "true"})
+    boolean instrumented;
+
+    Exchange m_exchange;
+    BenchmarkMessage[] m_messages;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setInstrumented(instrumented);
+        m_exchange = new Exchange(new HeldDispatcher(), configuration);
+        for(int i = 0; i < 4; i++) {
+            m_exchange.register(new CountingSubscriber());
+        }
+        m_messages = new BenchmarkMessage[BATCH];
+        for(int i = 0; i < BATCH; i++) {
+            m_messages[i] = BenchmarkMessage.sample(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_exchange.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void deliver() {
+        for(BenchmarkMessage message: m_messages) {
+            m_exchange.enqueue(message);
+        }
+        m_exchange.run();
+    }
+}
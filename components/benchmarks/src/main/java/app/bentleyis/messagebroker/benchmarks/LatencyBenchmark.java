@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import app.bentleyis.messagebroker.MessageBroker;
+import app.bentleyis.messagebroker.PooledDispatcher;
+import app.bentleyis.messagebroker.ThreadDispatcher;
+import app.bentleyis.messagebroker.Topic;
+import app.bentleyis.messagebroker.TopicConfiguration;
+
+/**
+ * End-to-end latency from publish until the subscriber has the message, one message in flight at a time.
+ * Sampled, so the results carry the p50/p90/p99/p99.9 percentiles.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LatencyBenchmark {
+    static final String TOPIC = "benchmark/latency";
+
+    @Param({"thread", "pooled"})
+    String dispatcher;
+
+    /**
+     * Deliver through the subscriber's own channel rather than on the topic's thread
+     */
+    @Param({"false", "true"})
+    boolean fanOut;
+
+    MessageBroker m_broker;
+    Topic m_topic;
+    CountingSubscriber m_subscriber;
+    BenchmarkMessage m_message;
+    long m_sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        m_broker = MessageBroker.newInstance();
+        m_broker.setDispatcher("pooled".equals(dispatcher) ? new PooledDispatcher() : new ThreadDispatcher());
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setFanOut(fanOut);
+        m_broker.configure(TOPIC, configuration);
+        m_subscriber = new CountingSubscriber();
+        m_broker.subscribe(TOPIC, m_subscriber);
+        m_topic = m_broker.topic(TOPIC);
+        m_message = BenchmarkMessage.sample(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_broker.shutdown();
+    }
+
+    @Benchmark
+    public void publishAndReceive() {
+        long sequence = ++m_sequence;
+        m_message.setSequence(sequence);
+        m_topic.publish(m_message);
+        m_subscriber.awaitSequence(sequence);
+    }
+}
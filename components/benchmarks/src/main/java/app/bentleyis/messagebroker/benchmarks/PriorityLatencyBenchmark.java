@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import app.bentleyis.messagebroker.Exchange;
+import app.bentleyis.messagebroker.Message;
+import app.bentleyis.messagebroker.OverflowPolicy;
+import app.bentleyis.messagebroker.PooledDispatcher;
+import app.bentleyis.messagebroker.Priority;
+import app.bentleyis.messagebroker.Subscriber;
+import app.bentleyis.messagebroker.TopicConfiguration;
+
+/**
+ * Publish-to-receive latency of a probe message while a LOW priority load keeps the topic's queue full.
+ * The subscriber spends about 20us per message. A LOW probe waits behind the backlog; a HIGH one has its own
+ * lane and should see a far lower p99.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PriorityLatencyBenchmark {
+    @Param({"LOW", "HIGH"})
+    Priority probe;
+
+    PooledDispatcher m_dispatcher;
+    Exchange m_exchange;
+    BenchmarkMessage m_probe;
+    Thread m_load;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        m_dispatcher = new PooledDispatcher(1);
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(256);
+        // the load waits for room rather than dropping queued probes
+        configuration.setOverflowPolicy(OverflowPolicy.BLOCK);
+        m_exchange = new Exchange(m_dispatcher, configuration);
+        m_exchange.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                // simulate work per message
+                long end = System.nanoTime() + 20000;
+                while(System.nanoTime() < end) {
+                    // spin
+                }
+            }
+        });
+        m_probe = BenchmarkMessage.sample(0);
+        m_probe.setPriority(probe);
+        m_load = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BenchmarkMessage load = BenchmarkMessage.sample(0);
+                load.setPriority(Priority.LOW);
+                while(!Thread.currentThread().isInterrupted()) {
+                    m_exchange.enqueue(load);
+                }
+            }
+        }, "PriorityLatencyBenchmark load");
+        m_load.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        m_load.interrupt();
+        m_exchange.shutdown();
+        m_load.join();
+        m_dispatcher.shutdown();
+    }
+
+    @Benchmark
+    public void probe() throws InterruptedException {
+        m_exchange.enqueueSynchronous(m_probe);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import app.bentleyis.messagebroker.MessageBroker;
+import app.bentleyis.messagebroker.OverflowPolicy;
+import app.bentleyis.messagebroker.PooledDispatcher;
+import app.bentleyis.messagebroker.TopicConfiguration;
+
+/**
+ * Publish throughput spread round-robin over a number of topics on a shared PooledDispatcher, with one
+ * wildcard subscriber. Shows the cost of topic lookup and of scheduling many Exchanges.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TopicScalingBenchmark {
+    static final int BATCH = 1024;
+
+    @Param({"1", "100", "1000", "10000"})
+    int topics;
+
+    MessageBroker m_broker;
+    String[] m_topics;
+    CountingSubscriber m_subscriber;
+    BenchmarkMessage m_message;
+    int m_next;
+    long m_published;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        m_broker = MessageBroker.newInstance();
+        m_broker.setDispatcher(new PooledDispatcher());
+        // keep topics between iterations
+        m_broker.setIdleTimeout(0);
+        m_subscriber = new CountingSubscriber();
+        m_broker.subscribe("benchmark/#", m_subscriber);
+        // a small queue per topic keeps ten thousand of them within a default heap
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(64);
+        // publishers wait for delivery rather than dropping
+        configuration.setOverflowPolicy(OverflowPolicy.BLOCK);
+        m_topics = new String[topics];
+        for(int i = 0; i < topics; i++) {
+            m_topics[i] = "benchmark/topic" + i;
+            m_broker.configure(m_topics[i], configuration);
+            m_broker.topic(m_topics[i]);
+        }
+        m_message = BenchmarkMessage.sample(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_broker.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publishRoundRobin() {
+        for(int i = 0; i < BATCH; i++) {
+            m_broker.publish(m_topics[m_next], m_message);
+            if(++m_next == m_topics.length) {
+                m_next = 0;
+            }
+        }
+        m_published += BATCH;
+        m_subscriber.awaitReceived(m_published);
+    }
+}
@@ -60,7 +60,7 @@ public class DynatraceSubscriber implements Subscriber {
         Dynatrace.startup(application.getApplicationContext(),
             new DynatraceConfigurationBuilder(m_applicationId,m_beaconUrl)
                 .buildConfiguration());
-        MessageBroker.getInstance().subscribe(m_topic, this);
+        MessageBroker.getInstance().subscribe(m_topic, this, Metric.class);
     }
 
     @Override
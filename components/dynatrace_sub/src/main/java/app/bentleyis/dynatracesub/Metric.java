@@ -22,6 +22,9 @@
 
 package app.bentleyis.dynatracesub;
 
+import java.nio.ByteBuffer;
+
+import app.bentleyis.messagebroker.BinaryCodec;
 import app.bentleyis.messagebroker.Message;
 
 /**
@@ -29,12 +32,39 @@ import app.bentleyis.messagebroker.Message;
  * For simplicity, this is a single event which Dynatrace represents as a String
  */
 public class Metric extends Message {
+    /**
+     * Writes the event for a BinaryCodec - register it with codec.register(tag, Metric.class, Metric.CODEC).
+     * Sub-classes need their own.
+     */
+    public static final BinaryCodec.TypeCodec<Metric> CODEC = new BinaryCodec.TypeCodec<Metric>() {
+        @Override
+        public Metric create(String id) {
+            return new Metric(id);
+        }
+
+        @Override
+        public void encode(Metric message, ByteBuffer buffer, BinaryCodec codec) {
+            codec.writeString(buffer, message.m_event);
+        }
+
+        @Override
+        public void decode(Metric message, ByteBuffer buffer, BinaryCodec codec) {
+            message.m_event = codec.readString(buffer);
+        }
+    };
+
     String m_event;
 
     public Metric(String id) {
         super(id);
     }
 
+    @Override
+    protected void reset() {
+        super.reset();
+        m_event = null;
+    }
+
     public void setEvent(String event) {
         m_event = event;
     }
@@ -0,0 +1,303 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BinaryCodec is a compact MessageCodec. Each message is written as:
+ * varint class tag, id, varint timestamp, type, varint time-to-live, priority byte, correlation id, reply-to
+ * topic, then whatever the class's TypeCodec writes. Integers are LEB128 varints - a timestamp takes 6 bytes,
+ * small values 1. Strings are varint headers: 0 for null, (index &lt;&lt; 1) | 1 for a dictionary entry,
+ * otherwise ((length + 1) &lt;&lt; 1) followed by the UTF-8 bytes. Put the strings that recur - types, property
+ * names - in the dictionary with addString() so they take a byte or two.
+ * Every concrete Message class is registered with a tag and a TypeCodec for what it adds to Message. Both
+ * ends must register the same tags and dictionary, in the same order. Configure the codec before sharing it
+ * between threads - encoding and decoding don't change it.
+ */
+public class BinaryCodec implements MessageCodec {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes and reads what a Message subclass adds to Message - the base fields are handled by the codec
+     * @param <T> message class
+     */
+    public interface TypeCodec<T extends Message> {
+        /**
+         * @param id
+         * @return an empty message with the id - the codec sets the base fields and then calls decode()
+         */
+        T create(String id);
+
+        void encode(T message, ByteBuffer buffer, BinaryCodec codec);
+
+        void decode(T message, ByteBuffer buffer, BinaryCodec codec);
+    }
+
+    static class Registration {
+        final int m_tag;
+        final TypeCodec<Message> m_codec;
+
+        Registration(int tag, TypeCodec<Message> codec) {
+            m_tag = tag;
+            m_codec = codec;
+        }
+    }
+
+    private final HashMap<Class<?>,Registration> m_byClass = new HashMap<>();
+    private final HashMap<Integer,Registration> m_byTag = new HashMap<>();
+    private final HashMap<String,Integer> m_dictionary = new HashMap<>();
+    private final ArrayList<String> m_strings = new ArrayList<>();
+
+    /**
+     * @param tag identifies the class in encoded messages - at least 0
+     * @param type concrete message class - subclasses need their own registration
+     * @param codec
+     * @throws IllegalArgumentException if the tag or class is already registered
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T extends Message> void register(int tag, Class<T> type, TypeCodec<T> codec) {
+        if(tag < 0) {
+            throw new IllegalArgumentException("tag must not be negative");
+        }
+        if(m_byTag.containsKey(tag) || m_byClass.containsKey(type)) {
+            throw new IllegalArgumentException("tag " + tag + " or " + type.getName() + " already registered");
+        }
+        Registration registration = new Registration(tag, (TypeCodec<Message>) codec);
+        m_byClass.put(type, registration);
+        m_byTag.put(tag, registration);
+    }
+
+    /**
+     * Add a string to the dictionary - it is then encoded as its index
+     * @param string
+     */
+    public synchronized void addString(String string) {
+        if(!m_dictionary.containsKey(string)) {
+            m_dictionary.put(string, m_strings.size());
+            m_strings.add(string);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the message's class isn't registered
+     */
+    @Override
+    public void encode(Message message, ByteBuffer buffer) {
+        Registration registration = m_byClass.get(message.getClass());
+        if(registration == null) {
+            throw new IllegalArgumentException("no codec registered for " + message.getClass().getName());
+        }
+        writeVarLong(buffer, registration.m_tag);
+        writeString(buffer, message.getId());
+        writeVarLong(buffer, message.getTimestamp());
+        writeString(buffer, message.getType());
+        writeVarLong(buffer, message.getTimeToLive());
+        buffer.put((byte) message.getPriority().ordinal());
+        writeString(buffer, message.getCorrelationId());
+        writeString(buffer, message.getReplyTo());
+        registration.m_codec.encode(message, buffer, this);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the class tag isn't registered
+     */
+    @Override
+    public Message decode(ByteBuffer buffer) {
+        int tag = (int) readVarLong(buffer);
+        Registration registration = m_byTag.get(tag);
+        if(registration == null) {
+            throw new IllegalArgumentException("no codec registered for tag " + tag);
+        }
+        Message message = registration.m_codec.create(readString(buffer));
+        message.setTimestamp(readVarLong(buffer));
+        message.setType(readString(buffer));
+        message.setTimeToLive(readVarLong(buffer));
+        message.setPriority(Priority.values()[buffer.get()]);
+        message.setCorrelationId(readString(buffer));
+        message.setReplyTo(readString(buffer));
+        registration.m_codec.decode(message, buffer, this);
+        return message;
+    }
+
+    /**
+     * Write a string - from the dictionary if it is there, otherwise as UTF-8 straight into the buffer
+     * @param buffer
+     * @param string may be null
+     */
+    public void writeString(ByteBuffer buffer, String string) {
+        if(string == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+        Integer index = m_dictionary.isEmpty() ? null : m_dictionary.get(string);
+        if(index != null) {
+            writeVarLong(buffer, ((long) index << 1) | 1);
+            return;
+        }
+        int length = utf8Length(string);
+        writeVarLong(buffer, ((long) length + 1) << 1);
+        if(buffer.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        for(int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if(c < 0x80) {
+                buffer.put((byte) c);
+            } else if(c < 0x800) {
+                buffer.put((byte) (0xc0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            } else if(Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer.put((byte) (0xf0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else {
+                // rest of the basic plane - an unpaired surrogate is written as it is
+                buffer.put((byte) (0xe0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                buffer.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * @param buffer
+     * @return a string written by writeString(), may be null
+     */
+    public String readString(ByteBuffer buffer) {
+        long header = readVarLong(buffer);
+        if(header == 0) {
+            return null;
+        }
+        if((header & 1) != 0) {
+            return m_strings.get((int) (header >>> 1));
+        }
+        int length = (int) (header >>> 1) - 1;
+        if(buffer.remaining() < length) {
+            throw new BufferUnderflowException();
+        }
+        String string;
+        if(buffer.hasArray()) {
+            // decoded straight from the backing array
+            string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+            buffer.position(buffer.position() + length);
+        } else {
+            string = readUtf8(buffer, length);
+        }
+        return string;
+    }
+
+    /**
+     * Write name value pairs - for TypeCodecs of messages with properties
+     * @param buffer
+     * @param properties
+     */
+    public void writeProperties(ByteBuffer buffer, Map<String,String> properties) {
+        writeVarLong(buffer, properties.size());
+        for(Map.Entry<String,String> property: properties.entrySet()) {
+            writeString(buffer, property.getKey());
+            writeString(buffer, property.getValue());
+        }
+    }
+
+    /**
+     * Read name value pairs written by writeProperties()
+     * @param buffer
+     * @param properties filled in
+     */
+    public void readProperties(ByteBuffer buffer, Map<String,String> properties) {
+        for(long count = readVarLong(buffer); count > 0; count--) {
+            String name = readString(buffer);
+            properties.put(name, readString(buffer));
+        }
+    }
+
+    public static void writeVarLong(ByteBuffer buffer, long value) {
+        while((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    static int utf8Length(String string) {
+        int length = 0;
+        for(int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if(c < 0x80) {
+                length++;
+            } else if(c < 0x800) {
+                length += 2;
+            } else if(Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static String readUtf8(ByteBuffer buffer, int length) {
+        char[] chars = new char[length];
+        int count = 0;
+        int end = buffer.position() + length;
+        while(buffer.position() < end) {
+            int b = buffer.get() & 0xff;
+            if(b < 0x80) {
+                chars[count++] = (char) b;
+            } else if(b < 0xe0) {
+                chars[count++] = (char) (((b & 0x1f) << 6) | (buffer.get() & 0x3f));
+            } else if(b < 0xf0) {
+                chars[count++] = (char) (((b & 0x0f) << 12) | ((buffer.get() & 0x3f) << 6) | (buffer.get() & 0x3f));
+            } else {
+                int codePoint = ((b & 0x07) << 18) | ((buffer.get() & 0x3f) << 12) | ((buffer.get() & 0x3f) << 6)
+                        | (buffer.get() & 0x3f);
+                count += Character.toChars(codePoint, chars, count);
+            }
+        }
+        return new String(chars, 0, count);
+    }
+}
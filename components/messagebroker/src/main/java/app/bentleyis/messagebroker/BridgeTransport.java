@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker;
+
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+
+/**
+ * A BridgeTransport connects a MessageBridge to its peer. The bridge only needs a blocking byte stream, so any
+ * channel will do - SocketTransport is the loopback socket implementation, others (e.g. an Android LocalSocket)
+ * can be plugged in by implementing this.
+ */
+public interface BridgeTransport {
+    /**
+     * Connect to the peer, blocking until connected. Called again to reconnect after a connection fails,
+     * so it must be able to open any number of connections in turn.
+     * @return a blocking channel to the peer
+     * @throws IOException if no connection could be made - the bridge waits and tries again
+     */
+    ByteChannel open() throws IOException;
+
+    /**
+     * Stop connecting - unblocks a pending open() - and close the current connection
+     */
+    void close();
+}
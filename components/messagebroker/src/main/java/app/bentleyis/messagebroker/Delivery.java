@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Delivery tracks one published message. It completes once the message has been delivered to every
+ * subscriber - after any retries - or fails if the message expires, is dropped, is dead-lettered because a
+ * subscriber kept throwing, or is not delivered within the publish timeout.
+ * Only threads waiting on this Delivery are woken when it completes. Listeners allow chaining without
+ * blocking - they run on the thread that completes the Delivery, keep them short.
+ */
+public class Delivery implements Future<Message> {
+    /**
+     * Called once when a Delivery completes or fails
+     */
+    public interface Listener {
+        void onComplete(Delivery delivery);
+    }
+
+    private static final int PENDING = 0;
+    private static final int DELIVERED = 1;
+    private static final int FAILED = 2;
+
+    final Message m_message;
+    // deliveries still to finish: one per fan-out channel, plus one per failed delivery waiting to be retried
+    final AtomicInteger m_remaining = new AtomicInteger(1);
+    Journal m_journal; // acknowledged at m_offset once no delivery is left - null if not journaled
+    long m_offset;
+    volatile TimingWheel.Timeout m_timeout;
+    private volatile int m_state = PENDING;
+    private Throwable m_cause;
+    private ArrayList<Listener> m_listeners;
+
+    Delivery(Message message) {
+        m_message = message;
+    }
+
+    public Message getMessage() {
+        return m_message;
+    }
+
+    /**
+     * Run the listener when the Delivery completes - immediately, on this thread, if it already has
+     * @param listener
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if(m_state == PENDING) {
+                if(m_listeners == null) {
+                    m_listeners = new ArrayList<>(1);
+                }
+                m_listeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    /**
+     * @return true if the message was delivered to every subscriber
+     */
+    public boolean isDelivered() {
+        return m_state == DELIVERED;
+    }
+
+    /**
+     * @return why the Delivery failed - MessageExpiredException, MessageRejectedException (dropped),
+     * TimeoutException, what a subscriber threw if the message was dead-lettered - or null
+     */
+    public synchronized Throwable getCause() {
+        return m_cause;
+    }
+
+    /**
+     * A published message can't be withdrawn
+     * @return false
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return m_state != PENDING;
+    }
+
+    /**
+     * Wait until the message is delivered
+     * @return the message
+     * @throws ExecutionException if the delivery failed
+     */
+    @Override
+    public synchronized Message get() throws InterruptedException, ExecutionException {
+        while(m_state == PENDING) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized Message get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while(m_state == PENDING) {
+            if(remaining <= 0) {
+                throw new TimeoutException("message " + m_message.getId() + " not delivered");
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return result();
+    }
+
+    /**
+     * One delivery finished - received, or given up on. When none is left, acknowledges the message's journal
+     * offset and completes, unless a delivery has failed it meanwhile.
+     */
+    void arrive() {
+        if(m_remaining.decrementAndGet() == 0) {
+            if(m_journal != null) {
+                m_journal.acknowledge(m_offset);
+            }
+            complete();
+        }
+    }
+
+    /**
+     * Acknowledge the message in the journal once its last delivery arrives
+     * @param journal
+     * @param offset
+     */
+    void journal(Journal journal, long offset) {
+        m_journal = journal;
+        m_offset = offset;
+    }
+
+    boolean complete() {
+        return finish(DELIVERED, null);
+    }
+
+    boolean fail(Throwable cause) {
+        return finish(FAILED, cause);
+    }
+
+    private boolean finish(int state, Throwable cause) {
+        ArrayList<Listener> listeners;
+        synchronized (this) {
+            if(m_state != PENDING) {
+                return false;
+            }
+            m_cause = cause;
+            m_state = state;
+            listeners = m_listeners;
+            m_listeners = null;
+            notifyAll();
+        }
+        TimingWheel.Timeout timeout = m_timeout;
+        if(timeout != null) {
+            timeout.cancel();
+        }
+        if(listeners != null) {
+            for(Listener listener: listeners) {
+                listener.onComplete(this);
+            }
+        }
+        return true;
+    }
+
+    private Message result() throws ExecutionException {
+        if(m_state == FAILED) {
+            throw new ExecutionException(m_cause);
+        }
+        return m_message;
+    }
+}
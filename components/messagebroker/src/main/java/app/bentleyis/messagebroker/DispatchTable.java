@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A DispatchTable is an Exchange's snapshot of its subscribers, rebuilt whenever they change.
+ * Subscribers may accept only some Message types. For each concrete message class the table computes once
+ * which subscribers accept it - a subscriber accepting a type also gets its subclasses - and caches the
+ * result, so delivery is an array walk and a subscriber that doesn't accept a message is never called.
+ * Subscriptions with a content filter can't be decided by class; they are found per message through the
+ * FilterIndex.
+ * On an instrumented topic each subscriber's SubscriberMetrics sit alongside it, so delivery records without
+ * a lookup.
+ * The caches are filled by the delivery thread only.
+ */
+class DispatchTable {
+    static final DispatchTable EMPTY = new DispatchTable(new Subscriber[0], new Subscription[0][],
+            new SubscriberChannel[0], new SubscriberMetrics[0]);
+
+    /**
+     * Who receives a message class regardless of content
+     */
+    static class Route {
+        Subscriber[] m_receivers; // plain (not batch) subscribers
+        SubscriberMetrics[] m_receiverMetrics; // per receiver, null entries if not instrumented
+        SubscriberChannel[] m_channels; // fan-out channels
+        boolean[] m_unconditional; // per subscriber - left out of filter matching
+    }
+
+    final Subscriber[] m_subscribers;
+    final Subscription[][] m_subscriptions; // per subscriber
+    final SubscriberChannel[] m_channels; // per subscriber in fan-out mode, otherwise null entries
+    final SubscriberMetrics[] m_metrics; // per subscriber, null entries if not instrumented
+    final BatchSubscriber[] m_batchSubscribers; // delivered per batch, not per message
+    final Subscription[][] m_batchSubscriptions;
+    final SubscriberMetrics[] m_batchMetrics;
+    final FilterIndex m_filters; // null if no subscription has a filter
+    private final HashMap<Class<?>,Route> m_routes = new HashMap<>();
+
+    DispatchTable(Subscriber[] subscribers, Subscription[][] subscriptions, SubscriberChannel[] channels,
+                  SubscriberMetrics[] metrics) {
+        m_subscribers = subscribers;
+        m_subscriptions = subscriptions;
+        m_channels = channels;
+        m_metrics = metrics;
+        ArrayList<BatchSubscriber> batchSubscribers = new ArrayList<>();
+        ArrayList<Subscription[]> batchSubscriptions = new ArrayList<>();
+        ArrayList<SubscriberMetrics> batchMetrics = new ArrayList<>();
+        FilterIndex filters = new FilterIndex(subscribers.length);
+        for(int i = 0; i < subscribers.length; i++) {
+            boolean batch = channels[i] == null && subscribers[i] instanceof BatchSubscriber;
+            if(batch) {
+                // filtered per batch instead
+                batchSubscribers.add((BatchSubscriber) subscribers[i]);
+                batchSubscriptions.add(subscriptions[i]);
+                batchMetrics.add(metrics[i]);
+                continue;
+            }
+            for(Subscription subscription: subscriptions[i]) {
+                if(subscription.m_filter != null) {
+                    filters.add(i, subscription);
+                }
+            }
+        }
+        m_batchSubscribers = batchSubscribers.toArray(new BatchSubscriber[batchSubscribers.size()]);
+        m_batchSubscriptions = batchSubscriptions.toArray(new Subscription[batchSubscriptions.size()][]);
+        m_batchMetrics = batchMetrics.toArray(new SubscriberMetrics[batchMetrics.size()]);
+        m_filters = filters.isEmpty() ? null : filters;
+    }
+
+    /**
+     * @param subscribers with the subscriptions each has
+     * @param channels fan-out channels or null
+     * @param metrics per subscriber or null if not instrumented
+     */
+    static DispatchTable build(Map<Subscriber,Subscription[]> subscribers,
+                               Map<Subscriber,SubscriberChannel> channels,
+                               Map<Subscriber,SubscriberMetrics> metrics) {
+        Subscriber[] all = new Subscriber[subscribers.size()];
+        Subscription[][] subscriptions = new Subscription[all.length][];
+        SubscriberChannel[] allChannels = new SubscriberChannel[all.length];
+        SubscriberMetrics[] allMetrics = new SubscriberMetrics[all.length];
+        int i = 0;
+        for(Map.Entry<Subscriber,Subscription[]> entry: subscribers.entrySet()) {
+            all[i] = entry.getKey();
+            subscriptions[i] = entry.getValue();
+            allChannels[i] = channels == null ? null : channels.get(entry.getKey());
+            allMetrics[i] = metrics == null ? null : metrics.get(entry.getKey());
+            i++;
+        }
+        return new DispatchTable(all, subscriptions, allChannels, allMetrics);
+    }
+
+    /**
+     * @param type concrete message class
+     * @return the subscribers that accept every message of the type
+     */
+    Route route(Class<?> type) {
+        Route route = m_routes.get(type);
+        if(route == null) {
+            route = new Route();
+            ArrayList<Subscriber> receivers = new ArrayList<>();
+            ArrayList<SubscriberMetrics> receiverMetrics = new ArrayList<>();
+            ArrayList<SubscriberChannel> channels = new ArrayList<>();
+            route.m_unconditional = new boolean[m_subscribers.length];
+            for(int i = 0; i < m_subscribers.length; i++) {
+                if(!acceptsAll(m_subscriptions[i], type)) {
+                    continue;
+                }
+                route.m_unconditional[i] = true;
+                if(m_channels[i] != null) {
+                    channels.add(m_channels[i]);
+                } else if(!(m_subscribers[i] instanceof BatchSubscriber)) {
+                    receivers.add(m_subscribers[i]);
+                    receiverMetrics.add(m_metrics[i]);
+                }
+            }
+            route.m_receivers = receivers.toArray(new Subscriber[receivers.size()]);
+            route.m_receiverMetrics = receiverMetrics.toArray(new SubscriberMetrics[receiverMetrics.size()]);
+            route.m_channels = channels.toArray(new SubscriberChannel[channels.size()]);
+            m_routes.put(type, route);
+        }
+        return route;
+    }
+
+    /**
+     * @param type concrete message class
+     * @return the plain (not batch) subscribers that accept every message of the type
+     */
+    Subscriber[] receivers(Class<?> type) {
+        return route(type).m_receivers;
+    }
+
+    /**
+     * @param type concrete message class
+     * @return the fan-out channels of subscribers that accept every message of the type
+     */
+    SubscriberChannel[] channels(Class<?> type) {
+        return route(type).m_channels;
+    }
+
+    /**
+     * Find the subscribers that accept the message only through a content filter - their indexes are left
+     * in m_filters.m_matched
+     * @param message
+     * @param route the route of the message's class
+     * @return the number of subscribers found
+     */
+    int filter(Message message, Route route) {
+        return m_filters == null ? 0 : m_filters.match(message, route.m_unconditional);
+    }
+
+    boolean isEmpty() {
+        return m_subscribers.length == 0;
+    }
+
+    /**
+     * @param subscriptions
+     * @param type concrete message class
+     * @return true if an unfiltered subscription accepts the type
+     */
+    static boolean acceptsAll(Subscription[] subscriptions, Class<?> type) {
+        for(Subscription subscription: subscriptions) {
+            if(subscription.m_filter == null && subscription.accepts(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param types accepted types, null for all
+     * @param type concrete message class
+     * @return true if the type or one of its supertypes is accepted
+     */
+    static boolean accepts(Class<?>[] types, Class<?> type) {
+        if(types == null) {
+            return true;
+        }
+        for(Class<?> accepted: types) {
+            if(accepted.isAssignableFrom(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+/**
+ * A Dispatcher provides the threads an Exchange delivers messages on.
+ * An Exchange asks to be dispatched only when it has messages pending and is not already scheduled,
+ * so a Dispatcher never runs the same Exchange on two threads at once - per-topic FIFO order is kept.
+ * In fan-out mode each subscriber's SubscriberChannel is dispatched the same way as its own delivery task.
+ */
+public interface Dispatcher {
+    /**
+     * Called once when an Exchange (or other delivery task) is created with this Dispatcher
+     * @param task
+     */
+    void attach(Runnable task);
+
+    /**
+     * Run the task (deliver pending messages) on a dispatcher thread
+     * @param task
+     */
+    void dispatch(Runnable task);
+
+    /**
+     * Called when the task is shut down - release anything held for it
+     * @param task
+     */
+    void detach(Runnable task);
+
+    /**
+     * Stop all dispatcher threads
+     */
+    void shutdown();
+}
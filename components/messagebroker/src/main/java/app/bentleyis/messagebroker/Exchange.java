@@ -22,100 +22,1393 @@
 
 package app.bentleyis.messagebroker;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * The Exchange provides simple Message delivery for a topic.
- * It doesn't evaluate timestamp to apply time-to-live or expiration policy (yet)
- * It doesn't evaluate QoS deliver. Note: since it is not expiring messages, this can exhaust memory if
- *    no subscribers are present.
- * It doesn't persist messages - messages can be lost between application starts.
- * It doesn't evaluate message priority - FIFO processing
- * It doesn't do any message filtering for subscribers - everyone gets a copy
+ * The Exchange delivers a topic's Messages to its subscribers.
+ * Delivery runs on a thread provided by the Dispatcher - the Exchange is only dispatched while it has
+ * messages pending and at most one thread delivers for it at a time.
+ * Messages are queued in preallocated lock-free ring buffers, one lane per Priority - publishing neither locks
+ * nor allocates. Within a lane processing is FIFO.
+ * The TopicConfiguration decides how messages are queued, expired, persisted, batched and retried.
  */
-public class Exchange extends Thread {
-    private static final long WAIT_TIME = 30000; // 30 seconds to re-attempt delivery
-    LinkedHashSet<Subscriber> m_subscribers = new LinkedHashSet<>();
-    LinkedList<Message> m_queue = new LinkedList<>();
-    Object m_synchLock = new Object();
+public class Exchange implements Runnable {
+    public static final int DEFAULT_CAPACITY = 1024;
+    static final int DEFAULT_BATCH_SIZE = 64; // messages delivered per dispatch before giving up the thread
+    private static final long FULL_WAIT_NANOS = 100000; // 0.1ms between attempts to queue into a full buffer
+    private static final int RETIRED = Integer.MIN_VALUE;
+    static final int SAMPLE_MASK = 63; // one message in 64 is timed on an instrumented topic
+    // registered subscribers with the messages each accepts - guarded by this, never read by delivery
+    LinkedHashMap<Subscriber,Subscription[]> m_subscribers = new LinkedHashMap<>();
+    // immutable snapshot of m_subscribers, replaced on every change - delivery reads it without locking
+    volatile DispatchTable m_dispatchTable = DispatchTable.EMPTY;
+    int m_batchSize;
+    long m_lingerNanos;
+    // reused for every batch - delivery thread only
+    ArrayList<Message> m_batch;
+    List<Message> m_batchView;
+    ArrayList<Message> m_filtered; // batch messages a limited BatchSubscriber accepts
+    List<Message> m_filteredView;
+    int[] m_filteredPositions; // where each m_filtered message is in the batch
+    int[] m_positions; // 0, 1, 2... - where each message of an unfiltered batch is
+    long[] m_batchOffsets;
+    Delivery[] m_batchDeliveries;
+    // fan-out
+    boolean m_fanOut;
+    int m_subscriberCapacity;
+    OverflowPolicy m_subscriberOverflowPolicy;
+    LinkedHashMap<Subscriber,SubscriberChannel> m_channelMap = new LinkedHashMap<>();
+    volatile SubscriberChannel[] m_channels = new SubscriberChannel[0];
+    volatile SubscriberChannel m_blockedOn; // full channel the current batch is waiting for
+    DispatchTable m_fanOutTable; // subscribers the current batch goes to - delivery thread only
+    int m_fanOutMessage;
+    int m_fanOutChannel;
+    LaneQueue m_queue;
+    OverflowPolicy m_overflowPolicy;
+    long m_blockTimeoutNanos;
+    AtomicLongArray m_overflowCounts = new AtomicLongArray(OverflowPolicy.values().length);
+    long m_timeToLive;
+    TimingWheel m_timingWheel;
+    Subscriber m_expirySubscriber;
+    Subscriber m_deadLetter;
+    AtomicLong m_expiredCount = new AtomicLong();
+    Journal m_journal;
+    volatile boolean m_replaying;
+    long m_deliveryOffset = -1; // journal offset of the message being delivered - delivery thread only
+    Delivery m_delivery; // Delivery of the message being delivered - delivery thread only
+    Dispatcher m_dispatcher;
+    AtomicBoolean m_scheduled = new AtomicBoolean(false);
+    volatile boolean m_shutdown;
+    // MessageBroker publishers inside enqueue, offset by RETIRED once the idle topic is reclaimed
+    AtomicInteger m_publishers = new AtomicInteger();
+    long m_idleSince; // when the MessageBroker first saw the topic idle, 0 if in use - guarded by the broker
+    // instrumentation - all null if the topic isn't instrumented
+    AtomicLong m_deliveredCount; // delivery thread writes
+    LatencyHistogram m_latency; // enqueue to delivery of sampled messages
+    LinkedHashMap<Subscriber,SubscriberMetrics> m_subscriberMetrics; // guarded by this
+    // conflation - null unless the topic keeps only the latest message per key
+    ConcurrentHashMap<Object,Long> m_conflated; // key to the ticket of its queued message
+    String m_conflationProperty; // null for the id
+    AtomicLong m_conflatedCount = new AtomicLong();
+    // retention - null unless the topic retains messages for new subscribers
+    LinkedHashMap<Object,Message> m_retained; // by key, least recently updated first - delivery thread only
+    String m_retentionProperty; // null for a single message
+    int m_retentionCapacity;
+    volatile int m_retainedCount; // size of m_retained for other threads
+    LinkedHashSet<Subscriber> m_joined; // registered but not yet given the retained messages - guarded by this
+    volatile boolean m_welcome; // m_joined isn't empty
+    // failed deliveries - retried on the timing wheel, then dead-lettered
+    int m_maxDeliveryAttempts;
+    long m_retryBackoff; // milliseconds before the first retry, doubled for each one after
+    long m_maxRetryBackoff;
+    ConcurrentLinkedQueue<Redelivery> m_retries = new ConcurrentLinkedQueue<>(); // due - not used in fan-out mode
+    AtomicInteger m_redeliveries = new AtomicInteger(); // holding messages for another attempt
+    AtomicLong m_failedCount = new AtomicLong();
 
-    public Exchange() {
-        this.start();
+    /**
+     * Timer that removes a queued message when its time-to-live runs out
+     */
+    class Expiry implements Runnable {
+        final long m_ticket;
+        final Message m_message;
+        final long m_offset;
+        final Delivery m_delivery;
+        volatile TimingWheel.Timeout m_timeout;
+
+        Expiry(long ticket, Message message, long offset, Delivery delivery) {
+            m_ticket = ticket;
+            m_message = message;
+            m_offset = offset;
+            m_delivery = delivery;
+        }
+
+        @Override
+        public void run() {
+            if(m_shutdown || !m_queue.remove(m_ticket, m_message)) {
+                // already delivered
+                return;
+            }
+            m_queue.detach(m_ticket, this);
+            // free the slot now - without subscribers the consumer never passes it
+            m_queue.reclaim(m_ticket);
+            expired(m_message, m_delivery);
+            acknowledge(m_offset);
+        }
+
+        void cancel() {
+            TimingWheel.Timeout timeout = m_timeout;
+            if(timeout != null) {
+                timeout.cancel();
+            }
+        }
     }
 
-    @Override
-    public void run() {
-        Message message = null;
-        while(!interrupted()) {
-            // on each iteration, wake synchronized threads
-            synchronized (m_synchLock) {
-                m_synchLock.notifyAll();
-            }
-            // interrogate the queue for messages to deliver
-            synchronized (m_queue) {
-                if(m_queue.isEmpty()) {
-                    try {
-                        m_queue.wait(WAIT_TIME);
-                    } catch (InterruptedException e) {
-                        // we're done
-                        break;
-                    }
+    /**
+     * A delivery that threw, waiting on the timing wheel for its next attempt. When due it is queued for the
+     * thread that delivers to its subscriber.
+     */
+    class Redelivery implements Runnable {
+        final Subscriber m_subscriber;
+        final SubscriberMetrics m_metrics;
+        final SubscriberChannel m_channel; // null unless fan-out
+        final List<Message> m_messages; // one message, or a batch for a BatchSubscriber
+        final Delivery[] m_deliveries; // each message's Delivery, if tracked - waiting for this one to finish
+        int m_attempts; // failed so far
+
+        Redelivery(Subscriber subscriber, SubscriberMetrics metrics, SubscriberChannel channel,
+                   List<Message> messages, Delivery[] deliveries) {
+            m_subscriber = subscriber;
+            m_metrics = metrics;
+            m_channel = channel;
+            m_messages = messages;
+            m_deliveries = deliveries;
+        }
+
+        @Override
+        public void run() {
+            ConcurrentLinkedQueue<Redelivery> retries = m_channel == null ? m_retries : m_channel.m_retries;
+            retries.add(this);
+            if(m_channel == null) {
+                schedule();
+            } else {
+                m_channel.schedule();
+            }
+            // shut down meanwhile - nothing will take it
+            if(m_shutdown || (m_channel != null && m_channel.m_shutdown)) {
+                abandon(retries);
+            }
+        }
+
+        /**
+         * Deliver again - on the subscriber's delivery thread
+         */
+        void attempt() {
+            try {
+                if(m_subscriber instanceof BatchSubscriber) {
+                    receiveBatch((BatchSubscriber) m_subscriber, m_metrics, Collections.unmodifiableList(m_messages));
+                } else {
+                    receive(m_subscriber, m_metrics, m_messages.get(0), 0);
                 }
+            } catch (RuntimeException e) {
+                failed(this, e);
+                return;
+            }
+            release();
+            finish(null);
+        }
 
-                // attempt delivery - if there is nothing queued, we timed out. if there are no
-                // subscribers, wait until there is one
-                if(m_subscribers.isEmpty() || m_queue.isEmpty()) {
-                    continue;
+        void release() {
+            for(Message message: m_messages) {
+                message.release();
+            }
+            m_redeliveries.decrementAndGet();
+        }
+
+        /**
+         * No more attempts - count the delivery of each message as finished
+         * @param cause fails the messages' Deliveries first if not null
+         */
+        void finish(Throwable cause) {
+            for(Delivery delivery: m_deliveries) {
+                if(delivery != null) {
+                    if(cause != null) {
+                        delivery.fail(cause);
+                    }
+                    delivery.arrive();
                 }
+            }
+        }
+    }
+
+    public Exchange(Dispatcher dispatcher) {
+        this(dispatcher, new TopicConfiguration());
+    }
+
+    public Exchange(Dispatcher dispatcher, TopicConfiguration configuration) {
+        this(dispatcher, configuration, null);
+    }
 
-                // grab the item to deliver
-                message = m_queue.removeFirst();
+    /**
+     * @param dispatcher provides delivery threads
+     * @param configuration queue capacity, overflow policy, lane weights, expiry and journal - copied, later
+     *                      changes have no effect
+     * @param timingWheel evicts expired messages while queued, times out deliveries and schedules retries. If
+     *                    null, expired messages are only discarded when they reach the head of the queue and a
+     *                    failed delivery isn't retried.
+     * @throws IllegalArgumentException if the configuration is conflated and has a journal
+     */
+    public Exchange(Dispatcher dispatcher, TopicConfiguration configuration, TimingWheel timingWheel) {
+        if(configuration.isConflated()) {
+            if(configuration.getJournalDirectory() != null) {
+                // a replaced message's journal record can't be swapped along with it
+                throw new IllegalArgumentException("a conflated topic can't have a journal");
+            }
+            m_conflated = new ConcurrentHashMap<>();
+            m_conflationProperty = configuration.getConflationProperty();
+        }
+        if(configuration.isRetained()) {
+            m_retained = new LinkedHashMap<>();
+            m_retentionProperty = configuration.getRetentionProperty();
+            m_retentionCapacity = configuration.getRetentionCapacity();
+            m_joined = new LinkedHashSet<>();
+        }
+        if(configuration.getJournalDirectory() != null) {
+            try {
+                m_journal = new Journal(configuration.getJournalDirectory(), configuration.getJournalCodec(),
+                        configuration.getJournalSegmentSize(), configuration.getJournalCommitInterval());
+            } catch (IOException e) {
+                throw new IllegalStateException("unable to open journal " + configuration.getJournalDirectory(), e);
             }
+            m_replaying = m_journal.getReplayOffset() >= 0;
+        }
+        m_queue = new LaneQueue(configuration.getCapacity(), true, m_journal != null,
+                configuration.getLaneWeights());
+        m_overflowPolicy = configuration.getOverflowPolicy();
+        m_blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getBlockTimeout());
+        m_timeToLive = configuration.getTimeToLive();
+        m_batchSize = configuration.getBatchSize();
+        m_lingerNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getBatchLinger());
+        m_batch = new ArrayList<>(m_batchSize);
+        m_batchView = Collections.unmodifiableList(m_batch);
+        m_filtered = new ArrayList<>(m_batchSize);
+        m_filteredView = Collections.unmodifiableList(m_filtered);
+        m_filteredPositions = new int[m_batchSize];
+        m_positions = new int[m_batchSize];
+        for(int i = 0; i < m_batchSize; i++) {
+            m_positions[i] = i;
+        }
+        m_batchOffsets = new long[m_batchSize];
+        m_batchDeliveries = new Delivery[m_batchSize];
+        m_fanOut = configuration.isFanOut();
+        m_subscriberCapacity = configuration.getSubscriberCapacity();
+        m_subscriberOverflowPolicy = configuration.getSubscriberOverflowPolicy();
+        m_expirySubscriber = configuration.getExpirySubscriber();
+        m_maxDeliveryAttempts = configuration.getMaxDeliveryAttempts();
+        m_retryBackoff = configuration.getRetryBackoff();
+        m_maxRetryBackoff = configuration.getMaxRetryBackoff();
+        if(configuration.isInstrumented()) {
+            m_deliveredCount = new AtomicLong();
+            m_latency = new LatencyHistogram();
+            m_subscriberMetrics = new LinkedHashMap<>();
+        }
+        m_timingWheel = timingWheel;
+        m_dispatcher = dispatcher;
+        m_dispatcher.attach(this);
+    }
 
-            // clone to allow changes to subscribers
-            LinkedHashSet<Subscriber> clone = new LinkedHashSet<>(m_subscribers);
+    /**
+     * Drain up to a batch of messages and deliver it, then release the dispatcher thread. The Exchange
+     * re-schedules itself if messages remain.
+     */
+    @Override
+    public void run() {
+        try {
+            if(m_fanOut) {
+                fanOut();
+            } else if(!m_shutdown) {
+                // the table is a snapshot - subscribers may change meanwhile
+                DispatchTable table = m_dispatchTable;
+                // read after the table - a new subscriber is flagged before its table is published
+                if(m_welcome) {
+                    table = welcome();
+                }
+                if(!m_retries.isEmpty()) {
+                    redeliver(table);
+                }
+                // if there are no subscribers, hold the messages until there is one
+                if(!table.isEmpty() && drain() > 0) {
+                    deliver(table);
+                }
+            }
+        } finally {
+            m_scheduled.set(false);
+        }
+        // messages may have been queued after the last check
+        schedule();
+    }
 
-            // deliver round-robin on this thread - not fastest but least resource intensive
-            for(Subscriber subscriber: clone) {
-                subscriber.receive(message);
+    /**
+     * Deliver the drained batch on this thread
+     * @param table subscribers to deliver to
+     */
+    private void deliver(DispatchTable table) {
+        // deliver round-robin on this thread - not fastest but least resource intensive
+        for(int i = 0; i < m_batch.size(); i++) {
+            Message message = m_batch.get(i);
+            DispatchTable.Route route = table.route(message.getClass());
+            long start = delivering(message);
+            for(int j = 0; j < route.m_receivers.length; j++) {
+                start = attempt(route.m_receivers[j], route.m_receiverMetrics[j], message, start, null, i);
+            }
+            int filtered = table.filter(message, route);
+            for(int j = 0; j < filtered; j++) {
+                int subscriber = table.m_filters.m_matched[j];
+                start = attempt(table.m_subscribers[subscriber], table.m_metrics[subscriber], message, start,
+                        null, i);
+            }
+        }
+        for(int i = 0; i < table.m_batchSubscribers.length; i++) {
+            deliverBatch(table.m_batchSubscribers[i], table.m_batchSubscriptions[i], table.m_batchMetrics[i]);
+        }
+        delivered(m_batch.size());
+        for(int i = 0; i < m_batch.size(); i++) {
+            // -1 if a failed delivery left acknowledging it to the message's Delivery
+            acknowledge(m_batchOffsets[i]);
+            Delivery delivery = m_batchDeliveries[i];
+            if(delivery != null) {
+                m_batchDeliveries[i] = null;
+                // completes now unless a delivery failed and is waiting to be retried
+                delivery.arrive();
+            }
+            if(m_retained != null) {
+                keep(m_batch.get(i));
             }
+            m_batch.get(i).release();
         }
+        m_batch.clear();
+    }
+
+    /**
+     * Enqueue a Message for delivery. If the queue is full the OverflowPolicy is applied.
+     * A pooled message's reference passes to the Exchange, unless it is rejected with an exception.
+     * @param message
+     * @return false if the message was dropped or the Exchange is shut down
+     * @throws MessageRejectedException if the queue is full and the policy is REJECT
+     */
+    public boolean enqueue(Message message) {
+        return enqueue(message, null);
     }
 
     /**
-     * Enqueue a Message for delivery
+     * Enqueue a Message for delivery and track it. If the queue is full the OverflowPolicy is applied.
      * @param message
+     * @param timeout milliseconds until the Delivery fails with a TimeoutException if not yet delivered,
+     *                0 for no timeout. Needs a TimingWheel - ignored without one.
+     * @return Delivery that completes when every subscriber has received the message - after any retries - or
+     * fails if it expires, is dropped, is dead-lettered or times out. Already failed if the Exchange is shut down.
+     * @throws MessageRejectedException if the queue is full and the policy is REJECT
      */
-    public void enqueue(Message message) {
-        synchronized (m_queue) {
-            // insert message at end - no priority yet
-            m_queue.add(message);
-            m_queue.notify();
+    public Delivery enqueueAsync(final Message message, final long timeout) {
+        final Delivery delivery = new Delivery(message);
+        if(timeout > 0 && m_timingWheel != null) {
+            delivery.m_timeout = m_timingWheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    delivery.fail(new TimeoutException("message " + message.getId() + " not delivered within "
+                            + timeout + "ms"));
+                }
+            }, timeout);
         }
+        try {
+            enqueue(message, delivery);
+        } catch (MessageRejectedException e) {
+            delivery.fail(e);
+            throw e;
+        }
+        return delivery;
     }
 
     /**
-     * Queue a message and wait until it no longer exists in the queue - i.e. it has been delivered
+     * Queue a message and wait until it has been delivered to every subscriber, or dropped, expired or the
+     * Exchange shuts down
      * @param message
      */
     public void enqueueSynchronous(Message message) throws InterruptedException
     {
-        enqueue(message);
-        synchronized (m_synchLock) {
-            do {
-                m_synchLock.wait();
-            } while(m_queue.contains(message));
+        try {
+            enqueueAsync(message, 0).get();
+        } catch (ExecutionException e) {
+            // dropped, expired or shut down - nothing more to wait for
         }
     }
 
-    public synchronized void register(Subscriber subscriber) {
-        if(!m_subscribers.contains(subscriber)) {
-            m_subscribers.add(subscriber);
+    private boolean enqueue(Message message, Delivery delivery) {
+        if(m_shutdown) {
+            // nothing would deliver it - and a caller waiting on the Delivery would wait forever
+            if(delivery != null) {
+                delivery.fail(new IllegalStateException("topic shut down, message " + message.getId()
+                        + " not delivered"));
+            }
+            message.release();
+            return false;
+        }
+        long timeToLive = getTimeToLive(message);
+        long now = 0;
+        if(timeToLive > 0) {
+            now = System.currentTimeMillis();
+            if(message.getTimestamp() == 0) {
+                message.setTimestamp(now);
+            }
+            if(now - message.getTimestamp() >= timeToLive) {
+                expired(message, delivery);
+                return false;
+            }
+        }
+
+        Object key = null;
+        if(m_conflated != null && delivery == null && (key = conflationKey(message)) != null
+                && conflate(key, message)) {
+            return true;
+        }
+
+        // insert message at end of its priority lane
+        long ticket = m_queue.claim(message.getPriority());
+        if(ticket < 0 && (ticket = overflow(message)) < 0) {
+            if(delivery != null) {
+                delivery.fail(new MessageRejectedException("queue full, message " + message.getId() + " dropped"));
+            }
+            message.release();
+            return false;
+        }
+        long offset = append(message);
+        if(m_latency != null) {
+            message.m_enqueued = (LaneQueue.position(ticket) & SAMPLE_MASK) == 0 ? System.nanoTime() : 0;
+        }
+        Expiry expiry = null;
+        if(timeToLive > 0 && m_timingWheel != null) {
+            // the timer is attached to the slot before the message is visible, so delivery can always cancel it
+            expiry = new Expiry(ticket, message, offset, delivery);
+            expiry.m_timeout = m_timingWheel.schedule(expiry, message.getTimestamp() + timeToLive - now);
+        }
+        if(key != null) {
+            // before the slot is visible, so the consumer can't take it and forget the key first
+            m_conflated.put(key, ticket);
+        }
+        // the slot carries the expiry timer, which holds the Delivery, or just the Delivery
+        m_queue.publish(ticket, message, expiry != null ? expiry : delivery, offset);
+        schedule();
+        return true;
+    }
+
+    public void register(Subscriber subscriber) {
+        register(subscriber, Subscription.ALL);
+    }
+
+    /**
+     * Register a subscriber for some message types only - it receives messages of those classes and their
+     * subclasses. Registering again replaces the types.
+     * @param subscriber
+     * @param types accepted message types, null for all
+     */
+    public void register(Subscriber subscriber, Class<?>[] types) {
+        register(subscriber, new Subscription(types, null));
+    }
+
+    /**
+     * Register a subscriber for the messages matching a filter only. Registering again replaces the filter.
+     * @param subscriber
+     * @param filter
+     */
+    public void register(Subscriber subscriber, MessageFilter filter) {
+        register(subscriber, new Subscription(null, filter));
+    }
+
+    /**
+     * Register a subscriber for the messages any of the subscriptions accept. Registering again replaces
+     * the subscriptions.
+     * @param subscriber
+     * @param subscriptions
+     */
+    public synchronized void register(Subscriber subscriber, Subscription... subscriptions) {
+        boolean registered = m_subscribers.containsKey(subscriber);
+        if(registered && Arrays.equals(m_subscribers.get(subscriber), subscriptions)) {
+            return;
+        }
+        m_subscribers.put(subscriber, subscriptions.clone());
+        SubscriberMetrics metrics = null;
+        if(m_subscriberMetrics != null && !registered) {
+            metrics = new SubscriberMetrics();
+            m_subscriberMetrics.put(subscriber, metrics);
         }
+        if(m_fanOut && !registered) {
+            m_channelMap.put(subscriber, new SubscriberChannel(this, subscriber, m_subscriberCapacity,
+                    m_subscriberOverflowPolicy, m_batchSize, metrics));
+            m_channels = m_channelMap.values().toArray(new SubscriberChannel[0]);
+        }
+        if(m_retained != null && !registered) {
+            // flagged before the table with the subscriber is published, so delivery using that table sees it
+            m_joined.add(subscriber);
+            m_welcome = true;
+        }
+        m_dispatchTable = DispatchTable.build(m_subscribers, m_fanOut ? m_channelMap : null, m_subscriberMetrics);
+        // deliver anything held while there were no subscribers, and retained messages
+        schedule();
     }
 
     public synchronized void unregister(Subscriber subscriber) {
+        if(!m_subscribers.containsKey(subscriber)) {
+            return;
+        }
         m_subscribers.remove(subscriber);
+        if(m_joined != null) {
+            m_joined.remove(subscriber);
+        }
+        if(m_subscriberMetrics != null) {
+            m_subscriberMetrics.remove(subscriber);
+        }
+        SubscriberChannel channel = m_channelMap.remove(subscriber);
+        if(channel != null) {
+            m_channels = m_channelMap.values().toArray(new SubscriberChannel[0]);
+        }
+        m_dispatchTable = DispatchTable.build(m_subscribers, m_fanOut ? m_channelMap : null, m_subscriberMetrics);
+        if(channel != null) {
+            channel.shutdown();
+        }
+    }
+
+    /**
+     * Replace the subscribers - registering new ones and unregistering those not in the map.
+     * The MessageBroker uses this to apply the subscriptions (including wildcards) resolved for the topic.
+     * @param subscribers with the subscriptions each has
+     */
+    public synchronized void setSubscribers(Map<Subscriber,Subscription[]> subscribers) {
+        for(Subscriber subscriber: new ArrayList<>(m_subscribers.keySet())) {
+            if(!subscribers.containsKey(subscriber)) {
+                unregister(subscriber);
+            }
+        }
+        for(Map.Entry<Subscriber,Subscription[]> entry: subscribers.entrySet()) {
+            register(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @param subscriber
+     * @return in fan-out mode, the number of messages handed to the subscriber's queue that it hasn't
+     * finished receiving - 0 otherwise
+     */
+    public synchronized long getSubscriberLag(Subscriber subscriber) {
+        SubscriberChannel channel = m_channelMap.get(subscriber);
+        return channel == null ? 0 : channel.getLag();
+    }
+
+    /**
+     * @param subscriber
+     * @return in fan-out mode, the number of messages dropped from the subscriber's queue by its
+     * OverflowPolicy - 0 otherwise
+     */
+    public synchronized long getSubscriberDroppedCount(Subscriber subscriber) {
+        SubscriberChannel channel = m_channelMap.get(subscriber);
+        return channel == null ? 0 : channel.getDroppedCount();
+    }
+
+    /**
+     * @param policy
+     * @return number of messages dropped or rejected by the given OverflowPolicy
+     */
+    public long getOverflowCount(OverflowPolicy policy) {
+        return m_overflowCounts.get(policy.ordinal());
+    }
+
+    /**
+     * @return number of messages that expired before delivery
+     */
+    public long getExpiredCount() {
+        return m_expiredCount.get();
+    }
+
+    /**
+     * @return number of queued messages a newer one with the same key replaced, on a conflated topic
+     */
+    public long getConflatedCount() {
+        return m_conflatedCount.get();
+    }
+
+    /**
+     * @return number of deliveries given up after a subscriber threw on every attempt - counted per subscriber
+     * and message
+     */
+    public long getFailedCount() {
+        return m_failedCount.get();
+    }
+
+    /**
+     * Snapshot the topic's instrumentation
+     * @param topic name to report it under
+     * @return the statistics, null if the topic isn't instrumented
+     */
+    public synchronized TopicStatistics getStatistics(String topic) {
+        if(m_subscriberMetrics == null) {
+            return null;
+        }
+        long dropped = 0;
+        for(int i = 0; i < m_overflowCounts.length(); i++) {
+            dropped += m_overflowCounts.get(i);
+        }
+        ArrayList<SubscriberStatistics> subscribers = new ArrayList<>(m_subscriberMetrics.size());
+        for(Map.Entry<Subscriber,SubscriberMetrics> entry: m_subscriberMetrics.entrySet()) {
+            SubscriberChannel channel = m_channelMap.get(entry.getKey());
+            subscribers.add(new SubscriberStatistics(entry.getKey(), entry.getValue().m_received.get(),
+                    channel == null ? 0 : channel.getLag(), channel == null ? 0 : channel.getDroppedCount(),
+                    entry.getValue().m_receiveTime.snapshot()));
+        }
+        return new TopicStatistics(topic, m_queue.size(), m_queue.claimed(), m_deliveredCount.get(), dropped,
+                m_expiredCount.get(), m_conflatedCount.get(), m_failedCount.get(), m_latency.snapshot(), subscribers);
+    }
+
+    /**
+     * Subscriber that also receives expired and failed messages - the broker uses this to republish to a
+     * dead-letter topic
+     * @param subscriber
+     */
+    void setDeadLetter(Subscriber subscriber) {
+        m_deadLetter = subscriber;
+    }
+
+    /**
+     * Stop delivery and release the Exchange from its Dispatcher. Queued messages are not delivered - with a
+     * Journal they are replayed on the next start. Their Deliveries fail.
+     */
+    public void shutdown() {
+        m_shutdown = true;
+        m_dispatcher.detach(this);
+        for(Priority priority: Priority.values()) {
+            long ticket;
+            while((ticket = m_queue.claimHead(priority)) >= 0) {
+                Object attachment = m_queue.detach(ticket);
+                Message message = m_queue.release(ticket);
+                Delivery delivery = settle(attachment);
+                if(message != null && delivery != null) {
+                    delivery.fail(new IllegalStateException("topic shut down, message " + message.getId()
+                            + " not delivered"));
+                }
+                if(message != null) {
+                    message.release();
+                }
+            }
+        }
+        for(SubscriberChannel channel: m_channels) {
+            channel.shutdown();
+        }
+        abandon(m_retries);
+        if(m_journal != null) {
+            m_journal.close();
+        }
+    }
+
+    /**
+     * Enter enqueue on behalf of a MessageBroker publisher - keeps the topic from being retired meanwhile
+     * @return false if the Exchange is retired - look the topic up again
+     */
+    boolean acquire() {
+        if(m_publishers.incrementAndGet() > 0) {
+            return true;
+        }
+        m_publishers.decrementAndGet();
+        return false;
+    }
+
+    void release() {
+        m_publishers.decrementAndGet();
+    }
+
+    synchronized boolean hasSubscribers() {
+        return !m_subscribers.isEmpty();
+    }
+
+    /**
+     * @return true if there are no subscribers, nothing queued, in delivery or waiting to be retried and
+     * nothing retained
+     */
+    synchronized boolean isIdle() {
+        return m_subscribers.isEmpty() && !m_replaying && m_queue.isEmpty() && !m_scheduled.get()
+                && m_blockedOn == null && m_retainedCount == 0 && m_redeliveries.get() == 0;
+    }
+
+    /**
+     * Shut down an idle topic to release its thread and buffers. The MessageBroker creates a new Exchange
+     * for the topic when it is used again.
+     * @return false if the topic is in use - nothing is changed
+     */
+    synchronized boolean retire() {
+        if(m_shutdown || !isIdle() || !m_publishers.compareAndSet(0, RETIRED)) {
+            return false;
+        }
+        // a publisher may have queued a message before the compareAndSet
+        if(!isIdle()) {
+            // undo - publishers turned away meanwhile retry and find it open again
+            m_publishers.addAndGet(-RETIRED);
+            return false;
+        }
+        shutdown();
+        return true;
+    }
+
+    /**
+     * Ask the Dispatcher to run this Exchange if there is something to deliver and it isn't already scheduled
+     */
+    void schedule() {
+        if(m_shutdown || m_scheduled.get() || m_blockedOn != null || !hasPending()) {
+            return;
+        }
+        if(m_scheduled.compareAndSet(false, true)) {
+            m_dispatcher.dispatch(this);
+        }
+    }
+
+    /**
+     * A fan-out channel made room - resume the batch that was waiting for it
+     * @param channel
+     */
+    void channelDrained(SubscriberChannel channel) {
+        if(m_blockedOn != channel) {
+            return;
+        }
+        m_blockedOn = null;
+        // the held batch is pending even if the queue is empty
+        if(!m_shutdown && m_scheduled.compareAndSet(false, true)) {
+            m_dispatcher.dispatch(this);
+        }
+    }
+
+    /**
+     * Hand a batch of messages to every subscriber's channel. If a channel is full under BLOCK, stop and
+     * resume at the same message and channel when it drains.
+     */
+    private void fanOut() {
+        if(m_shutdown) {
+            return;
+        }
+        if(m_batch.isEmpty()) {
+            DispatchTable table = m_dispatchTable;
+            if(m_welcome) {
+                table = welcome();
+            }
+            // if there are no subscribers, hold the messages until there is one
+            if(table.isEmpty() || drain() == 0) {
+                return;
+            }
+            m_fanOutTable = table;
+            m_fanOutMessage = 0;
+            m_fanOutChannel = 0;
+        }
+        for(; m_fanOutMessage < m_batch.size(); m_fanOutMessage++) {
+            Message message = m_batch.get(m_fanOutMessage);
+            DispatchTable.Route route = m_fanOutTable.route(message.getClass());
+            SubscriberChannel[] channels = route.m_channels;
+            // filtered channels follow - matching again on resume finds the same ones
+            int count = channels.length + m_fanOutTable.filter(message, route);
+            Delivery delivery = m_batchDeliveries[m_fanOutMessage];
+            if(m_fanOutChannel == 0) {
+                delivering(message);
+                // a reference for each channel, released after it delivers
+                message.retain(count);
+                long offset = m_batchOffsets[m_fanOutMessage];
+                if(count == 0) {
+                    // no subscriber takes this message
+                    acknowledge(offset);
+                    if(delivery != null) {
+                        delivery.complete();
+                    }
+                } else {
+                    if(delivery == null && offset >= 0) {
+                        // tracked anyway - the journal is acknowledged once the last channel has delivered it
+                        delivery = new Delivery(message);
+                        m_batchDeliveries[m_fanOutMessage] = delivery;
+                    }
+                    if(delivery != null) {
+                        // completes once every channel has delivered it
+                        delivery.m_remaining.set(count);
+                        if(offset >= 0) {
+                            delivery.journal(m_journal, offset);
+                        }
+                    }
+                }
+            }
+            for(; m_fanOutChannel < count; m_fanOutChannel++) {
+                SubscriberChannel channel = m_fanOutChannel < channels.length ? channels[m_fanOutChannel]
+                        : m_fanOutTable.m_channels[
+                                m_fanOutTable.m_filters.m_matched[m_fanOutChannel - channels.length]];
+                if(!channel.offer(message, delivery)) {
+                    m_blockedOn = channel;
+                    // the channel may have drained before it could see m_blockedOn
+                    if(!channel.offer(message, delivery)) {
+                        return;
+                    }
+                    m_blockedOn = null;
+                }
+            }
+            m_fanOutChannel = 0;
+            m_batchDeliveries[m_fanOutMessage] = null;
+            if(m_retained != null) {
+                keep(message);
+            }
+            message.release();
+        }
+        delivered(m_batch.size());
+        m_batch.clear();
+    }
+
+    /**
+     * Apply the OverflowPolicy to a message that didn't fit
+     * @param message
+     * @return the queue ticket claimed for the message or -1 if it was dropped
+     */
+    private long overflow(Message message) {
+        Priority priority = message.getPriority();
+        long ticket;
+        switch (m_overflowPolicy) {
+            case DROP_OLDEST:
+                do {
+                    long oldest = m_queue.claimHead(priority);
+                    if(oldest < 0) {
+                        continue;
+                    }
+                    long offset = m_queue.tag(oldest);
+                    Object attachment = m_queue.detach(oldest);
+                    Message evicted = m_queue.release(oldest);
+                    Delivery delivery = settle(attachment);
+                    if(evicted != null) {
+                        m_overflowCounts.incrementAndGet(OverflowPolicy.DROP_OLDEST.ordinal());
+                        acknowledge(offset);
+                        if(delivery != null) {
+                            delivery.fail(new MessageRejectedException("queue full, message " + evicted.getId()
+                                    + " dropped"));
+                        }
+                        evicted.release();
+                    }
+                } while((ticket = m_queue.claim(priority)) < 0);
+                return ticket;
+            case DROP_NEWEST:
+                m_overflowCounts.incrementAndGet(OverflowPolicy.DROP_NEWEST.ordinal());
+                return -1;
+            case REJECT:
+                m_overflowCounts.incrementAndGet(OverflowPolicy.REJECT.ordinal());
+                throw new MessageRejectedException("queue full, message " + message.getId() + " rejected");
+            default:
+                long deadline = System.nanoTime() + m_blockTimeoutNanos;
+                do {
+                    if(m_shutdown || (m_blockTimeoutNanos > 0 && System.nanoTime() - deadline >= 0)) {
+                        m_overflowCounts.incrementAndGet(OverflowPolicy.BLOCK.ordinal());
+                        return -1;
+                    }
+                    // make sure delivery is running and wait for room
+                    schedule();
+                    LockSupport.parkNanos(FULL_WAIT_NANOS);
+                } while((ticket = m_queue.claim(priority)) < 0);
+                return ticket;
+        }
+    }
+
+    /**
+     * Fill m_batch with messages to deliver, discarding expired ones. Lingers for a short batch only while a
+     * BatchSubscriber is registered - plain subscribers gain nothing from waiting.
+     * @return number of messages in the batch
+     */
+    private int drain() {
+        long deadline = 0;
+        while(m_batch.size() < m_batchSize && !m_shutdown) {
+            Message message = pollNext();
+            if(message == null) {
+                if(m_batch.isEmpty() || m_lingerNanos <= 0 || m_dispatchTable.m_batchSubscribers.length == 0) {
+                    break;
+                }
+                long now = System.nanoTime();
+                if(deadline == 0) {
+                    deadline = now + m_lingerNanos;
+                } else if(now - deadline >= 0) {
+                    break;
+                }
+                LockSupport.parkNanos(Math.min(FULL_WAIT_NANOS, deadline - now));
+                continue;
+            }
+            // the timer may not have fired yet
+            if(isExpired(message)) {
+                expired(message, m_delivery);
+                acknowledge(m_deliveryOffset);
+                continue;
+            }
+            m_batchOffsets[m_batch.size()] = m_deliveryOffset;
+            m_batchDeliveries[m_batch.size()] = m_delivery;
+            m_batch.add(message);
+        }
+        return m_batch.size();
+    }
+
+    /**
+     * Deliver the batch to a BatchSubscriber - only the messages it accepts
+     * @param subscriber
+     * @param subscriptions
+     */
+    private void deliverBatch(BatchSubscriber subscriber, Subscription[] subscriptions,
+                              SubscriberMetrics metrics) {
+        if(subscriptions.length == 1 && subscriptions[0].equals(Subscription.ALL)) {
+            attemptBatch(subscriber, metrics, m_batchView, null, m_positions);
+            return;
+        }
+        for(int i = 0; i < m_batch.size(); i++) {
+            Message message = m_batch.get(i);
+            if(Subscription.accepts(subscriptions, message)) {
+                m_filteredPositions[m_filtered.size()] = i;
+                m_filtered.add(message);
+            }
+        }
+        if(!m_filtered.isEmpty()) {
+            attemptBatch(subscriber, metrics, m_filteredView, null, m_filteredPositions);
+            m_filtered.clear();
+        }
+    }
+
+    /**
+     * On an instrumented topic, if the message was sampled record how long it was queued
+     * @param message about to be delivered
+     * @return the time now if the message was sampled - its receive() calls are timed from here - otherwise 0
+     */
+    private long delivering(Message message) {
+        if(m_latency == null || message.m_enqueued == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        m_latency.record(now - message.m_enqueued);
+        return now;
+    }
+
+    private void delivered(int count) {
+        if(m_deliveredCount != null) {
+            // single writer - no need for an atomic add
+            m_deliveredCount.lazySet(m_deliveredCount.get() + count);
+        }
+    }
+
+    /**
+     * Deliver to a subscriber, counting it and timing it if the message is sampled
+     * @param subscriber
+     * @param metrics null if not instrumented
+     * @param message
+     * @param start when timing started, 0 if the message isn't sampled
+     * @return when the subscriber returned - the start for the next subscriber - or 0 if not timed
+     */
+    static long receive(Subscriber subscriber, SubscriberMetrics metrics, Message message, long start) {
+        subscriber.receive(message);
+        if(metrics == null) {
+            return 0;
+        }
+        metrics.received(1);
+        if(start == 0) {
+            return 0;
+        }
+        long end = System.nanoTime();
+        metrics.m_receiveTime.record(end - start);
+        return end;
+    }
+
+    /**
+     * Deliver a batch, counting it and timing every call - one per batch costs little
+     * @param subscriber
+     * @param metrics null if not instrumented
+     * @param batch
+     */
+    static void receiveBatch(BatchSubscriber subscriber, SubscriberMetrics metrics, List<Message> batch) {
+        if(metrics == null) {
+            subscriber.receiveBatch(batch);
+            return;
+        }
+        long start = System.nanoTime();
+        subscriber.receiveBatch(batch);
+        metrics.m_receiveTime.record(System.nanoTime() - start);
+        metrics.received(batch.size());
+    }
+
+    /**
+     * Deliver to a subscriber, retrying later if it throws
+     * @param subscriber
+     * @param metrics null if not instrumented
+     * @param message
+     * @param start when timing started, 0 if the message isn't sampled
+     * @param channel the subscriber's channel in fan-out mode, otherwise null
+     * @param position where the message is in the channel's or Exchange's batch, -1 if it isn't a batch message
+     * @return when the subscriber returned, or 0 if not timed or it threw
+     */
+    long attempt(Subscriber subscriber, SubscriberMetrics metrics, Message message, long start,
+                 SubscriberChannel channel, int position) {
+        try {
+            return receive(subscriber, metrics, message, start);
+        } catch (RuntimeException e) {
+            failed(new Redelivery(subscriber, metrics, channel, Collections.singletonList(message),
+                    new Delivery[] {track(channel, position)}), e);
+            return 0;
+        }
+    }
+
+    /**
+     * Deliver a batch, retrying the whole batch later if the subscriber throws
+     * @param subscriber
+     * @param metrics null if not instrumented
+     * @param batch
+     * @param channel the subscriber's channel in fan-out mode, otherwise null
+     * @param positions where each message is in the channel's or Exchange's batch, null if they aren't batch
+     *                  messages
+     */
+    void attemptBatch(BatchSubscriber subscriber, SubscriberMetrics metrics, List<Message> batch,
+                      SubscriberChannel channel, int[] positions) {
+        try {
+            receiveBatch(subscriber, metrics, batch);
+        } catch (RuntimeException e) {
+            Delivery[] deliveries = new Delivery[batch.size()];
+            for(int i = 0; i < deliveries.length; i++) {
+                deliveries[i] = track(channel, positions == null ? -1 : positions[i]);
+            }
+            // the batch list is reused
+            failed(new Redelivery(subscriber, metrics, channel, new ArrayList<>(batch), deliveries), e);
+        }
+    }
+
+    /**
+     * A batch message's delivery failed - its Delivery now waits for the retries or dead-lettering as well.
+     * A journaled message without a Delivery gets one, which acknowledges the journal in place of the batch.
+     * @param channel the subscriber's channel in fan-out mode, otherwise null
+     * @param position where the message is in the channel's or Exchange's batch, -1 if it isn't a batch message
+     * @return the Delivery, or null if there is nothing to track
+     */
+    private Delivery track(SubscriberChannel channel, int position) {
+        if(position < 0) {
+            return null;
+        }
+        Delivery delivery;
+        if(channel != null) {
+            // the Exchange tracks journaled messages before handing them over
+            delivery = channel.m_batchDeliveries[position];
+        } else {
+            delivery = m_batchDeliveries[position];
+            long offset = m_batchOffsets[position];
+            if(offset >= 0) {
+                if(delivery == null) {
+                    delivery = new Delivery(m_batch.get(position));
+                    m_batchDeliveries[position] = delivery;
+                }
+                delivery.journal(m_journal, offset);
+                m_batchOffsets[position] = -1;
+            }
+        }
+        if(delivery != null) {
+            delivery.m_remaining.incrementAndGet();
+        }
+        return delivery;
+    }
+
+    /**
+     * A delivery threw - schedule its next attempt after a backoff, or after the last attempt give its messages
+     * to the dead-letter subscriber. The redelivery holds a reference to each message meanwhile.
+     * @param redelivery
+     * @param e what the subscriber threw
+     */
+    private void failed(Redelivery redelivery, RuntimeException e) {
+        // until its first retry is scheduled the messages are the batch's
+        boolean held = redelivery.m_attempts > 0;
+        redelivery.m_attempts++;
+        if(redelivery.m_attempts < m_maxDeliveryAttempts && m_timingWheel != null && !m_shutdown) {
+            if(!held) {
+                for(Message message: redelivery.m_messages) {
+                    message.retain();
+                }
+                m_redeliveries.incrementAndGet();
+            }
+            long delay = Math.min(m_maxRetryBackoff,
+                    m_retryBackoff << Math.min(redelivery.m_attempts - 1, 30));
+            m_timingWheel.schedule(redelivery, delay);
+            return;
+        }
+        e.printStackTrace();
+        m_failedCount.addAndGet(redelivery.m_messages.size());
+        redelivery.finish(e);
+        if(m_deadLetter != null) {
+            for(Message message: redelivery.m_messages) {
+                try {
+                    m_deadLetter.receive(message);
+                } catch (RuntimeException rejected) {
+                    rejected.printStackTrace();
+                }
+            }
+        }
+        if(held) {
+            redelivery.release();
+        }
+    }
+
+    /**
+     * Make the retries that are due before the next batch
+     * @param table current subscribers - retries for any that have unsubscribed are dropped
+     */
+    private void redeliver(DispatchTable table) {
+        List<Subscriber> subscribers = Arrays.asList(table.m_subscribers);
+        Redelivery redelivery;
+        while(!m_shutdown && (redelivery = m_retries.poll()) != null) {
+            if(subscribers.contains(redelivery.m_subscriber)) {
+                redelivery.attempt();
+            } else {
+                // unsubscribed - nothing left to deliver to
+                redelivery.release();
+                redelivery.finish(null);
+            }
+        }
+    }
+
+    /**
+     * Drop the due retries once nothing will deliver them - the subscriber has unsubscribed, or the topic has shut
+     * down, leaving the messages unacknowledged in the journal
+     * @param retries
+     */
+    void abandon(ConcurrentLinkedQueue<Redelivery> retries) {
+        Redelivery redelivery;
+        while((redelivery = retries.poll()) != null) {
+            redelivery.release();
+            if(!m_shutdown) {
+                redelivery.finish(null);
+                continue;
+            }
+            for(Delivery delivery: redelivery.m_deliveries) {
+                if(delivery != null) {
+                    delivery.fail(new IllegalStateException("topic shut down, message "
+                            + delivery.getMessage().getId() + " not delivered"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Take the next message to deliver - messages replayed from the journal first. Sets m_deliveryOffset
+     * and m_delivery.
+     * @return the message or null if the queue is empty
+     */
+    private Message pollNext() {
+        if(m_replaying) {
+            m_deliveryOffset = m_journal.getReplayOffset();
+            m_delivery = null;
+            Message message = m_journal.replay();
+            if(message != null) {
+                return message;
+            }
+            m_replaying = false;
+        }
+        long ticket;
+        while((ticket = m_queue.claimNext()) >= 0) {
+            m_deliveryOffset = m_queue.tag(ticket);
+            // detach before release() frees the slot for reuse
+            Object attachment = m_queue.detach(ticket);
+            Message message = m_queue.release(ticket);
+            m_delivery = settle(attachment);
+            if(message != null) {
+                if(m_conflated != null) {
+                    forget(message, ticket);
+                }
+                return message;
+            }
+            // expired while queued - skip, the timer has failed its Delivery
+        }
+        return null;
+    }
+
+    /**
+     * Cancel the expiry timer of a message taken from the queue
+     * @param attachment the message's slot attachment - an Expiry, a Delivery or null
+     * @return the message's Delivery or null
+     */
+    private Delivery settle(Object attachment) {
+        if(attachment instanceof Expiry) {
+            Expiry expiry = (Expiry) attachment;
+            expiry.cancel();
+            return expiry.m_delivery;
+        }
+        return (Delivery) attachment;
+    }
+
+    /**
+     * Write a message to the journal, if there is one
+     * @param message
+     * @return the journal offset or -1
+     */
+    private long append(Message message) {
+        if(m_journal == null) {
+            return -1;
+        }
+        try {
+            return m_journal.append(message);
+        } catch (RuntimeException e) {
+            // still deliver it, it just won't survive a restart
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    private void acknowledge(long offset) {
+        if(m_journal != null && offset >= 0) {
+            m_journal.acknowledge(offset);
+        }
+    }
+
+    /**
+     * Retain a delivered message for subscribers that register later, in place of the last one with its key
+     * @param message
+     */
+    private void keep(Message message) {
+        Object key = m_retentionProperty == null ? null : message.getProperty(m_retentionProperty);
+        message.retain();
+        // re-inserted, so the map stays in update order
+        Message previous = m_retained.remove(key);
+        m_retained.put(key, message);
+        if(previous != null) {
+            previous.release();
+        } else if(m_retained.size() > m_retentionCapacity) {
+            Iterator<Message> oldest = m_retained.values().iterator();
+            oldest.next().release();
+            oldest.remove();
+        }
+        m_retainedCount = m_retained.size();
+    }
+
+    /**
+     * Give the retained messages to the subscribers registered since the last batch. Runs at the start of a
+     * batch, so they get them before anything delivered with a table that includes them.
+     * @return the table to deliver the next batch with
+     */
+    private DispatchTable welcome() {
+        DispatchTable table;
+        Subscriber[] joined;
+        synchronized (this) {
+            table = m_dispatchTable;
+            joined = m_joined.toArray(new Subscriber[m_joined.size()]);
+            m_joined.clear();
+            m_welcome = false;
+        }
+        for(Subscriber subscriber: joined) {
+            int index = Arrays.asList(table.m_subscribers).indexOf(subscriber);
+            SubscriberChannel channel = table.m_channels[index];
+            ArrayList<Message> batch = null;
+            Iterator<Message> retained = m_retained.values().iterator();
+            while(retained.hasNext()) {
+                Message message = retained.next();
+                if(isExpired(message)) {
+                    retained.remove();
+                    message.release();
+                    continue;
+                }
+                if(!Subscription.accepts(table.m_subscriptions[index], message)) {
+                    continue;
+                }
+                if(channel != null) {
+                    message.retain();
+                    if(!channel.offer(message, null)) {
+                        // more retained than the new channel holds
+                        message.release();
+                    }
+                } else if(subscriber instanceof BatchSubscriber) {
+                    if(batch == null) {
+                        batch = new ArrayList<>();
+                    }
+                    batch.add(message);
+                } else {
+                    attempt(subscriber, table.m_metrics[index], message, 0, null, -1);
+                }
+            }
+            if(batch != null) {
+                attemptBatch((BatchSubscriber) subscriber, table.m_metrics[index], Collections.unmodifiableList(batch),
+                        null, null);
+            }
+        }
+        m_retainedCount = m_retained.size();
+        return table;
+    }
+
+    /**
+     * @param message
+     * @return the key the message conflates by, null if it has none
+     */
+    private Object conflationKey(Message message) {
+        return m_conflationProperty == null ? message.getId() : message.getProperty(m_conflationProperty);
+    }
+
+    /**
+     * Put a message in place of the queued message with the same key, if there is one. The replaced message
+     * keeps its expiry timer, which then finds nothing to remove - the replacement is checked when delivered.
+     * @param key
+     * @param message
+     * @return true if the message took the queued one's place
+     */
+    private boolean conflate(Object key, Message message) {
+        Long ticket = m_conflated.get(key);
+        if(ticket == null) {
+            return false;
+        }
+        Message previous = m_queue.peek(ticket);
+        // the slot may have been delivered and reused since, and not necessarily for the same key
+        if(previous == null || !key.equals(conflationKey(previous))) {
+            return false;
+        }
+        if(m_latency != null) {
+            // not sampled - the queued time would be the predecessor's
+            message.m_enqueued = 0;
+        }
+        if(!m_queue.replace(ticket, previous, message)) {
+            return false;
+        }
+        m_conflatedCount.incrementAndGet();
+        previous.release();
+        return true;
+    }
+
+    /**
+     * Drop a delivered message's key - unless a newer message for it is already queued
+     * @param message
+     * @param ticket
+     */
+    private void forget(Message message, long ticket) {
+        Object key = conflationKey(message);
+        if(key != null) {
+            m_conflated.remove(key, ticket);
+        }
+    }
+
+    private long getTimeToLive(Message message) {
+        return message.getTimeToLive() > 0 ? message.getTimeToLive() : m_timeToLive;
+    }
+
+    private boolean isExpired(Message message) {
+        long timeToLive = getTimeToLive(message);
+        return timeToLive > 0 && System.currentTimeMillis() - message.getTimestamp() >= timeToLive;
+    }
+
+    private void expired(Message message, Delivery delivery) {
+        m_expiredCount.incrementAndGet();
+        // called on the timer thread - a throwing callback mustn't stop the wheel or leak the message
+        if(m_expirySubscriber != null) {
+            try {
+                m_expirySubscriber.receive(message);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        if(m_deadLetter != null) {
+            try {
+                m_deadLetter.receive(message);
+            } catch (RuntimeException rejected) {
+                rejected.printStackTrace();
+            }
+        }
+        if(delivery != null) {
+            delivery.fail(new MessageExpiredException("message " + message.getId() + " expired"));
+        }
+        message.release();
+    }
+
+    private boolean hasPending() {
+        return !m_retries.isEmpty() || !m_dispatchTable.isEmpty() && (m_replaying || m_welcome || !m_queue.isEmpty());
     }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The FilterIndex finds the filtered subscriptions a message matches without testing every filter.
+ * Each filter is filed under its anchor term (see MessageFilter.anchor): equality anchors in a hash map
+ * per attribute keyed by value, prefix anchors in a character trie per attribute. A message looks up its
+ * id, type and each indexed property once - a hash lookup plus a walk of at most the value's length -
+ * and only the filters found there are tested in full.
+ * Built once per DispatchTable; match() is called by the delivery thread only.
+ */
+class FilterIndex {
+    static class Entry {
+        final int m_subscriber; // index in the DispatchTable
+        final Subscription m_subscription;
+
+        Entry(int subscriber, Subscription subscription) {
+            m_subscriber = subscriber;
+            m_subscription = subscription;
+        }
+    }
+
+    static class PrefixNode {
+        HashMap<Character,PrefixNode> m_children;
+        ArrayList<Entry> m_entries;
+    }
+
+    /**
+     * The filters anchored on one message attribute - the id, the type or a property
+     */
+    static class Attribute {
+        final HashMap<String,ArrayList<Entry>> m_equals = new HashMap<>();
+        PrefixNode m_prefixes;
+
+        void add(MessageFilter.Term anchor, Entry entry) {
+            if(!anchor.m_prefix) {
+                ArrayList<Entry> entries = m_equals.get(anchor.m_value);
+                if(entries == null) {
+                    entries = new ArrayList<>();
+                    m_equals.put(anchor.m_value, entries);
+                }
+                entries.add(entry);
+                return;
+            }
+            if(m_prefixes == null) {
+                m_prefixes = new PrefixNode();
+            }
+            PrefixNode node = m_prefixes;
+            for(int i = 0; i < anchor.m_value.length(); i++) {
+                if(node.m_children == null) {
+                    node.m_children = new HashMap<>();
+                }
+                Character c = anchor.m_value.charAt(i);
+                PrefixNode child = node.m_children.get(c);
+                if(child == null) {
+                    child = new PrefixNode();
+                    node.m_children.put(c, child);
+                }
+                node = child;
+            }
+            if(node.m_entries == null) {
+                node.m_entries = new ArrayList<>();
+            }
+            node.m_entries.add(entry);
+        }
+    }
+
+    private final Attribute m_id = new Attribute();
+    private final Attribute m_type = new Attribute();
+    private final HashMap<String,Attribute> m_propertyMap = new HashMap<>();
+    private String[] m_propertyNames = new String[0];
+    private Attribute[] m_properties = new Attribute[0];
+    private int m_size;
+    // match state - delivery thread only
+    private final int[] m_stamps; // per subscriber, == m_epoch once matched by the current message
+    private int m_epoch;
+    final int[] m_matched; // subscriber indexes matched by the last message
+    int m_matchedCount;
+
+    FilterIndex(int subscribers) {
+        m_stamps = new int[subscribers];
+        m_matched = new int[subscribers];
+    }
+
+    /**
+     * @param subscriber index in the DispatchTable
+     * @param subscription with a non-empty filter
+     */
+    void add(int subscriber, Subscription subscription) {
+        MessageFilter.Term anchor = subscription.m_filter.anchor();
+        Entry entry = new Entry(subscriber, subscription);
+        switch (anchor.m_field) {
+            case ID:
+                m_id.add(anchor, entry);
+                break;
+            case TYPE:
+                m_type.add(anchor, entry);
+                break;
+            default:
+                Attribute attribute = m_propertyMap.get(anchor.m_property);
+                if(attribute == null) {
+                    attribute = new Attribute();
+                    m_propertyMap.put(anchor.m_property, attribute);
+                    m_propertyNames = Arrays.copyOf(m_propertyNames, m_propertyNames.length + 1);
+                    m_propertyNames[m_propertyNames.length - 1] = anchor.m_property;
+                    m_properties = Arrays.copyOf(m_properties, m_properties.length + 1);
+                    m_properties[m_properties.length - 1] = attribute;
+                }
+                attribute.add(anchor, entry);
+        }
+        m_size++;
+    }
+
+    boolean isEmpty() {
+        return m_size == 0;
+    }
+
+    /**
+     * Find the subscribers with a filtered subscription that accepts the message - each once, in m_matched
+     * @param message
+     * @param skip per subscriber, true to leave it out (it receives the message anyway), or null
+     * @return the number of subscribers matched
+     */
+    int match(Message message, boolean[] skip) {
+        m_matchedCount = 0;
+        if(++m_epoch == 0) {
+            Arrays.fill(m_stamps, 0);
+            m_epoch = 1;
+        }
+        collect(m_id, message.getId(), message, skip);
+        collect(m_type, message.getType(), message, skip);
+        for(int i = 0; i < m_properties.length; i++) {
+            collect(m_properties[i], message.getProperty(m_propertyNames[i]), message, skip);
+        }
+        return m_matchedCount;
+    }
+
+    private void collect(Attribute attribute, String value, Message message, boolean[] skip) {
+        if(value == null) {
+            return;
+        }
+        ArrayList<Entry> entries = attribute.m_equals.isEmpty() ? null : attribute.m_equals.get(value);
+        if(entries != null) {
+            test(entries, message, skip);
+        }
+        // every node on the value's path is a prefix of it
+        PrefixNode node = attribute.m_prefixes;
+        for(int i = 0; node != null; i++) {
+            if(node.m_entries != null) {
+                test(node.m_entries, message, skip);
+            }
+            if(i == value.length() || node.m_children == null) {
+                break;
+            }
+            node = node.m_children.get(value.charAt(i));
+        }
+    }
+
+    private void test(ArrayList<Entry> entries, Message message, boolean[] skip) {
+        for(int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            int subscriber = entry.m_subscriber;
+            if((skip != null && skip[subscriber]) || m_stamps[subscriber] == m_epoch) {
+                continue;
+            }
+            if(entry.m_subscription.accepts(message)) {
+                m_stamps[subscriber] = m_epoch;
+                m_matched[m_matchedCount++] = subscriber;
+            }
+        }
+    }
+}
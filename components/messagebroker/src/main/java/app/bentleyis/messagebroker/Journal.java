@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The Journal persists a topic's messages so they survive application restarts.
+ * Messages are appended to memory-mapped segment files - each record is a length followed by the
+ * MessageCodec encoding, written directly into the mapping. Segments roll when full.
+ * Every record has an offset (its sequence number in the topic). Once a message has been handled (delivered,
+ * expired or dropped) its offset is acknowledged; the consumer offset - everything below it is handled - is
+ * kept in a small mapped file. Segments entirely below the consumer offset are deleted.
+ * Nothing is forced to disk per message: mapped pages are forced together every commit interval (group commit).
+ * On open, messages from the consumer offset to the end of the journal are replayed.
+ */
+public class Journal {
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    public static final long DEFAULT_COMMIT_INTERVAL = 1000; // milliseconds
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String OFFSET_FILE = "consumer.offset";
+    private static final int HEADER = 4; // record length, 0 marks the end of a segment
+    private static final int ACK_WINDOW = 65536; // acknowledged offsets tracked before the window slides
+
+    private static ScheduledExecutorService s_flusher;
+
+    /**
+     * One mapped segment file
+     */
+    static class Segment {
+        final long m_base; // offset of the first record
+        final File m_file;
+        final FileChannel m_channel;
+        final MappedByteBuffer m_buffer;
+        int m_writePosition;
+        long m_next; // offset after the last record
+        boolean m_dirty;
+
+        Segment(File file, long base, int size) throws IOException {
+            m_base = base;
+            m_file = file;
+            m_channel = new RandomAccessFile(file, "rw").getChannel();
+            m_buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, m_channel.size()));
+            // find the end of the records
+            m_next = base;
+            while(m_writePosition + HEADER <= m_buffer.capacity()) {
+                int length = m_buffer.getInt(m_writePosition);
+                if(length <= 0 || m_writePosition + HEADER + length > m_buffer.capacity()) {
+                    break;
+                }
+                m_writePosition += HEADER + length;
+                m_next++;
+            }
+        }
+
+        /**
+         * @return false if the message didn't fit
+         */
+        boolean append(Message message, MessageCodec codec) {
+            int start = m_writePosition;
+            if(start + HEADER >= m_buffer.capacity()) {
+                return false;
+            }
+            m_buffer.limit(m_buffer.capacity());
+            m_buffer.position(start + HEADER);
+            try {
+                codec.encode(message, m_buffer);
+            } catch (BufferOverflowException e) {
+                return false;
+            }
+            int length = m_buffer.position() - start - HEADER;
+            if(length <= 0) {
+                throw new IllegalStateException("codec wrote no data for message " + message.getId());
+            }
+            // the length is written last - a record is only visible once complete
+            m_buffer.putInt(start, length);
+            m_writePosition = start + HEADER + length;
+            m_next++;
+            m_dirty = true;
+            return true;
+        }
+
+        void delete() {
+            close();
+            m_file.delete();
+        }
+
+        void close() {
+            try {
+                m_channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private final File m_directory;
+    private final MessageCodec m_codec;
+    private final int m_segmentSize;
+    private final LinkedList<Segment> m_segments = new LinkedList<>();
+    private Segment m_active;
+    private long m_nextOffset;
+    private final FileChannel m_offsetChannel;
+    private final MappedByteBuffer m_offsetBuffer;
+    private long m_committed;
+    private BitSet m_acknowledged = new BitSet();
+    private long m_acknowledgedBase;
+    private ScheduledFuture<?> m_flushTask;
+
+    // replay - delivery thread only
+    private final LinkedList<Segment> m_replaySegments = new LinkedList<>();
+    private final long m_replayEnd;
+    private long m_replayOffset;
+    private ByteBuffer m_replayBuffer;
+
+    /**
+     * Open (or create) the journal in a directory - one directory per topic
+     * @param directory
+     * @param codec encodes the topic's messages
+     * @param segmentSize bytes per segment file
+     * @param commitInterval milliseconds between forcing writes to disk, 0 leaves it to the OS
+     * @throws IOException
+     */
+    public Journal(File directory, MessageCodec codec, int segmentSize, long commitInterval) throws IOException {
+        m_directory = directory;
+        m_codec = codec;
+        m_segmentSize = segmentSize;
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create journal directory " + directory);
+        }
+
+        m_offsetChannel = new RandomAccessFile(new File(directory, OFFSET_FILE), "rw").getChannel();
+        m_offsetBuffer = m_offsetChannel.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        m_committed = m_offsetBuffer.getLong(0);
+        m_acknowledgedBase = m_committed;
+
+        open();
+
+        // replay everything from the consumer offset up to what was written before this start
+        m_replayEnd = m_nextOffset;
+        m_replayOffset = m_committed;
+        m_replaySegments.addAll(m_segments);
+        seekReplay();
+
+        // never append after records from a previous run - the end of the last segment may be partially written
+        Segment last = m_segments.peekLast();
+        if(last != null && last.m_next == m_nextOffset && last.m_writePosition == 0) {
+            m_segments.removeLast();
+            m_replaySegments.remove(last);
+            last.delete();
+        }
+        roll();
+
+        if(commitInterval > 0) {
+            m_flushTask = getFlusher().scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Append a message
+     * @param message
+     * @return the message's offset
+     * @throws IllegalArgumentException if the message is larger than a segment
+     */
+    public synchronized long append(Message message) {
+        if(!m_active.append(message, m_codec)) {
+            try {
+                roll();
+            } catch (IOException e) {
+                throw new IllegalStateException("unable to create journal segment", e);
+            }
+            if(!m_active.append(message, m_codec)) {
+                throw new IllegalArgumentException("message " + message.getId() + " is larger than a journal segment");
+            }
+        }
+        return m_nextOffset++;
+    }
+
+    /**
+     * Mark a message as handled. The consumer offset advances over every contiguous handled offset.
+     * @param offset
+     */
+    public synchronized void acknowledge(long offset) {
+        if(offset < m_committed) {
+            return;
+        }
+        m_acknowledged.set((int) (offset - m_acknowledgedBase));
+        long committed = m_committed;
+        while(m_acknowledged.get((int) (committed - m_acknowledgedBase))) {
+            committed++;
+        }
+        if(committed == m_committed) {
+            return;
+        }
+        m_committed = committed;
+        m_offsetBuffer.putLong(0, committed);
+        int handled = (int) (committed - m_acknowledgedBase);
+        if(handled > ACK_WINDOW) {
+            // slide the window so the bit set doesn't grow with the topic's lifetime
+            m_acknowledged = m_acknowledged.get(handled, Math.max(handled, m_acknowledged.length()));
+            m_acknowledgedBase = committed;
+        }
+    }
+
+    /**
+     * @return offset below which every message has been handled
+     */
+    public synchronized long getCommittedOffset() {
+        return m_committed;
+    }
+
+    /**
+     * @return offset the next appended message gets
+     */
+    public synchronized long getNextOffset() {
+        return m_nextOffset;
+    }
+
+    /**
+     * @return the offset of the next message replay() returns, or -1 once replay is complete
+     */
+    long getReplayOffset() {
+        return m_replayOffset < m_replayEnd ? m_replayOffset : -1;
+    }
+
+    /**
+     * Read the next message left unhandled by a previous run - delivery thread only
+     * @return the message or null once replay is complete
+     */
+    Message replay() {
+        while(m_replayOffset < m_replayEnd && m_replayBuffer != null) {
+            int position = m_replayBuffer.position();
+            int length = position + HEADER <= m_replayBuffer.capacity() ? m_replayBuffer.getInt(position) : 0;
+            if(length <= 0 || position + HEADER + length > m_replayBuffer.capacity()) {
+                nextReplaySegment();
+                continue;
+            }
+            m_replayBuffer.limit(position + HEADER + length);
+            m_replayBuffer.position(position + HEADER);
+            Message message = null;
+            try {
+                message = m_codec.decode(m_replayBuffer);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            m_replayBuffer.limit(m_replayBuffer.capacity());
+            m_replayBuffer.position(position + HEADER + length);
+            long offset = m_replayOffset++;
+            if(message != null) {
+                return message;
+            }
+            // undecodable - nothing can deliver it
+            acknowledge(offset);
+        }
+        m_replaySegments.clear();
+        m_replayBuffer = null;
+        return null;
+    }
+
+    /**
+     * Force written records and the consumer offset to disk, then delete fully consumed segments
+     */
+    public synchronized void flush() {
+        for(Segment segment: m_segments) {
+            if(segment.m_dirty) {
+                segment.m_buffer.force();
+                segment.m_dirty = false;
+            }
+        }
+        m_offsetBuffer.force();
+        compact();
+    }
+
+    /**
+     * Flush and release the journal's files
+     */
+    public synchronized void close() {
+        if(m_flushTask != null) {
+            m_flushTask.cancel(false);
+        }
+        flush();
+        for(Segment segment: m_segments) {
+            segment.close();
+        }
+        m_segments.clear();
+        try {
+            m_offsetChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return number of segment files
+     */
+    synchronized int getSegmentCount() {
+        return m_segments.size();
+    }
+
+    private void open() throws IOException {
+        File[] files = m_directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if(files == null) {
+            files = new File[0];
+        }
+        // zero-padded names sort by base offset
+        Arrays.sort(files);
+        for(File file: files) {
+            String name = file.getName();
+            long base;
+            try {
+                base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            m_segments.add(new Segment(file, base, m_segmentSize));
+        }
+        Segment last = m_segments.peekLast();
+        m_nextOffset = Math.max(last == null ? 0 : last.m_next, m_committed);
+        compact();
+    }
+
+    private void roll() throws IOException {
+        File file = new File(m_directory, String.format("%020d", m_nextOffset) + SEGMENT_SUFFIX);
+        m_active = new Segment(file, m_nextOffset, m_segmentSize);
+        m_segments.add(m_active);
+    }
+
+    /**
+     * Delete segments whose messages have all been handled
+     */
+    private void compact() {
+        while(m_segments.size() > 1) {
+            Segment oldest = m_segments.getFirst();
+            if(oldest == m_active || oldest.m_next > m_committed) {
+                break;
+            }
+            m_segments.removeFirst();
+            oldest.delete();
+        }
+    }
+
+    /**
+     * Position the replay reader at the consumer offset
+     */
+    private void seekReplay() {
+        while(!m_replaySegments.isEmpty() && m_replaySegments.getFirst().m_next <= m_replayOffset) {
+            m_replaySegments.removeFirst();
+        }
+        if(m_replaySegments.isEmpty() || m_replayOffset >= m_replayEnd) {
+            return;
+        }
+        Segment segment = m_replaySegments.getFirst();
+        m_replayBuffer = segment.m_buffer.duplicate();
+        m_replayBuffer.position(0);
+        for(long offset = segment.m_base; offset < m_replayOffset; offset++) {
+            int position = m_replayBuffer.position();
+            m_replayBuffer.position(position + HEADER + m_replayBuffer.getInt(position));
+        }
+    }
+
+    private void nextReplaySegment() {
+        if(!m_replaySegments.isEmpty()) {
+            m_replaySegments.removeFirst();
+        }
+        if(m_replaySegments.isEmpty()) {
+            m_replayBuffer = null;
+            m_replayOffset = m_replayEnd;
+            return;
+        }
+        m_replayBuffer = m_replaySegments.getFirst().m_buffer.duplicate();
+        m_replayBuffer.position(0);
+    }
+
+    private static synchronized ScheduledExecutorService getFlusher() {
+        if(s_flusher == null) {
+            s_flusher = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("JournalFlush-"));
+        }
+        return s_flusher;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The queue behind an Exchange - one RingBufferQueue lane per Priority.
+ * The consumer drains lanes by weighted round-robin: in each round a lane may deliver up to its weight in
+ * messages, higher lanes first. High priority messages overtake the backlog while lower lanes still get
+ * their share, so they are never starved.
+ *
+ * A ticket identifies a message's lane and position: (position << LANE_BITS) | lane.
+ * The NORMAL lane is created up front; others on first use, so topics without priorities pay for one lane.
+ */
+class LaneQueue {
+    static final int LANE_BITS = 2;
+    static final int LANE_MASK = (1 << LANE_BITS) - 1;
+    private static final int LANES = Priority.values().length;
+
+    private final int m_capacity;
+    private final boolean m_attachments;
+    private final boolean m_tags;
+    private final AtomicReferenceArray<RingBufferQueue> m_lanes = new AtomicReferenceArray<>(LANES);
+    private final int[] m_weights;
+    private final int[] m_credits; // consumer only
+
+    /**
+     * @param capacity capacity of each lane
+     * @param attachments true to allow an attachment per queued message
+     * @param weights messages each lane may deliver per round, indexed by Priority ordinal
+     */
+    LaneQueue(int capacity, boolean attachments, int[] weights) {
+        this(capacity, attachments, false, weights);
+    }
+
+    /**
+     * @param capacity capacity of each lane
+     * @param attachments true to allow an attachment per queued message
+     * @param tags true to allow a tag per queued message
+     * @param weights messages each lane may deliver per round, indexed by Priority ordinal
+     */
+    LaneQueue(int capacity, boolean attachments, boolean tags, int[] weights) {
+        m_capacity = capacity;
+        m_attachments = attachments;
+        m_tags = tags;
+        m_weights = weights.clone();
+        m_credits = weights.clone();
+        lane(Priority.NORMAL.ordinal());
+    }
+
+    /**
+     * Claim a position at the tail of the lane for the priority
+     * @param priority
+     * @return ticket or -1 if the lane is full
+     */
+    long claim(Priority priority) {
+        int lane = priority.ordinal();
+        long position = lane(lane).claim();
+        return position < 0 ? -1 : ticket(position, lane);
+    }
+
+    void publish(long ticket, Message message, Object attachment) {
+        laneOf(ticket).publish(position(ticket), message, attachment);
+    }
+
+    void publish(long ticket, Message message, Object attachment, long tag) {
+        laneOf(ticket).publish(position(ticket), message, attachment, tag);
+    }
+
+    /**
+     * Claim the next message to deliver by weighted round-robin - single consumer only
+     * @return ticket or -1 if every lane is empty
+     */
+    long claimNext() {
+        for(int pass = 0; pass < 2; pass++) {
+            for(int lane = LANES - 1; lane >= 0; lane--) {
+                if(m_credits[lane] <= 0) {
+                    continue;
+                }
+                RingBufferQueue queue = m_lanes.get(lane);
+                long position = queue == null ? -1 : queue.claimHead();
+                if(position >= 0) {
+                    m_credits[lane]--;
+                    return ticket(position, lane);
+                }
+            }
+            // every lane with messages has used its share - start a new round
+            System.arraycopy(m_weights, 0, m_credits, 0, LANES);
+        }
+        return -1;
+    }
+
+    /**
+     * Claim the oldest message in the priority's lane - used to evict
+     * @param priority
+     * @return ticket or -1 if the lane is empty
+     */
+    long claimHead(Priority priority) {
+        int lane = priority.ordinal();
+        RingBufferQueue queue = m_lanes.get(lane);
+        long position = queue == null ? -1 : queue.claimHead();
+        return position < 0 ? -1 : ticket(position, lane);
+    }
+
+    Object detach(long ticket) {
+        return laneOf(ticket).detach(position(ticket));
+    }
+
+    void detach(long ticket, Object attachment) {
+        laneOf(ticket).detach(position(ticket), attachment);
+    }
+
+    long tag(long ticket) {
+        return laneOf(ticket).tag(position(ticket));
+    }
+
+    /**
+     * @return positions claimed in all lanes since the queue was created - every message queued
+     */
+    long claimed() {
+        long claimed = 0;
+        for(int lane = 0; lane < LANES; lane++) {
+            RingBufferQueue queue = m_lanes.get(lane);
+            if(queue != null) {
+                claimed += queue.claimed();
+            }
+        }
+        return claimed;
+    }
+
+    Message release(long ticket) {
+        return laneOf(ticket).release(position(ticket));
+    }
+
+    boolean remove(long ticket, Message message) {
+        return laneOf(ticket).remove(position(ticket), message);
+    }
+
+    /**
+     * Free the removed slots at the head of the ticket's lane
+     * @param ticket of a message removed in place
+     */
+    void reclaim(long ticket) {
+        laneOf(ticket).reclaimHead();
+    }
+
+    Message peek(long ticket) {
+        return laneOf(ticket).peek(position(ticket));
+    }
+
+    boolean replace(long ticket, Message expected, Message message) {
+        return laneOf(ticket).replace(position(ticket), expected, message);
+    }
+
+    /**
+     * Remove the next message in delivery order. Only tests use this one-step form; delivery claims and
+     * releases separately.
+     * @return the message or null if every lane is empty
+     */
+    Message poll() {
+        long ticket;
+        while((ticket = claimNext()) >= 0) {
+            Message message = release(ticket);
+            if(message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    boolean isEmpty() {
+        for(int lane = 0; lane < LANES; lane++) {
+            RingBufferQueue queue = m_lanes.get(lane);
+            if(queue != null && !queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int size() {
+        int size = 0;
+        for(int lane = 0; lane < LANES; lane++) {
+            RingBufferQueue queue = m_lanes.get(lane);
+            if(queue != null) {
+                size += queue.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return capacity of each lane
+     */
+    int capacity() {
+        return m_capacity;
+    }
+
+    /**
+     * Scan every lane for the given instance - O(n), used by tests only
+     * @param message
+     * @return true if the message is queued
+     */
+    boolean contains(Message message) {
+        for(int lane = 0; lane < LANES; lane++) {
+            RingBufferQueue queue = m_lanes.get(lane);
+            if(queue != null && queue.contains(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private RingBufferQueue laneOf(long ticket) {
+        return m_lanes.get((int) (ticket & LANE_MASK));
+    }
+
+    private RingBufferQueue lane(int lane) {
+        RingBufferQueue queue = m_lanes.get(lane);
+        if(queue == null) {
+            m_lanes.compareAndSet(lane, null, new RingBufferQueue(m_capacity, m_attachments, m_tags));
+            queue = m_lanes.get(lane);
+        }
+        return queue;
+    }
+
+    private static long ticket(long position, int lane) {
+        return (position << LANE_BITS) | lane;
+    }
+
+    static long position(long ticket) {
+        return ticket >>> LANE_BITS;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A LatencyHistogram counts durations in nanoseconds in logarithmic buckets - four per power of two, so a
+ * percentile is within 25% of the true value across the whole range (up to about 35 minutes) in a fixed
+ * 1.3KB of counts. Recording is a couple of array writes and must be done by one thread at a time - the
+ * Exchange records from its delivery thread. Any thread can take a snapshot().
+ */
+public class LatencyHistogram implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final int SUB_BUCKET_BITS = 2;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int MAX_EXPONENT = 40; // 2^41ns and longer share the last bucket
+    static final int BUCKETS = MAX_EXPONENT * SUB_BUCKETS;
+    // the last four slots hold count, sum, min and max
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+    private static final int MIN = BUCKETS + 2;
+    private static final int MAX = BUCKETS + 3;
+    private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS + 4);
+
+    LatencyHistogram() {
+        m_counts.set(MIN, Long.MAX_VALUE);
+    }
+
+    /**
+     * Record a duration - one writer at a time
+     * @param nanos
+     */
+    void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+        increment(bucket(nanos), 1);
+        increment(COUNT, 1);
+        increment(SUM, nanos);
+        if(nanos < m_counts.get(MIN)) {
+            m_counts.lazySet(MIN, nanos);
+        }
+        if(nanos > m_counts.get(MAX)) {
+            m_counts.lazySet(MAX, nanos);
+        }
+    }
+
+    private void increment(int index, long value) {
+        // single writer - no need for an atomic add
+        m_counts.lazySet(index, m_counts.get(index) + value);
+    }
+
+    /**
+     * @return a copy that no longer changes
+     */
+    public LatencyHistogram snapshot() {
+        LatencyHistogram snapshot = new LatencyHistogram();
+        for(int i = 0; i < m_counts.length(); i++) {
+            snapshot.m_counts.set(i, m_counts.get(i));
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return number of durations recorded
+     */
+    public long getCount() {
+        return m_counts.get(COUNT);
+    }
+
+    /**
+     * @return mean duration in nanoseconds, 0 if none
+     */
+    public long getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : m_counts.get(SUM) / count;
+    }
+
+    /**
+     * @return shortest duration in nanoseconds, 0 if none
+     */
+    public long getMin() {
+        return getCount() == 0 ? 0 : m_counts.get(MIN);
+    }
+
+    /**
+     * @return longest duration in nanoseconds
+     */
+    public long getMax() {
+        return m_counts.get(MAX);
+    }
+
+    /**
+     * @param percentile 0 to 100, e.g. 99.9
+     * @return the duration in nanoseconds that percentile of the recorded durations don't exceed - the upper
+     * bound of its bucket, capped at the maximum. 0 if none.
+     */
+    public long getPercentile(double percentile) {
+        if(percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        long count = getCount();
+        if(count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += m_counts.get(i);
+            if(seen >= rank) {
+                long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.max(getMin(), Math.min(upper, getMax()));
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @param nanos
+     * @return the bucket holding the duration
+     */
+    static int bucket(long nanos) {
+        if(nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if(exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param bucket
+     * @return the shortest duration in the bucket
+     */
+    static long lowerBound(int bucket) {
+        if(bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%dns p50=%dns p99=%dns max=%dns", getCount(), getMean(),
+                getPercentile(50), getPercentile(99), getMax());
+    }
+}
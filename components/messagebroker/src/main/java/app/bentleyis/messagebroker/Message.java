@@ -23,11 +23,19 @@
 package app.bentleyis.messagebroker;
 
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * A Message must have an identifier (that is assumed to be unique for the exchange - but not necessary here)
  * A Message can contain a timestamp - which can be creation or transmission time, your choice, a type -
  * which can be a mime type or anything else used to interpret the payload, and a payload - the data being sent.
+ * A Message can carry a time-to-live - it expires that long after its timestamp and will not be delivered after.
+ * A Message has a Priority - higher priority messages are delivered ahead of lower ones on the same topic.
+ * A Message may come from a MessagePool - publishing hands the publisher's reference to the broker, which
+ * returns the message to its pool once every subscriber has received it (or it is dropped or expires).
+ * A subscriber that keeps a pooled message after receive() returns must retain() it and release() it later.
+ * A request sent with MessageBroker.request() carries a correlation id and the topic to reply to; the reply
+ * carries the same correlation id.
  *
  * Abstract - should derive this type to add payload for specific processing.
  */
@@ -35,6 +43,16 @@ public abstract class Message implements Serializable {
     String m_id; // message identifier
     long m_timestamp; // message time stamp
     String m_type; // message type or mime type
+    long m_timeToLive; // milliseconds after m_timestamp the message expires, 0 = use the topic's time-to-live
+    Priority m_priority = Priority.NORMAL;
+    String m_correlationId; // pairs a reply with its request
+    String m_replyTo; // topic a request's reply is published to
+    transient MessagePool<?> m_pool; // null unless the message came from a pool
+    transient volatile int m_references; // while pooled - the message is recycled when it drops to 0
+    transient MessageBridge m_bridge; // the bridge that received it from a peer - not sent back there
+    transient long m_enqueued; // System.nanoTime() when queued if sampled by an instrumented topic, otherwise 0
+    private static final AtomicIntegerFieldUpdater<Message> s_references =
+            AtomicIntegerFieldUpdater.newUpdater(Message.class, "m_references");
 
     public Message(String id) {
         m_id = id;
@@ -44,6 +62,14 @@ public abstract class Message implements Serializable {
         return m_id;
     }
 
+    /**
+     * For pooled messages - set the id of a message acquired from a MessagePool
+     * @param id
+     */
+    public void setId(String id) {
+        m_id = id;
+    }
+
     public long getTimestamp() {
         return m_timestamp;
     }
@@ -52,6 +78,30 @@ public abstract class Message implements Serializable {
         this.m_timestamp = m_timestamp;
     }
 
+    /**
+     * Time-to-live overrides the topic's time-to-live for this message. If the timestamp is not set when the
+     * message is published with a time-to-live, the Exchange sets it to the publish time.
+     * @param milliseconds 0 uses the topic's time-to-live
+     */
+    public void setTimeToLive(long milliseconds) {
+        m_timeToLive = milliseconds;
+    }
+
+    public long getTimeToLive() {
+        return m_timeToLive;
+    }
+
+    /**
+     * @param priority delivery lane - defaults to NORMAL
+     */
+    public void setPriority(Priority priority) {
+        m_priority = priority == null ? Priority.NORMAL : priority;
+    }
+
+    public Priority getPriority() {
+        return m_priority;
+    }
+
     public String getType() {
         return m_type;
     }
@@ -59,4 +109,80 @@ public abstract class Message implements Serializable {
     public void setType(String m_type) {
         this.m_type = m_type;
     }
+
+    public String getCorrelationId() {
+        return m_correlationId;
+    }
+
+    /**
+     * MessageBroker.request() and reply() set this - only set it to route replies yourself
+     * @param correlationId
+     */
+    public void setCorrelationId(String correlationId) {
+        m_correlationId = correlationId;
+    }
+
+    /**
+     * @return the topic to publish a reply to, null if the message isn't a request
+     */
+    public String getReplyTo() {
+        return m_replyTo;
+    }
+
+    public void setReplyTo(String topic) {
+        m_replyTo = topic;
+    }
+
+    /**
+     * Clear the message before it goes back to its MessagePool. Subclasses clear their own payload and call
+     * super.reset().
+     */
+    protected void reset() {
+        m_timestamp = 0;
+        m_type = null;
+        m_timeToLive = 0;
+        m_priority = Priority.NORMAL;
+        m_correlationId = null;
+        m_replyTo = null;
+    }
+
+    public boolean isPooled() {
+        return m_pool != null;
+    }
+
+    /**
+     * Keep a pooled message from being recycled until the matching release(). Does nothing for a message
+     * that isn't pooled.
+     */
+    public void retain() {
+        if(m_pool != null) {
+            s_references.incrementAndGet(this);
+        }
+    }
+
+    void retain(int count) {
+        if(m_pool != null) {
+            s_references.addAndGet(this, count);
+        }
+    }
+
+    /**
+     * Give up a reference to a pooled message - the last one returns it to its pool. Does nothing for a
+     * message that isn't pooled.
+     */
+    public void release() {
+        if(m_pool != null && s_references.decrementAndGet(this) == 0) {
+            m_pool.recycle(this);
+        }
+    }
+
+    /**
+     * Properties are the attributes a MessageFilter can test besides the id and type. Derived messages that
+     * carry properties override this.
+     * @param name
+     * @return the property's value, null if the message has no such property
+     */
+    public String getProperty(String name) {
+        return null;
+    }
 }
@@ -0,0 +1,563 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A MessageBridge mirrors selected topics between two brokers - usually in different processes - over a
+ * BridgeTransport. Both ends name the topics to mirror; a message published on one of them at either end is
+ * delivered to that topic's subscribers at both ends. Messages received from the peer are not sent back to it.
+ * Bridges can be chained (A-B-C) but must not form a cycle.
+ *
+ * Messages are written with a MessageCodec (e.g. BinaryCodec) and sent in batches: each frame carries as many
+ * queued messages as fit in the frame size. Flow control is by credits - a bridge sends no more messages than its
+ * peer has granted, and the peer grants them back once it has published the messages into its broker. A slow
+ * peer therefore holds messages in the sending bridge's queue and, once that is full, holds up delivery on the
+ * mirrored topics (whose OverflowPolicy then applies) instead of growing without bound.
+ *
+ * The credit a peer grants back also acknowledges the messages it has published. A failed connection is reopened
+ * with exponential backoff and messages not yet acknowledged are sent again, followed by those queued meanwhile -
+ * none are lost, but one the peer published just before the connection failed can arrive twice.
+ *
+ * Wire format - every frame is: int length (of the rest of the frame), byte kind, int count, then for DATA
+ * frames count records of varint topic length, UTF-8 topic, int message length, encoded message. A CREDIT frame
+ * grants count more messages.
+ */
+public class MessageBridge {
+    public static final int DEFAULT_WINDOW = 1024; // messages in flight before the sender waits for credit
+    public static final int DEFAULT_FRAME_SIZE = 64 * 1024; // bytes
+    public static final int DEFAULT_QUEUE_SIZE = 4096; // messages waiting to be sent
+    static final long MIN_BACKOFF = 50; // milliseconds
+    static final long MAX_BACKOFF = 5000;
+    static final byte DATA = 1;
+    static final byte CREDIT = 2;
+    static final int FRAME_HEADER = 9; // length, kind, count
+    private static final AtomicInteger s_bridgeCount = new AtomicInteger();
+
+    /**
+     * Subscribed to one mirrored topic - queues the topic's messages to be sent
+     */
+    class Outbound implements Subscriber {
+        final String m_topic;
+        final byte[] m_name; // UTF-8 topic, written to every record
+
+        Outbound(String topic) {
+            m_topic = topic;
+            m_name = topic.getBytes(BinaryCodec.UTF8);
+        }
+
+        @Override
+        public void receive(Message message) {
+            if(message.m_bridge == MessageBridge.this || m_closed) {
+                // came from the peer
+                return;
+            }
+            message.retain();
+            Outgoing outgoing = new Outgoing(this, message);
+            try {
+                while(!m_outbound.offer(outgoing, MIN_BACKOFF, TimeUnit.MILLISECONDS)) {
+                    if(m_closed) {
+                        message.release();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                message.release();
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if(m_idle) {
+                synchronized (m_lock) {
+                    m_lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    static class Outgoing {
+        final Outbound m_topic;
+        final Message m_message;
+
+        Outgoing(Outbound topic, Message message) {
+            m_topic = topic;
+            m_message = message;
+        }
+    }
+
+    final MessageBroker m_broker;
+    final BridgeTransport m_transport;
+    final MessageCodec m_codec;
+    final int m_window;
+    final int m_frameSize;
+    final LinkedHashMap<String,Outbound> m_topics = new LinkedHashMap<>();
+    final ArrayBlockingQueue<Outgoing> m_outbound;
+    // guards the connection state below - the sender waits on it for something to do
+    private final Object m_lock = new Object();
+    ByteChannel m_connection; // null while disconnected
+    int m_credits; // messages the peer will accept on m_connection
+    boolean m_windowGranted; // the peer's first credit is its window, later credit acknowledges messages
+    int m_acknowledged; // messages the peer has published that the sender hasn't let go of yet
+    int m_grant; // credit to send the peer - only the sender writes, so a full socket can't block the receiver
+    volatile boolean m_idle; // the sender is waiting - wake it when queueing a message
+    volatile boolean m_closed;
+    private final NamedThreadFactory m_threadFactory =
+            new NamedThreadFactory("Bridge-" + s_bridgeCount.incrementAndGet() + "-");
+    private Thread m_sender;
+    private Thread m_receiver;
+    final AtomicLong m_sent = new AtomicLong();
+    final AtomicLong m_received = new AtomicLong();
+    final AtomicLong m_dropped = new AtomicLong();
+    final AtomicLong m_connections = new AtomicLong();
+
+    /**
+     * A bridge with the default window, frame and queue sizes
+     * @param broker the local broker
+     * @param transport connection to the peer
+     * @param codec must be able to encode every message published on the topics - and match the peer's
+     * @param topics topics to mirror - no wildcards
+     */
+    public MessageBridge(MessageBroker broker, BridgeTransport transport, MessageCodec codec, String... topics) {
+        this(broker, transport, codec, DEFAULT_WINDOW, DEFAULT_FRAME_SIZE, DEFAULT_QUEUE_SIZE, topics);
+    }
+
+    /**
+     * @param broker the local broker
+     * @param transport connection to the peer
+     * @param codec must be able to encode every message published on the topics - and match the peer's
+     * @param window messages the peer may send before this bridge has published them
+     * @param frameSize largest frame in bytes - must hold the largest message, and match the peer's
+     * @param queueSize messages waiting to be sent before mirrored topics are held up
+     * @param topics topics to mirror - no wildcards
+     * @throws IllegalArgumentException if a topic contains a wildcard
+     */
+    public MessageBridge(MessageBroker broker, BridgeTransport transport, MessageCodec codec, int window,
+                         int frameSize, int queueSize, String... topics) {
+        if(window < 1 || frameSize <= FRAME_HEADER || queueSize < 1) {
+            throw new IllegalArgumentException("window, frame and queue size must be positive");
+        }
+        m_broker = broker;
+        m_transport = transport;
+        m_codec = codec;
+        m_window = window;
+        m_frameSize = frameSize;
+        m_outbound = new ArrayBlockingQueue<>(queueSize);
+        for(String topic: topics) {
+            TopicTrie.validateFilter(topic);
+            if(TopicTrie.isWildcard(topic)) {
+                throw new IllegalArgumentException("can't bridge a wildcard topic: " + topic);
+            }
+            m_topics.put(topic, new Outbound(topic));
+        }
+    }
+
+    /**
+     * Subscribe to the mirrored topics and start connecting to the peer
+     */
+    public synchronized void start() {
+        if(m_sender != null) {
+            return;
+        }
+        for(Outbound outbound: m_topics.values()) {
+            m_broker.subscribe(outbound.m_topic, outbound);
+        }
+        m_receiver = m_threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                connect();
+            }
+        });
+        m_sender = m_threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                send();
+            }
+        });
+        m_receiver.start();
+        m_sender.start();
+    }
+
+    /**
+     * Stop mirroring and close the connection. Messages not yet sent are discarded.
+     */
+    public synchronized void close() {
+        if(m_closed) {
+            return;
+        }
+        m_closed = true;
+        for(Outbound outbound: m_topics.values()) {
+            m_broker.unsubscribe(outbound.m_topic, outbound);
+        }
+        m_transport.close();
+        ByteChannel connection;
+        synchronized (m_lock) {
+            connection = m_connection;
+            m_lock.notifyAll();
+        }
+        disconnect(connection);
+        if(m_sender != null) {
+            m_receiver.interrupt(); // may be waiting to reconnect
+            try {
+                m_sender.join();
+                m_receiver.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Outgoing outgoing;
+        while((outgoing = m_outbound.poll()) != null) {
+            outgoing.m_message.release();
+        }
+    }
+
+    public boolean isConnected() {
+        synchronized (m_lock) {
+            return m_connection != null;
+        }
+    }
+
+    /**
+     * @return messages sent to the peer, including any sent again after reconnecting
+     */
+    public long getSentCount() {
+        return m_sent.get();
+    }
+
+    /**
+     * @return messages received from the peer and published locally
+     */
+    public long getReceivedCount() {
+        return m_received.get();
+    }
+
+    /**
+     * @return messages that could not be encoded, decoded or published
+     */
+    public long getDroppedCount() {
+        return m_dropped.get();
+    }
+
+    /**
+     * @return connections opened so far - more than one means the bridge has reconnected
+     */
+    public long getConnectionCount() {
+        return m_connections.get();
+    }
+
+    /**
+     * Receiver thread - (re)connect, grant the peer its window and publish what it sends until the connection fails
+     */
+    void connect() {
+        long backoff = MIN_BACKOFF;
+        ByteBuffer frame = ByteBuffer.allocate(m_frameSize);
+        while(!m_closed) {
+            ByteChannel connection;
+            try {
+                connection = m_transport.open();
+            } catch (IOException e) {
+                if(m_closed) {
+                    break;
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e1) {
+                    break;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                continue;
+            }
+            backoff = MIN_BACKOFF;
+            synchronized (m_lock) {
+                m_connection = connection;
+                m_credits = 0; // until the peer grants its window
+                m_windowGranted = false;
+                m_acknowledged = 0;
+                m_grant = m_window;
+                m_lock.notifyAll();
+            }
+            m_connections.incrementAndGet();
+            try {
+                receive(connection, frame);
+            } catch (IOException e) {
+                // the peer went away or the frame was bad - reconnect
+            }
+            disconnect(connection);
+        }
+    }
+
+    private void receive(ByteChannel connection, ByteBuffer frame) throws IOException {
+        while(!m_closed) {
+            frame.clear();
+            frame.limit(4);
+            readFully(connection, frame);
+            int length = frame.getInt(0);
+            if(length < FRAME_HEADER - 4 || length > m_frameSize - 4) {
+                throw new IOException("bad frame length " + length);
+            }
+            frame.clear();
+            frame.limit(length);
+            readFully(connection, frame);
+            frame.flip();
+            byte kind = frame.get();
+            int count = frame.getInt();
+            if(kind == CREDIT) {
+                synchronized (m_lock) {
+                    if(m_connection == connection) {
+                        m_credits += count;
+                        if(m_windowGranted) {
+                            m_acknowledged += count;
+                        }
+                        m_windowGranted = true;
+                        m_lock.notifyAll();
+                    }
+                }
+            } else if(kind == DATA) {
+                for(int i = 0; i < count; i++) {
+                    publish(frame);
+                }
+                synchronized (m_lock) {
+                    if(m_connection == connection) {
+                        m_grant += count;
+                        m_lock.notifyAll();
+                    }
+                }
+            } else {
+                throw new IOException("bad frame kind " + kind);
+            }
+        }
+    }
+
+    private void publish(ByteBuffer frame) throws IOException {
+        int topicLength = (int) BinaryCodec.readVarLong(frame);
+        if(topicLength < 0 || topicLength > frame.remaining() - 4) {
+            throw new IOException("bad topic length " + topicLength);
+        }
+        String topic = new String(frame.array(), frame.arrayOffset() + frame.position(), topicLength,
+                BinaryCodec.UTF8);
+        frame.position(frame.position() + topicLength);
+        int length = frame.getInt();
+        int end = frame.position() + length;
+        if(length < 0 || end > frame.limit()) {
+            throw new IOException("bad message length " + length);
+        }
+        int limit = frame.limit();
+        try {
+            frame.limit(end);
+            Message message = m_codec.decode(frame);
+            message.m_bridge = this;
+            m_broker.publish(topic, message);
+            m_received.incrementAndGet();
+        } catch (RuntimeException e) {
+            // undecodable or rejected - skip it, the rest of the frame is still good
+            e.printStackTrace();
+            m_dropped.incrementAndGet();
+        } finally {
+            frame.limit(limit);
+            frame.position(end);
+        }
+    }
+
+    /**
+     * Sender thread - grant credit to the peer and batch queued messages into frames as its credit allows
+     */
+    void send() {
+        ArrayList<Outgoing> pending = new ArrayList<>();
+        ArrayList<Outgoing> inFlight = new ArrayList<>(); // sent, not yet acknowledged
+        ByteChannel sentOn = null;
+        ByteBuffer frame = ByteBuffer.allocate(m_frameSize);
+        ByteBuffer credit = ByteBuffer.allocate(FRAME_HEADER);
+        while(!m_closed) {
+            ByteChannel connection = null;
+            try {
+                int credits;
+                int grant;
+                int acknowledged;
+                synchronized (m_lock) {
+                    while(!m_closed && !ready(pending)) {
+                        m_idle = true;
+                        // checked again after setting m_idle - a message queued since is seen, or wakes us
+                        if(!ready(pending)) {
+                            m_lock.wait(MAX_BACKOFF);
+                        }
+                        m_idle = false;
+                    }
+                    if(m_closed) {
+                        break;
+                    }
+                    connection = m_connection;
+                    credits = m_credits;
+                    grant = m_grant;
+                    m_grant = 0;
+                    acknowledged = m_acknowledged;
+                    m_acknowledged = 0;
+                }
+                if(connection != sentOn) {
+                    // reconnected - what the last connection didn't acknowledge goes again
+                    pending.addAll(0, inFlight);
+                    inFlight.clear();
+                    sentOn = connection;
+                } else if(acknowledged > 0) {
+                    for(int i = 0; i < acknowledged; i++) {
+                        inFlight.get(i).m_message.release();
+                    }
+                    inFlight.subList(0, acknowledged).clear();
+                }
+                if(grant > 0) {
+                    writeCredit(connection, credit, grant);
+                }
+                if(credits == 0) {
+                    continue;
+                }
+                if(pending.size() < credits) {
+                    m_outbound.drainTo(pending, credits - pending.size());
+                }
+                int count = encode(pending, credits, frame);
+                if(count == 0) {
+                    continue;
+                }
+                writeFully(connection, frame);
+                synchronized (m_lock) {
+                    if(m_connection == connection) {
+                        m_credits -= count;
+                    }
+                }
+                List<Outgoing> sent = pending.subList(0, count);
+                inFlight.addAll(sent);
+                sent.clear();
+                m_sent.addAndGet(count);
+            } catch (IOException e) {
+                disconnect(connection);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        for(Outgoing outgoing: inFlight) {
+            outgoing.m_message.release();
+        }
+        for(Outgoing outgoing: pending) {
+            outgoing.m_message.release();
+        }
+    }
+
+    /**
+     * Called holding m_lock
+     * @return true if connected with credit to send, acknowledgements to handle or messages that can be sent
+     */
+    private boolean ready(ArrayList<Outgoing> pending) {
+        if(m_connection == null) {
+            return false;
+        }
+        return m_grant > 0 || m_acknowledged > 0 || (m_credits > 0 && (!pending.isEmpty() || !m_outbound.isEmpty()));
+    }
+
+    /**
+     * Fill the frame with as many pending messages as fit and credit allows. Messages that can't be encoded
+     * are dropped from pending.
+     * @return number of messages in the frame, ready to write
+     */
+    int encode(ArrayList<Outgoing> pending, int credits, ByteBuffer frame) {
+        frame.clear();
+        frame.position(FRAME_HEADER);
+        int count = 0;
+        while(count < pending.size() && count < credits) {
+            Outgoing outgoing = pending.get(count);
+            int start = frame.position();
+            try {
+                BinaryCodec.writeVarLong(frame, outgoing.m_topic.m_name.length);
+                frame.put(outgoing.m_topic.m_name);
+                int lengthAt = frame.position();
+                frame.position(lengthAt + 4);
+                m_codec.encode(outgoing.m_message, frame);
+                frame.putInt(lengthAt, frame.position() - lengthAt - 4);
+                count++;
+            } catch (RuntimeException e) {
+                frame.position(start);
+                if(count > 0 && e instanceof BufferOverflowException) {
+                    // frame full - the rest go in the next one
+                    break;
+                }
+                // can't be encoded (or too big for any frame)
+                e.printStackTrace();
+                pending.remove(count).m_message.release();
+                m_dropped.incrementAndGet();
+            }
+        }
+        frame.putInt(0, frame.position() - 4);
+        frame.put(4, DATA);
+        frame.putInt(5, count);
+        frame.flip();
+        return count;
+    }
+
+    private void writeCredit(ByteChannel connection, ByteBuffer credit, int count) throws IOException {
+        credit.clear();
+        credit.putInt(FRAME_HEADER - 4);
+        credit.put(CREDIT);
+        credit.putInt(count);
+        credit.flip();
+        writeFully(connection, credit);
+    }
+
+    private void disconnect(ByteChannel connection) {
+        if(connection == null) {
+            return;
+        }
+        synchronized (m_lock) {
+            if(m_connection == connection) {
+                m_connection = null;
+                m_credits = 0;
+                m_grant = 0;
+                m_acknowledged = 0;
+            }
+        }
+        try {
+            connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void readFully(ByteChannel connection, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(connection.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void writeFully(ByteChannel connection, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            connection.write(buffer);
+        }
+    }
+}
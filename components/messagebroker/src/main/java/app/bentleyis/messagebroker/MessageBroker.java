@@ -23,16 +23,57 @@
 package app.bentleyis.messagebroker;
 
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The MessageBroker represents a simple publish-subscribe broker based on String topics
- * Each topic is associated with an Exchange. The Exchange provides message queuing and delivery.
+ * Each topic is associated with an Exchange. The Exchange provides message queuing and delivery. Publishing never
+ * waits by default - a full topic drops its oldest message.
+ * Topics are hierarchical, levels separated by '/'. Subscriptions may use MQTT-style wildcards - '+' for one
+ * level, '#' for all remaining levels - and are indexed in a TopicTrie. A topic's subscribers are resolved
+ * through the trie when its Exchange is created and kept by the Exchange, so publishing doesn't match
+ * subscriptions at all. Subscribing or unsubscribing re-resolves only the topics the filter matches.
+ * Looking up an existing topic takes no lock - only creating one does. Publishers to a hot topic can keep a Topic
+ * handle from topic() and skip the lookup entirely.
+ * A topic with no subscribers and nothing queued is reclaimed after the idle timeout - its Exchange is shut down,
+ * releasing its thread and buffers - and created again, with its configuration, when next used.
+ * Topics are instrumented unless configured otherwise: getStatistics() snapshots their counters and latencies,
+ * and publishStatistics() publishes the snapshots to a topic periodically.
+ * request() publishes a message with a correlation id and this broker's reply topic; a subscriber answers with
+ * reply(). Pending requests wait in a map by correlation id, timing out on the shared TimingWheel.
+ * publishAfter(), publishAt() and publishAtFixedRate() schedule publishing on the same wheel - no thread per
+ * schedule, and a cancel is O(1).
  */
 public class MessageBroker {
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000; // milliseconds
     static MessageBroker s_instance;
     // the exchanges are not persistent here (yet)
-    LinkedHashMap<String,Exchange> m_exchanges = new LinkedHashMap<>();
+    // read without locking, changed only while holding this
+    ConcurrentHashMap<String,Exchange> m_exchanges = new ConcurrentHashMap<>();
+    LinkedHashMap<String,TopicConfiguration> m_configurations = new LinkedHashMap<>();
+    TopicTrie m_subscriptions = new TopicTrie();
+    Dispatcher m_dispatcher = new ThreadDispatcher();
+    // shared by all topics for message expiry and scheduled publishing - its thread starts on first use
+    TimingWheel m_timingWheel = new TimingWheel();
+    long m_idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    TimingWheel.Timeout m_reaper; // next sweep for idle topics, null if none is scheduled
+    String m_statisticsTopic; // where statistics are published, null if they aren't
+    long m_statisticsInterval;
+    Runnable m_statisticsTask; // the current publishing task - one left over from before a change does nothing
+    TimingWheel.Timeout m_statisticsTimeout;
+    // request/reply
+    static final String REPLY_TOPIC_PREFIX = "replies/";
+    ConcurrentHashMap<String,Request> m_requests = new ConcurrentHashMap<>(); // pending, by correlation id
+    AtomicLong m_correlationIds = new AtomicLong();
+    String m_replyTopic; // subscribed on the first request
 
     public static synchronized MessageBroker getInstance() {
         if(s_instance == null) {
@@ -41,38 +82,602 @@ public class MessageBroker {
         return s_instance;
     }
 
+    /**
+     * A broker independent of the shared one from getInstance() - e.g. for each side of a MessageBridge
+     * within one process. Call shutdown() when done with it.
+     * @return a new broker
+     */
+    public static MessageBroker newInstance() {
+        return new MessageBroker();
+    }
+
     private MessageBroker() {
         // do nothing
     }
 
-    public void publish(String topic, Message message) {
+    /**
+     * Select how topics deliver messages. ThreadDispatcher (the default) gives each topic its own thread,
+     * PooledDispatcher shares a bounded pool of threads across all topics - preferred when there are many topics.
+     * Applies to topics created after the call, so set it before publishing or subscribing.
+     * @param dispatcher
+     */
+    public synchronized void setDispatcher(Dispatcher dispatcher) {
+        m_dispatcher = dispatcher;
+    }
+
+    public synchronized Dispatcher getDispatcher() {
+        return m_dispatcher;
+    }
+
+    /**
+     * How long a topic must go without subscribers and queued messages before its Exchange is shut down.
+     * A reclaimed topic is recreated transparently by the next publish or subscribe.
+     * @param milliseconds 0 keeps topics forever
+     */
+    public synchronized void setIdleTimeout(long milliseconds) {
+        if(milliseconds < 0) {
+            throw new IllegalArgumentException("idle timeout must not be negative");
+        }
+        m_idleTimeout = milliseconds;
+        if(m_reaper != null) {
+            m_reaper.cancel();
+            m_reaper = null;
+        }
+        scheduleReaper();
+    }
+
+    public synchronized long getIdleTimeout() {
+        return m_idleTimeout;
+    }
+
+    /**
+     * Configure queue capacity, overflow behavior and expiry for a topic. Must be called before the topic is
+     * first published or subscribed to - topics without a configuration use the TopicConfiguration defaults.
+     * @param topic
+     * @param configuration
+     * @throws IllegalStateException if the topic already exists
+     */
+    public synchronized void configure(String topic, TopicConfiguration configuration) {
+        if(m_exchanges.containsKey(topic)) {
+            throw new IllegalStateException("topic " + topic + " already exists");
+        }
+        m_configurations.put(topic, configuration);
+    }
+
+    /**
+     * @param topic
+     * @param policy
+     * @return number of messages on the topic dropped or rejected by the given OverflowPolicy
+     */
+    public long getOverflowCount(String topic, OverflowPolicy policy) {
+        Exchange exchange = getExchange(topic, false);
+        if(exchange == null) {
+            return 0;
+        }
+        return exchange.getOverflowCount(policy);
+    }
+
+    /**
+     * @param topic
+     * @param subscriber
+     * @return for a fan-out topic, how many messages the subscriber is behind - 0 otherwise
+     */
+    public long getSubscriberLag(String topic, Subscriber subscriber) {
+        Exchange exchange = getExchange(topic, false);
+        if(exchange == null) {
+            return 0;
+        }
+        return exchange.getSubscriberLag(subscriber);
+    }
+
+    /**
+     * A handle for publishing to a topic - creates the topic if needed. Keep it to publish without a lookup.
+     * @param topic
+     * @return handle that publishes straight to the topic's Exchange
+     * @throws IllegalArgumentException if the topic contains a wildcard
+     */
+    public Topic topic(String topic) {
+        return new Topic(this, topic, getExchange(topic, true));
+    }
+
+    /**
+     * Get a topic's Exchange for publishing - release() it after enqueueing
+     * @param topic
+     * @return the Exchange, which can't be retired until released
+     */
+    Exchange acquire(String topic) {
         Exchange exchange = getExchange(topic, true);
-        exchange.enqueue(message);
+        while(!exchange.acquire()) {
+            // retired - being removed while the broker is locked, so the next lookup waits for that
+            Thread.yield();
+            exchange = getExchange(topic, true);
+        }
+        return exchange;
+    }
+
+    /**
+     * Queue a message for delivery to the topic's subscribers. If the topic's queue is full, its OverflowPolicy
+     * decides: by default the oldest queued message is dropped, counted in getOverflowCount(). Under BLOCK this
+     * waits up to the topic's block timeout for room and then drops the message.
+     * @param topic
+     * @param message
+     * @throws MessageRejectedException if the topic's queue is full and its OverflowPolicy is REJECT
+     * @throws IllegalArgumentException if the topic contains a wildcard
+     */
+    public void publish(String topic, Message message) {
+        Exchange exchange = acquire(topic);
+        try {
+            exchange.enqueue(message);
+        } finally {
+            exchange.release();
+        }
+    }
+
+    /**
+     * Queue a message for delivery and track it
+     * @param topic
+     * @param message
+     * @return Delivery that completes when every subscriber has received the message, or fails if it is
+     * dropped, expires or is dead-lettered
+     * @throws MessageRejectedException if the topic's queue is full and its OverflowPolicy is REJECT
+     */
+    public Delivery publishAsync(String topic, Message message) {
+        return publishAsync(topic, message, 0);
+    }
+
+    /**
+     * Queue a message for delivery and track it
+     * @param topic
+     * @param message
+     * @param timeout milliseconds after which the Delivery fails with a TimeoutException, 0 for none
+     * @return Delivery that completes when every subscriber has received the message, or fails if it is
+     * dropped, expires, is dead-lettered or times out
+     * @throws MessageRejectedException if the topic's queue is full and its OverflowPolicy is REJECT
+     */
+    public Delivery publishAsync(String topic, Message message, long timeout) {
+        Exchange exchange = acquire(topic);
+        try {
+            return exchange.enqueueAsync(message, timeout);
+        } finally {
+            exchange.release();
+        }
+    }
+
+    /**
+     * Publish a message after a delay. Publishing runs on the timing wheel thread, so a scheduled topic shouldn't
+     * be configured to BLOCK - waiting for room holds up every other timer.
+     * @param topic
+     * @param message published as is - a pooled message whose publish is cancelled must be released by the caller
+     * @param delay milliseconds
+     * @return handle to cancel the publish
+     * @throws IllegalArgumentException if the topic contains a wildcard
+     */
+    public TimingWheel.Timeout publishAfter(final String topic, final Message message, long delay) {
+        TopicTrie.validateTopic(topic);
+        return m_timingWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                publishScheduled(topic, message);
+            }
+        }, delay);
+    }
+
+    /**
+     * Publish a message at a time - see publishAfter()
+     * @param topic
+     * @param message
+     * @param time milliseconds since the epoch, as System.currentTimeMillis() - a time in the past publishes
+     * on the next tick
+     * @return handle to cancel the publish
+     * @throws IllegalArgumentException if the topic contains a wildcard
+     */
+    public TimingWheel.Timeout publishAt(String topic, Message message, long time) {
+        return publishAfter(topic, message, time - System.currentTimeMillis());
     }
 
+    /**
+     * Publish a new message every period until cancelled. Runs that fall behind are delayed, not repeated.
+     * @param topic
+     * @param factory creates each message - a MessagePool's acquire() keeps this allocation free
+     * @param initialDelay milliseconds to the first message
+     * @param period milliseconds between messages
+     * @return handle to cancel publishing
+     * @throws IllegalArgumentException if the topic contains a wildcard or the period is less than 1ms
+     */
+    public TimingWheel.Timeout publishAtFixedRate(final String topic,
+                                                  final MessagePool.Factory<? extends Message> factory,
+                                                  long initialDelay, long period) {
+        TopicTrie.validateTopic(topic);
+        return m_timingWheel.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                publishScheduled(topic, factory.create());
+            }
+        }, initialDelay, period);
+    }
+
+    private void publishScheduled(String topic, Message message) {
+        try {
+            publish(topic, message);
+        } catch (MessageRejectedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Publish a request and wait for a reply without blocking. Subscribers answer with reply(); the first reply
+     * completes the Request, later ones are ignored.
+     * @param topic
+     * @param message given a new correlation id and this broker's reply topic
+     * @param timeout milliseconds after which the Request fails with a TimeoutException, 0 for none
+     * @return Request that completes with the reply
+     * @throws MessageRejectedException if the topic's queue is full and its OverflowPolicy is REJECT
+     * @throws IllegalArgumentException if the topic contains a wildcard
+     */
+    public Request request(String topic, Message message, final long timeout) {
+        String correlationId = Long.toString(m_correlationIds.incrementAndGet(), 36);
+        message.setCorrelationId(correlationId);
+        message.setReplyTo(getReplyTopic());
+        final Request request = new Request(this, message, correlationId);
+        m_requests.put(correlationId, request);
+        if(timeout > 0) {
+            request.m_timeout = m_timingWheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    request.fail(new TimeoutException("no reply to request " + request.getCorrelationId()
+                            + " within " + timeout + "ms"));
+                }
+            }, timeout);
+        }
+        Exchange exchange = acquire(topic);
+        try {
+            if(!exchange.enqueue(message)) {
+                request.fail(new MessageRejectedException("queue full, request " + correlationId + " dropped"));
+            }
+        } catch (RuntimeException e) {
+            request.fail(e);
+            throw e;
+        } finally {
+            exchange.release();
+        }
+        return request;
+    }
+
+    /**
+     * Answer a request - publish the reply to the request's reply topic with its correlation id. Reply topics
+     * BLOCK when full rather than lose a reply, so this can wait while a burst of replies is matched up.
+     * @param request a message received from request()
+     * @param reply
+     * @throws IllegalArgumentException if the message isn't a request
+     */
+    public void reply(Message request, Message reply) {
+        if(request.getReplyTo() == null) {
+            throw new IllegalArgumentException("message " + request.getId() + " is not a request");
+        }
+        reply.setCorrelationId(request.getCorrelationId());
+        publish(request.getReplyTo(), reply);
+    }
+
+    /**
+     * The topic replies to this broker's requests are published to - bridge it along with the request topics
+     * to make requests across a MessageBridge
+     * @return the reply topic, subscribed on first use
+     */
+    public synchronized String getReplyTopic() {
+        if(m_replyTopic == null) {
+            m_replyTopic = REPLY_TOPIC_PREFIX + UUID.randomUUID();
+            // a dropped reply would time its request out - the correlator below is quick to make room
+            TopicConfiguration configuration = new TopicConfiguration();
+            configuration.setOverflowPolicy(OverflowPolicy.BLOCK);
+            configure(m_replyTopic, configuration);
+            subscribe(m_replyTopic, new Subscriber() {
+                @Override
+                public void receive(Message message) {
+                    String correlationId = message.getCorrelationId();
+                    Request request = correlationId == null ? null : m_requests.get(correlationId);
+                    if(request != null) {
+                        request.complete(message);
+                    }
+                }
+            });
+        }
+        return m_replyTopic;
+    }
+
+    /**
+     * Subscribe to a topic, or to every topic matching a filter
+     * @param topic topic or filter, e.g. "sensors/+/temperature" or "sensors/#"
+     * @param subscriber
+     * @throws IllegalArgumentException if the filter is malformed
+     */
     public void subscribe(String topic, Subscriber subscriber) {
-        Exchange exchange = getExchange(topic, true);
-        exchange.register(subscriber);
+        addSubscription(topic, subscriber, Subscription.ALL);
+    }
+
+    /**
+     * Subscribe to the messages matching a filter only - e.g. with a given type or property value.
+     * Subscribing again to the same topic replaces the filter.
+     * @param topic topic or filter, e.g. "sensors/+/temperature" or "sensors/#"
+     * @param subscriber
+     * @param filter
+     * @throws IllegalArgumentException if the topic filter is malformed
+     */
+    public void subscribe(String topic, Subscriber subscriber, MessageFilter filter) {
+        addSubscription(topic, subscriber, new Subscription(null, filter));
+    }
+
+    /**
+     * Subscribe to the messages a Subscription accepts - types and content filter combined.
+     * Subscribing again to the same topic replaces the subscription.
+     * @param topic topic or filter, e.g. "sensors/+/temperature" or "sensors/#"
+     * @param subscriber
+     * @param subscription
+     * @throws IllegalArgumentException if the topic filter is malformed
+     */
+    public void subscribe(String topic, Subscriber subscriber, Subscription subscription) {
+        addSubscription(topic, subscriber, subscription);
+    }
+
+    /**
+     * Subscribe to some message types only - the subscriber is never called for other messages on the topic.
+     * Subclasses of the given types are included. Subscribing again to the same topic replaces the types.
+     * @param topic topic or filter, e.g. "sensors/+/temperature" or "sensors/#"
+     * @param subscriber
+     * @param messageTypes Message classes - a type that isn't one never matches
+     * @throws IllegalArgumentException if the filter is malformed
+     */
+    public void subscribe(String topic, Subscriber subscriber, Class<?>... messageTypes) {
+        addSubscription(topic, subscriber, new Subscription(messageTypes, null));
+    }
+
+    /**
+     * Remove a subscription made with subscribe() - the same topic or filter
+     * @param topic
+     * @param subscriber
+     */
+    public synchronized void unsubscribe(String topic, Subscriber subscriber) {
+        if(m_subscriptions.remove(topic, subscriber)) {
+            resolve(topic, TopicTrie.isWildcard(topic));
+        }
     }
 
-    public void unsubscribe(String topic, Subscriber subscriber) {
+    /**
+     * Snapshot every instrumented topic. A topic reclaimed while idle starts counting again when recreated.
+     * @return statistics per topic
+     */
+    public List<TopicStatistics> getStatistics() {
+        ArrayList<TopicStatistics> statistics = new ArrayList<>();
+        for(Map.Entry<String,Exchange> entry: m_exchanges.entrySet()) {
+            TopicStatistics topic = entry.getValue().getStatistics(entry.getKey());
+            if(topic != null) {
+                statistics.add(topic);
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * @param topic
+     * @return a snapshot of the topic, null if it doesn't exist or isn't instrumented
+     */
+    public TopicStatistics getStatistics(String topic) {
         Exchange exchange = getExchange(topic, false);
-        if(exchange == null) {
+        return exchange == null ? null : exchange.getStatistics(topic);
+    }
+
+    /**
+     * Publish a TopicStatistics for every instrumented topic (except this one) to a topic every interval.
+     * Unless configured otherwise, the statistics topic isn't instrumented and drops its oldest messages when
+     * full, so publishing never waits for its subscribers.
+     * @param topic statistics topic, null to stop publishing
+     * @param interval milliseconds
+     */
+    public synchronized void publishStatistics(String topic, long interval) {
+        if(topic != null) {
+            TopicTrie.validateTopic(topic);
+            if(interval < 1) {
+                throw new IllegalArgumentException("interval must be at least 1ms");
+            }
+        }
+        if(m_statisticsTimeout != null) {
+            m_statisticsTimeout.cancel();
+            m_statisticsTimeout = null;
+        }
+        m_statisticsTopic = topic;
+        m_statisticsInterval = interval;
+        m_statisticsTask = null;
+        if(topic == null) {
+            return;
+        }
+        if(!m_configurations.containsKey(topic) && !m_exchanges.containsKey(topic)) {
+            TopicConfiguration configuration = new TopicConfiguration();
+            configuration.setInstrumented(false);
+            m_configurations.put(topic, configuration);
+        }
+        m_statisticsTask = new Runnable() {
+            @Override
+            public void run() {
+                String topic;
+                synchronized (MessageBroker.this) {
+                    if(m_statisticsTask != this) {
+                        return;
+                    }
+                    topic = m_statisticsTopic;
+                    m_statisticsTimeout = m_timingWheel.schedule(this, m_statisticsInterval);
+                }
+                for(TopicStatistics statistics: getStatistics()) {
+                    if(statistics.getTopic().equals(topic)) {
+                        continue;
+                    }
+                    try {
+                        publish(topic, statistics);
+                    } catch (MessageRejectedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        m_statisticsTimeout = m_timingWheel.schedule(m_statisticsTask, interval);
+    }
+
+    /**
+     * Stop delivery on all topics and release the broker's threads. Queued messages are discarded and
+     * the next getInstance() creates a new broker.
+     */
+    public void shutdown() {
+        synchronized (MessageBroker.class) {
+            if(s_instance == this) {
+                s_instance = null;
+            }
+        }
+        synchronized (this) {
+            for(Exchange exchange: m_exchanges.values()) {
+                exchange.shutdown();
+            }
+            m_exchanges.clear();
+            m_subscriptions.clear();
+            if(m_reaper != null) {
+                m_reaper.cancel();
+                m_reaper = null;
+            }
+            if(m_statisticsTimeout != null) {
+                m_statisticsTimeout.cancel();
+                m_statisticsTimeout = null;
+            }
+            m_statisticsTask = null;
+            m_replyTopic = null;
+            for(Request request: m_requests.values()) {
+                request.fail(new IllegalStateException("broker shut down"));
+            }
+            m_dispatcher.shutdown();
+            m_timingWheel.shutdown();
+        }
+    }
+
+    private void addSubscription(String topic, Subscriber subscriber, Subscription subscription) {
+        TopicTrie.validateFilter(topic);
+        boolean wildcard = TopicTrie.isWildcard(topic);
+        synchronized (this) {
+            boolean changed = m_subscriptions.add(topic, subscriber, subscription);
+            if(!wildcard) {
+                // creating the topic applies the subscription - with the lock held, so the topic can't be
+                // reclaimed before the subscriber is registered
+                getExchange(topic, true);
+            }
+            if(changed) {
+                resolve(topic, wildcard);
+            }
+        }
+    }
+
+    /**
+     * A subscription changed - re-resolve the subscribers of the topics it matches
+     * @param filter
+     * @param wildcard
+     */
+    private synchronized void resolve(String filter, boolean wildcard) {
+        if(!wildcard) {
+            Exchange exchange = m_exchanges.get(filter);
+            if(exchange != null) {
+                setSubscribers(exchange, filter);
+            }
             return;
         }
-        exchange.unregister(subscriber);
+        for(Map.Entry<String,Exchange> entry: m_exchanges.entrySet()) {
+            if(TopicTrie.matches(filter, entry.getKey())) {
+                setSubscribers(entry.getValue(), entry.getKey());
+            }
+        }
+    }
+
+    private synchronized void setSubscribers(Exchange exchange, String topic) {
+        exchange.setSubscribers(m_subscriptions.match(topic));
+        if(!exchange.hasSubscribers()) {
+            // may become idle
+            scheduleReaper();
+        }
     }
 
-    // extracted to reduce synchronization point
-    private synchronized Exchange getExchange(String topic, boolean create) {
+    /**
+     * @param topic
+     * @param create true to create the topic if it doesn't exist
+     * @return the topic's Exchange - null if it doesn't exist and create is false
+     */
+    Exchange getExchange(String topic, boolean create) {
         Exchange exchange = m_exchanges.get(topic);
-        if(!create) {
+        if(exchange != null || !create) {
             return exchange;
         }
+        return createExchange(topic);
+    }
+
+    private synchronized Exchange createExchange(String topic) {
+        // another thread may have created it meanwhile
+        Exchange exchange = m_exchanges.get(topic);
         if(exchange == null) {
-            exchange = new Exchange();
+            TopicTrie.validateTopic(topic);
+            TopicConfiguration configuration = m_configurations.get(topic);
+            if(configuration == null) {
+                configuration = new TopicConfiguration();
+            }
+            exchange = new Exchange(m_dispatcher, configuration, m_timingWheel);
+            String deadLetterTopic = configuration.getDeadLetterTopic();
+            if(deadLetterTopic != null) {
+                exchange.setDeadLetter(new DeadLetterSubscriber(this, deadLetterTopic));
+            }
+            // existing wildcard subscriptions
+            LinkedHashMap<Subscriber,Subscription[]> subscribers = m_subscriptions.match(topic);
+            if(!subscribers.isEmpty()) {
+                exchange.setSubscribers(subscribers);
+            }
+            // publish it to lock-free readers only once it is set up
             m_exchanges.put(topic,exchange);
+            if(subscribers.isEmpty()) {
+                scheduleReaper();
+            }
         }
         return exchange;
     }
+
+    private synchronized void scheduleReaper() {
+        if(m_reaper != null || m_idleTimeout == 0 || m_exchanges.isEmpty()) {
+            return;
+        }
+        // a topic is reclaimed between one and one and a half idle timeouts after it became idle
+        m_reaper = m_timingWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reapIdleExchanges();
+            }
+        }, Math.max(1, m_idleTimeout / 2));
+    }
+
+    /**
+     * Shut down and remove the topics that have been idle for the idle timeout
+     */
+    private synchronized void reapIdleExchanges() {
+        m_reaper = null;
+        if(m_idleTimeout == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        boolean unsubscribed = false; // topics that may become idle remain
+        Iterator<Exchange> exchanges = m_exchanges.values().iterator();
+        while(exchanges.hasNext()) {
+            Exchange exchange = exchanges.next();
+            if(!exchange.isIdle()) {
+                exchange.m_idleSince = 0;
+            } else if(exchange.m_idleSince == 0) {
+                exchange.m_idleSince = now;
+            } else if(now - exchange.m_idleSince >= m_idleTimeout && exchange.retire()) {
+                exchanges.remove();
+                continue;
+            }
+            unsubscribed |= !exchange.hasSubscribers();
+        }
+        // topics with subscribers can only become idle by unsubscribing, which schedules a sweep
+        if(unsubscribed) {
+            scheduleReaper();
+        }
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A MessageCodec writes Messages to and reads them from binary form, for the Journal and anything else that
+ * needs a Message outside the process. Encoding goes straight into the target buffer - no intermediate copies.
+ */
+public interface MessageCodec {
+    /**
+     * Write the message at the buffer's position, advancing it
+     * @param message
+     * @param buffer
+     * @throws java.nio.BufferOverflowException if the message doesn't fit in the remaining space
+     */
+    void encode(Message message, ByteBuffer buffer);
+
+    /**
+     * Read a message written by encode() from the buffer's position, advancing it
+     * @param buffer
+     * @return the message
+     */
+    Message decode(ByteBuffer buffer);
+}
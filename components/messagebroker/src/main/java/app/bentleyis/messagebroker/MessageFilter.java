@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.ArrayList;
+
+/**
+ * A MessageFilter limits a subscription by message content. It is a list of terms that must all hold:
+ * equality or prefix tests on the message id, type or a property (see Message.getProperty).
+ * A message without the tested attribute does not match. An empty filter matches every message.
+ *
+ * e.g. new MessageFilter().typeEquals("application/json").propertyStartsWith("device", "kitchen/")
+ *
+ * The broker indexes subscriptions by one term of each filter - an equality term if there is one - so a
+ * message is only tested against the filters that can match it. Changing a filter after subscribing
+ * has no effect.
+ */
+public class MessageFilter {
+    enum Field { ID, TYPE, PROPERTY }
+
+    static class Term {
+        final Field m_field;
+        final String m_property; // property name, null for ID and TYPE
+        final String m_value;
+        final boolean m_prefix;
+
+        Term(Field field, String property, String value, boolean prefix) {
+            if(value == null) {
+                throw new IllegalArgumentException("filter value must not be null");
+            }
+            m_field = field;
+            m_property = property;
+            m_value = value;
+            m_prefix = prefix;
+        }
+
+        String valueOf(Message message) {
+            switch (m_field) {
+                case ID:
+                    return message.getId();
+                case TYPE:
+                    return message.getType();
+                default:
+                    return message.getProperty(m_property);
+            }
+        }
+
+        boolean matches(Message message) {
+            String value = valueOf(message);
+            return value != null && (m_prefix ? value.startsWith(m_value) : value.equals(m_value));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Term)) {
+                return false;
+            }
+            Term term = (Term) o;
+            return m_field == term.m_field && m_prefix == term.m_prefix && m_value.equals(term.m_value)
+                    && (m_property == null ? term.m_property == null : m_property.equals(term.m_property));
+        }
+
+        @Override
+        public int hashCode() {
+            return (m_field.hashCode() * 31 + (m_property == null ? 0 : m_property.hashCode())) * 31
+                    + m_value.hashCode() + (m_prefix ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            String name = m_field == Field.PROPERTY ? m_property : m_field.name().toLowerCase();
+            return name + (m_prefix ? " starts with " : " = ") + m_value;
+        }
+    }
+
+    final ArrayList<Term> m_terms = new ArrayList<>();
+
+    public MessageFilter() {
+    }
+
+    MessageFilter(MessageFilter filter) {
+        m_terms.addAll(filter.m_terms);
+    }
+
+    public MessageFilter idEquals(String id) {
+        return add(new Term(Field.ID, null, id, false));
+    }
+
+    public MessageFilter idStartsWith(String prefix) {
+        return add(new Term(Field.ID, null, prefix, true));
+    }
+
+    public MessageFilter typeEquals(String type) {
+        return add(new Term(Field.TYPE, null, type, false));
+    }
+
+    public MessageFilter typeStartsWith(String prefix) {
+        return add(new Term(Field.TYPE, null, prefix, true));
+    }
+
+    public MessageFilter propertyEquals(String name, String value) {
+        return add(new Term(Field.PROPERTY, checkName(name), value, false));
+    }
+
+    public MessageFilter propertyStartsWith(String name, String prefix) {
+        return add(new Term(Field.PROPERTY, checkName(name), prefix, true));
+    }
+
+    /**
+     * @param message
+     * @return true if every term holds for the message
+     */
+    public boolean matches(Message message) {
+        for(int i = 0; i < m_terms.size(); i++) {
+            if(!m_terms.get(i).matches(message)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return m_terms.isEmpty();
+    }
+
+    /**
+     * The term the broker indexes the filter by - the first equality term, otherwise the longest prefix
+     * @return null for an empty filter
+     */
+    Term anchor() {
+        Term anchor = null;
+        for(Term term: m_terms) {
+            if(!term.m_prefix) {
+                return term;
+            }
+            if(anchor == null || term.m_value.length() > anchor.m_value.length()) {
+                anchor = term;
+            }
+        }
+        return anchor;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MessageFilter && m_terms.equals(((MessageFilter) o).m_terms);
+    }
+
+    @Override
+    public int hashCode() {
+        return m_terms.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return m_terms.toString();
+    }
+
+    private MessageFilter add(Term term) {
+        m_terms.add(term);
+        return this;
+    }
+
+    private static String checkName(String name) {
+        if(name == null) {
+            throw new IllegalArgumentException("property name must not be null");
+        }
+        return name;
+    }
+}
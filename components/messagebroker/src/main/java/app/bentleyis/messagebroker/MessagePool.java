@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A MessagePool recycles messages of one type so a steady stream of events doesn't allocate a message per event.
+ * acquire() a message, set its fields and publish it - publishing hands over the reference and the broker
+ * releases it once every subscriber has received the message, which resets it and returns it to the pool.
+ * A message that is acquired but never published must be released by the caller. A Delivery keeps the message
+ * it tracks, which may already be reused once the Delivery completes.
+ * Pooling is opt-in per message type: messages created with new are never recycled.
+ * @param <T> message type
+ */
+public class MessagePool<T extends Message> {
+    public interface Factory<T extends Message> {
+        T create();
+    }
+
+    private final Factory<T> m_factory;
+    private final RingBufferQueue m_free;
+    private final AtomicLong m_created = new AtomicLong();
+
+    /**
+     * @param factory creates a message when the pool is empty
+     * @param capacity most messages kept for reuse - rounded up to a power of two
+     */
+    public MessagePool(Factory<T> factory, int capacity) {
+        m_factory = factory;
+        m_free = new RingBufferQueue(capacity);
+    }
+
+    /**
+     * @return a reset message holding one reference - the caller's - with its id still to be set
+     */
+    @SuppressWarnings("unchecked")
+    public T acquire() {
+        Message message = m_free.poll();
+        if(message == null) {
+            message = m_factory.create();
+            message.m_pool = this;
+            m_created.incrementAndGet();
+        }
+        message.m_references = 1;
+        return (T) message;
+    }
+
+    /**
+     * @return messages waiting for reuse
+     */
+    public int getAvailable() {
+        return m_free.size();
+    }
+
+    /**
+     * @return messages the pool had to create because none were free - levels off once the pool covers the
+     * messages in flight
+     */
+    public long getCreatedCount() {
+        return m_created.get();
+    }
+
+    void recycle(Message message) {
+        message.reset();
+        message.m_bridge = null;
+        // a full pool lets the message go
+        m_free.offer(message);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The PooledDispatcher shares a bounded pool of threads across all Exchanges.
+ * Only Exchanges with pending messages occupy a thread, so the thread count stays fixed no matter
+ * how many topics exist. Each Exchange is run by at most one pool thread at a time - per-topic
+ * FIFO order is unchanged.
+ */
+public class PooledDispatcher implements Dispatcher {
+    public static final int DEFAULT_POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static final AtomicInteger s_poolCount = new AtomicInteger();
+
+    private final NamedThreadFactory m_threadFactory =
+            new NamedThreadFactory("ExchangePool-" + s_poolCount.incrementAndGet() + "-");
+    ExecutorService m_executor;
+
+    public PooledDispatcher() {
+        this(DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param threads number of threads shared by all Exchanges
+     */
+    public PooledDispatcher(int threads) {
+        if(threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        m_executor = Executors.newFixedThreadPool(threads, m_threadFactory);
+    }
+
+    @Override
+    public void attach(Runnable task) {
+        // nothing held per exchange
+    }
+
+    @Override
+    public void dispatch(Runnable task) {
+        try {
+            m_executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // dispatcher shut down - nothing more to deliver
+        }
+    }
+
+    @Override
+    public void detach(Runnable task) {
+        // nothing held per exchange
+    }
+
+    @Override
+    public void shutdown() {
+        m_executor.shutdownNow();
+    }
+
+    String getThreadPrefix() {
+        return m_threadFactory.getPrefix();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Request tracks a message sent with MessageBroker.request() until its reply. It completes with the first
+ * reply carrying its correlation id, or fails if the request is dropped or no reply arrives within the timeout.
+ * Pending requests are kept in the broker's map by correlation id and time out on the broker's TimingWheel, so
+ * an outstanding request costs a map entry and a timer - no thread.
+ * Listeners run on the thread that completes the Request - a reply topic's delivery thread or the timer's - keep
+ * them short.
+ */
+public class Request implements Future<Message> {
+    /**
+     * Called once when a Request gets its reply, fails or is cancelled
+     */
+    public interface Listener {
+        void onComplete(Request request);
+    }
+
+    private static final int PENDING = 0;
+    private static final int REPLIED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    final MessageBroker m_broker;
+    final Message m_message;
+    final String m_correlationId;
+    volatile TimingWheel.Timeout m_timeout;
+    private volatile int m_state = PENDING;
+    private Message m_reply;
+    private Throwable m_cause;
+    private ArrayList<Listener> m_listeners;
+
+    Request(MessageBroker broker, Message message, String correlationId) {
+        m_broker = broker;
+        m_message = message;
+        m_correlationId = correlationId;
+    }
+
+    /**
+     * @return the request message - if it was pooled it may have been recycled once delivered
+     */
+    public Message getMessage() {
+        return m_message;
+    }
+
+    public String getCorrelationId() {
+        return m_correlationId;
+    }
+
+    /**
+     * Run the listener when the Request completes - immediately, on this thread, if it already has
+     * @param listener
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if(m_state == PENDING) {
+                if(m_listeners == null) {
+                    m_listeners = new ArrayList<>(1);
+                }
+                m_listeners.add(listener);
+                return;
+            }
+        }
+        listener.onComplete(this);
+    }
+
+    /**
+     * @return the reply, null until it arrives
+     */
+    public synchronized Message getReply() {
+        return m_reply;
+    }
+
+    /**
+     * @return why the Request failed - TimeoutException, MessageRejectedException (dropped),
+     * IllegalStateException (broker shut down) - or null
+     */
+    public synchronized Throwable getCause() {
+        return m_cause;
+    }
+
+    /**
+     * Stop waiting for a reply - one arriving later is ignored. The request message is not withdrawn.
+     * @return false if the Request already completed
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(CANCELLED, null, null);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return m_state == CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return m_state != PENDING;
+    }
+
+    /**
+     * Wait for the reply
+     * @return the reply - release() it when done if it is pooled
+     * @throws ExecutionException if the request failed
+     * @throws CancellationException if the request was cancelled
+     */
+    @Override
+    public synchronized Message get() throws InterruptedException, ExecutionException {
+        while(m_state == PENDING) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized Message get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while(m_state == PENDING) {
+            if(remaining <= 0) {
+                throw new TimeoutException("no reply to request " + m_correlationId);
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return result();
+    }
+
+    /**
+     * @param reply
+     * @return false if the Request already completed - the reply isn't kept
+     */
+    boolean complete(Message reply) {
+        return finish(REPLIED, reply, null);
+    }
+
+    boolean fail(Throwable cause) {
+        return finish(FAILED, null, cause);
+    }
+
+    private boolean finish(int state, Message reply, Throwable cause) {
+        ArrayList<Listener> listeners;
+        synchronized (this) {
+            if(m_state != PENDING) {
+                return false;
+            }
+            if(reply != null) {
+                // the reply outlives its delivery
+                reply.retain();
+            }
+            m_reply = reply;
+            m_cause = cause;
+            m_state = state;
+            listeners = m_listeners;
+            m_listeners = null;
+            // no longer pending by the time a waiter wakes
+            m_broker.m_requests.remove(m_correlationId, this);
+            notifyAll();
+        }
+        TimingWheel.Timeout timeout = m_timeout;
+        if(timeout != null) {
+            timeout.cancel();
+        }
+        if(listeners != null) {
+            for(Listener listener: listeners) {
+                listener.onComplete(this);
+            }
+        }
+        return true;
+    }
+
+    private Message result() throws ExecutionException {
+        if(m_state == FAILED) {
+            throw new ExecutionException(m_cause);
+        }
+        if(m_state == CANCELLED) {
+            throw new CancellationException("request " + m_correlationId + " cancelled");
+        }
+        return m_reply;
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A preallocated, lock-free, multiple-producer ring buffer of Messages.
+ * Producers claim a slot by CAS on the tail, store the message, then publish the slot by advancing its
+ * sequence. The consumer only reads slots whose sequence shows they are published, so messages are drained
+ * in claim order. Neither side allocates or locks.
+ *
+ * Delivery is the single regular consumer, but the head is also claimed by CAS so a publisher can evict the
+ * oldest message when the buffer is full (OverflowPolicy.DROP_OLDEST).
+ *
+ * Both sides are split into claim and publish/release steps. A slot can carry an attachment (the Exchange
+ * keeps expiry timers there) that is written before the slot becomes visible and detached before it is reused.
+ * A slot can also carry a long tag (the Exchange keeps journal offsets there), read by whoever claims the head.
+ */
+class RingBufferQueue {
+    private final int m_capacity;
+    private final int m_mask;
+    private final AtomicReferenceArray<Message> m_buffer;
+    private final AtomicReferenceArray<Object> m_attachments; // null unless requested
+    private final long[] m_tags; // null unless requested, published by the slot sequence
+    // slot sequence: equals the position when free for that position, position + 1 once published
+    private final AtomicLongArray m_sequence;
+    private final AtomicLong m_tail = new AtomicLong();
+    private final AtomicLong m_head = new AtomicLong();
+
+    /**
+     * @param capacity number of slots - rounded up to a power of two
+     */
+    RingBufferQueue(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity number of slots - rounded up to a power of two
+     * @param attachments true to allow an attachment per slot
+     */
+    RingBufferQueue(int capacity, boolean attachments) {
+        this(capacity, attachments, false);
+    }
+
+    /**
+     * @param capacity number of slots - rounded up to a power of two
+     * @param attachments true to allow an attachment per slot
+     * @param tags true to allow a tag per slot
+     */
+    RingBufferQueue(int capacity, boolean attachments, boolean tags) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) {
+            size <<= 1;
+        }
+        m_capacity = size;
+        m_mask = size - 1;
+        m_buffer = new AtomicReferenceArray<>(size);
+        m_sequence = new AtomicLongArray(size);
+        m_attachments = attachments ? new AtomicReferenceArray<Object>(size) : null;
+        m_tags = tags ? new long[size] : null;
+        for(int i = 0; i < size; i++) {
+            m_sequence.set(i, i);
+        }
+    }
+
+    /**
+     * Add a message at the tail - safe to call from any thread. Only tests and QueueBenchmark use this one-step
+     * form; the Exchange claims and publishes separately.
+     * @param message
+     * @return false if the buffer is full
+     */
+    boolean offer(Message message) {
+        long position = claim();
+        if(position < 0) {
+            return false;
+        }
+        publish(position, message);
+        return true;
+    }
+
+    /**
+     * Remove the message at the head. Only tests and QueueBenchmark use this one-step form; delivery claims
+     * and releases separately.
+     * @return the message or null if nothing is ready
+     */
+    Message poll() {
+        long position;
+        while((position = claimHead()) >= 0) {
+            Message message = release(position);
+            if(message != null) {
+                return message;
+            }
+            // removed (expired) while queued - skip
+        }
+        return null;
+    }
+
+    /**
+     * Claim the next tail position for a producer. The producer must publish() it.
+     * @return the position or -1 if the buffer is full
+     */
+    long claim() {
+        while(true) {
+            long tail = m_tail.get();
+            long diff = m_sequence.get((int) (tail & m_mask)) - tail;
+            if(diff == 0) {
+                if(m_tail.compareAndSet(tail, tail + 1)) {
+                    return tail;
+                }
+            } else if(diff < 0) {
+                // the slot still holds a message from the previous lap - full
+                return -1;
+            }
+            // else another producer claimed this position first - retry
+        }
+    }
+
+    /**
+     * Store the message in a claimed position and make it visible to the consumer
+     * @param position from claim()
+     * @param message
+     */
+    void publish(long position, Message message) {
+        publish(position, message, null);
+    }
+
+    /**
+     * Store the message and an attachment in a claimed position and make it visible to the consumer
+     * @param position from claim()
+     * @param message
+     * @param attachment requires a queue created with attachments
+     */
+    void publish(long position, Message message, Object attachment) {
+        publish(position, message, attachment, 0);
+    }
+
+    /**
+     * Store the message, an attachment and a tag in a claimed position and make it visible to the consumer
+     * @param position from claim()
+     * @param message
+     * @param attachment requires a queue created with attachments
+     * @param tag ignored unless the queue was created with tags
+     */
+    void publish(long position, Message message, Object attachment, long tag) {
+        int index = index(position);
+        if(m_tags != null) {
+            m_tags[index] = tag;
+        }
+        if(attachment != null) {
+            m_attachments.lazySet(index, attachment);
+        }
+        m_buffer.lazySet(index, message);
+        m_sequence.set(index, position + 1);
+    }
+
+    /**
+     * Claim the head position for a consumer. The consumer must release() it.
+     * @return the position or -1 if nothing is ready
+     */
+    long claimHead() {
+        while(true) {
+            long head = m_head.get();
+            long diff = m_sequence.get((int) (head & m_mask)) - (head + 1);
+            if(diff == 0) {
+                if(m_head.compareAndSet(head, head + 1)) {
+                    return head;
+                }
+            } else if(diff < 0) {
+                // not yet published - empty
+                return -1;
+            }
+            // else another thread took this position first - retry
+        }
+    }
+
+    /**
+     * Take the message from a claimed head position and free the slot for producers
+     * @param position from claimHead()
+     * @return the message or null if it was removed while queued
+     */
+    Message release(long position) {
+        int index = index(position);
+        Message message = m_buffer.getAndSet(index, null);
+        if(m_attachments != null) {
+            m_attachments.lazySet(index, null);
+        }
+        // free the slot for the producer one lap ahead
+        m_sequence.set(index, position + m_capacity);
+        return message;
+    }
+
+    /**
+     * Remove a queued message in place - the slot stays occupied until the consumer passes it or
+     * reclaimHead() frees it. Either this or the consumer gets the message, never both.
+     * @param position the position the message was published at
+     * @param message
+     * @return true if the message was removed, false if it was already consumed
+     */
+    boolean remove(long position, Message message) {
+        int index = index(position);
+        return m_sequence.get(index) == position + 1 && m_buffer.compareAndSet(index, message, null);
+    }
+
+    /**
+     * Free the slots at the head whose messages were removed in place, so their room can be reused even if
+     * the consumer isn't running - safe to call from any thread
+     * @return number of slots freed
+     */
+    int reclaimHead() {
+        int freed = 0;
+        while(true) {
+            long head = m_head.get();
+            int index = index(head);
+            // a removed message stays null until its slot is released
+            if(m_sequence.get(index) != head + 1 || m_buffer.get(index) != null) {
+                return freed;
+            }
+            if(m_head.compareAndSet(head, head + 1)) {
+                release(head);
+                freed++;
+            }
+        }
+    }
+
+    /**
+     * @param position the position a message was published at
+     * @return the message still queued there, null if it was consumed or removed
+     */
+    Message peek(long position) {
+        int index = index(position);
+        Message message = m_buffer.get(index);
+        return m_sequence.get(index) == position + 1 ? message : null;
+    }
+
+    /**
+     * Swap a queued message for another in place - it keeps the position, attachment and tag.
+     * Either this or the consumer gets the expected message, never both.
+     * @param position the position the expected message was published at
+     * @param expected
+     * @param message
+     * @return true if replaced, false if the expected message was already consumed or removed
+     */
+    boolean replace(long position, Message expected, Message message) {
+        int index = index(position);
+        return m_sequence.get(index) == position + 1 && m_buffer.compareAndSet(index, expected, message);
+    }
+
+    /**
+     * Take the attachment from a claimed head position - call before release()
+     * @param position from claimHead()
+     * @return the attachment or null
+     */
+    Object detach(long position) {
+        return m_attachments == null ? null : m_attachments.getAndSet(index(position), null);
+    }
+
+    /**
+     * Drop the attachment of a queued message if it is still the expected one
+     * @param position
+     * @param attachment
+     */
+    void detach(long position, Object attachment) {
+        if(m_attachments != null) {
+            m_attachments.compareAndSet(index(position), attachment, null);
+        }
+    }
+
+    /**
+     * Read the tag of a claimed head position - call before release()
+     * @param position from claimHead()
+     * @return the tag or 0
+     */
+    long tag(long position) {
+        return m_tags == null ? 0 : m_tags[index(position)];
+    }
+
+    int index(long position) {
+        return (int) (position & m_mask);
+    }
+
+    /**
+     * @return true if there is no published message ready for the consumer
+     */
+    boolean isEmpty() {
+        long head = m_head.get();
+        return m_sequence.get((int) (head & m_mask)) != head + 1;
+    }
+
+    int size() {
+        long size = m_tail.get() - m_head.get();
+        return (int) Math.max(0, Math.min(size, m_capacity));
+    }
+
+    int capacity() {
+        return m_capacity;
+    }
+
+    /**
+     * @return positions claimed since the buffer was created - every message offered or published
+     */
+    long claimed() {
+        return m_tail.get();
+    }
+
+    /**
+     * Scan queued messages for the given instance - O(n), used by tests only
+     * @param message
+     * @return true if the message is queued
+     */
+    boolean contains(Message message) {
+        long tail = m_tail.get();
+        for(long position = m_head.get(); position < tail; position++) {
+            if(m_buffer.get((int) (position & m_mask)) == message) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A BridgeTransport over TCP, by default on the loopback interface so brokers in processes on the same device
+ * can be bridged. One side listens (server()) and accepts its peer, the other connects (client()) - either side
+ * may publish and subscribe. Nagle's algorithm is turned off - the bridge does its own batching.
+ */
+public class SocketTransport implements BridgeTransport {
+    private final InetSocketAddress m_address;
+    private final boolean m_listen;
+    private ServerSocketChannel m_server;
+    private SocketChannel m_channel; // current connection
+    private boolean m_closed;
+
+    /**
+     * @param port port to listen on, 0 for any free port - see getLocalPort()
+     * @return a transport that accepts its peer's connection on the loopback interface
+     * @throws IOException if the port can't be bound
+     */
+    public static SocketTransport server(int port) throws IOException {
+        SocketTransport transport = new SocketTransport(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                true);
+        transport.m_server = ServerSocketChannel.open();
+        transport.m_server.socket().setReuseAddress(true);
+        transport.m_server.socket().bind(transport.m_address);
+        return transport;
+    }
+
+    /**
+     * @param port
+     * @return a transport that connects to a server() on the loopback interface
+     */
+    public static SocketTransport client(int port) {
+        return client(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    /**
+     * @param address
+     * @return a transport that connects to a server() at the given address
+     */
+    public static SocketTransport client(InetSocketAddress address) {
+        return new SocketTransport(address, false);
+    }
+
+    private SocketTransport(InetSocketAddress address, boolean listen) {
+        m_address = address;
+        m_listen = listen;
+    }
+
+    /**
+     * @return the port a server() listens on, the port connected to for a client()
+     */
+    public int getLocalPort() {
+        if(m_listen) {
+            return m_server.socket().getLocalPort();
+        }
+        return m_address.getPort();
+    }
+
+    @Override
+    public ByteChannel open() throws IOException {
+        synchronized (this) {
+            if(m_closed) {
+                throw new IOException("transport closed");
+            }
+            // a new connection replaces the last one
+            closeChannel();
+        }
+        SocketChannel channel;
+        if(m_listen) {
+            channel = m_server.accept();
+        } else {
+            channel = SocketChannel.open(m_address);
+        }
+        channel.socket().setTcpNoDelay(true);
+        synchronized (this) {
+            if(m_closed) {
+                channel.close();
+                throw new IOException("transport closed");
+            }
+            m_channel = channel;
+        }
+        return channel;
+    }
+
+    @Override
+    public synchronized void close() {
+        m_closed = true;
+        closeChannel();
+        if(m_server != null) {
+            try {
+                m_server.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeChannel() {
+        if(m_channel != null) {
+            try {
+                m_channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            m_channel = null;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A SubscriberChannel is one subscriber's own queue and delivery task in a fan-out topic.
+ * The Exchange hands each message to every channel; each channel is dispatched separately, so a slow
+ * subscriber only falls behind on its own queue. When a channel is full its OverflowPolicy applies to that
+ * subscriber alone: BLOCK holds the topic's delivery until the channel has room, DROP_OLDEST and DROP_NEWEST
+ * discard from this subscriber's queue only.
+ * Each queued message carries its Delivery, if it has one - the channel counts its arrival after the
+ * subscriber returns, and fails it if the message is dropped. The channel holds a reference to each pooled
+ * message it queues and releases it the same way.
+ * On an instrumented topic the channel records the subscriber's SubscriberMetrics.
+ * A delivery the subscriber throws on is retried by the Exchange's timing wheel; when due it comes back to the
+ * channel, which makes the attempt ahead of its next batch.
+ */
+class SubscriberChannel implements Runnable {
+    final Subscriber m_subscriber;
+    final Exchange m_exchange;
+    final RingBufferQueue m_queue;
+    final OverflowPolicy m_overflowPolicy;
+    final int m_batchSize;
+    // reused for every batch - delivery thread only
+    final ArrayList<Message> m_batch;
+    final List<Message> m_batchView;
+    final Delivery[] m_batchDeliveries;
+    final SubscriberMetrics m_metrics; // null if not instrumented
+    final ConcurrentLinkedQueue<Exchange.Redelivery> m_retries = new ConcurrentLinkedQueue<>(); // due
+    final AtomicBoolean m_scheduled = new AtomicBoolean(false);
+    final AtomicLong m_pending = new AtomicLong(); // queued or being delivered
+    final AtomicLong m_delivered = new AtomicLong();
+    final AtomicLong m_dropped = new AtomicLong();
+    volatile boolean m_shutdown;
+
+    SubscriberChannel(Exchange exchange, Subscriber subscriber, int capacity, OverflowPolicy policy,
+                      int batchSize, SubscriberMetrics metrics) {
+        m_exchange = exchange;
+        m_subscriber = subscriber;
+        m_queue = new RingBufferQueue(capacity, true);
+        m_overflowPolicy = policy;
+        m_batchSize = batchSize;
+        m_batch = new ArrayList<>(batchSize);
+        m_batchView = Collections.unmodifiableList(m_batch);
+        m_batchDeliveries = new Delivery[batchSize];
+        m_metrics = metrics;
+        m_exchange.m_dispatcher.attach(this);
+    }
+
+    /**
+     * Queue a message for the subscriber - called by the Exchange's delivery only
+     * @param message
+     * @param delivery the message's Delivery or null
+     * @return false if the channel is full and its policy is BLOCK. The channel wakes the Exchange when it
+     * makes room.
+     */
+    boolean offer(Message message, Delivery delivery) {
+        if(m_shutdown) {
+            arrive(delivery);
+            message.release();
+            return true;
+        }
+        long position;
+        while((position = m_queue.claim()) < 0) {
+            switch (m_overflowPolicy) {
+                case DROP_OLDEST:
+                    long oldest = m_queue.claimHead();
+                    if(oldest >= 0) {
+                        Delivery dropped = (Delivery) m_queue.detach(oldest);
+                        Message evicted = m_queue.release(oldest);
+                        m_pending.decrementAndGet();
+                        m_dropped.incrementAndGet();
+                        dropped(evicted, dropped);
+                    }
+                    break;
+                case DROP_NEWEST:
+                    m_dropped.incrementAndGet();
+                    dropped(message, delivery);
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        m_queue.publish(position, message, delivery);
+        m_pending.incrementAndGet();
+        schedule();
+        return true;
+    }
+
+    /**
+     * Deliver up to a batch of queued messages, then release the dispatcher thread
+     */
+    @Override
+    public void run() {
+        try {
+            Exchange.Redelivery redelivery;
+            while(!m_shutdown && (redelivery = m_retries.poll()) != null) {
+                redelivery.attempt();
+            }
+            long position;
+            while(m_batch.size() < m_batchSize && !m_shutdown && (position = m_queue.claimHead()) >= 0) {
+                m_batchDeliveries[m_batch.size()] = (Delivery) m_queue.detach(position);
+                m_batch.add(m_queue.release(position));
+            }
+            if(!m_batch.isEmpty()) {
+                // room was made - the Exchange may be waiting for it
+                m_exchange.channelDrained(this);
+                if(m_subscriber instanceof BatchSubscriber) {
+                    // the channel's batch size is the Exchange's
+                    m_exchange.attemptBatch((BatchSubscriber) m_subscriber, m_metrics, m_batchView, this,
+                            m_exchange.m_positions);
+                } else {
+                    for(int i = 0; i < m_batch.size(); i++) {
+                        Message message = m_batch.get(i);
+                        // time sampled messages
+                        long start = m_metrics != null && message.m_enqueued != 0 ? System.nanoTime() : 0;
+                        m_exchange.attempt(m_subscriber, m_metrics, message, start, this, i);
+                    }
+                }
+                for(int i = 0; i < m_batch.size(); i++) {
+                    arrive(m_batchDeliveries[i]);
+                    m_batchDeliveries[i] = null;
+                    m_batch.get(i).release();
+                }
+                m_delivered.addAndGet(m_batch.size());
+                m_pending.addAndGet(-m_batch.size());
+                m_batch.clear();
+            }
+        } finally {
+            m_scheduled.set(false);
+        }
+        schedule();
+    }
+
+    /**
+     * @return messages queued for the subscriber that it hasn't finished receiving
+     */
+    long getLag() {
+        return m_pending.get();
+    }
+
+    long getDeliveredCount() {
+        return m_delivered.get();
+    }
+
+    long getDroppedCount() {
+        return m_dropped.get();
+    }
+
+    /**
+     * Stop delivery - queued messages no longer wait for this subscriber
+     */
+    void shutdown() {
+        m_shutdown = true;
+        m_exchange.m_dispatcher.detach(this);
+        long position;
+        while((position = m_queue.claimHead()) >= 0) {
+            Delivery delivery = (Delivery) m_queue.detach(position);
+            Message message = m_queue.release(position);
+            if(!m_exchange.m_shutdown) {
+                // unsubscribed - the message no longer waits for this subscriber
+                arrive(delivery);
+            } else if(delivery != null) {
+                // left unacknowledged in the journal
+                delivery.fail(new IllegalStateException("topic shut down, message " + delivery.getMessage().getId()
+                        + " not delivered"));
+            }
+            if(message != null) {
+                message.release();
+            }
+        }
+        m_exchange.abandon(m_retries);
+        m_exchange.channelDrained(this);
+    }
+
+    private static void arrive(Delivery delivery) {
+        if(delivery != null) {
+            delivery.arrive();
+        }
+    }
+
+    private static void dropped(Message message, Delivery delivery) {
+        if(delivery != null) {
+            delivery.fail(new MessageRejectedException("subscriber queue full, message " + message.getId()
+                    + " dropped"));
+            // still counts as handled
+            delivery.arrive();
+        }
+        message.release();
+    }
+
+    void schedule() {
+        if(m_shutdown || m_scheduled.get() || (m_queue.isEmpty() && m_retries.isEmpty())) {
+            return;
+        }
+        if(m_scheduled.compareAndSet(false, true)) {
+            m_exchange.m_dispatcher.dispatch(this);
+        }
+    }
+}
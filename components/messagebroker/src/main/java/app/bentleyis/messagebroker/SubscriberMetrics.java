@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What an instrumented Exchange records for one subscriber. Only the thread delivering to the subscriber
+ * writes - the Exchange's delivery thread, or the subscriber's SubscriberChannel in fan-out mode.
+ */
+class SubscriberMetrics {
+    final AtomicLong m_received = new AtomicLong();
+    final LatencyHistogram m_receiveTime = new LatencyHistogram(); // receive() calls of sampled messages
+
+    void received(int count) {
+        // single writer - no need for an atomic add
+        m_received.lazySet(m_received.get() + count);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker;
+
+import java.io.Serializable;
+
+/**
+ * A snapshot of one subscriber on an instrumented topic - part of TopicStatistics
+ */
+public class SubscriberStatistics implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final transient Subscriber m_subscriber;
+    final String m_name;
+    final long m_receivedCount;
+    final long m_lag;
+    final long m_droppedCount;
+    final LatencyHistogram m_receiveTime;
+
+    SubscriberStatistics(Subscriber subscriber, long receivedCount, long lag, long droppedCount,
+                         LatencyHistogram receiveTime) {
+        m_subscriber = subscriber;
+        m_name = subscriber.toString();
+        m_receivedCount = receivedCount;
+        m_lag = lag;
+        m_droppedCount = droppedCount;
+        m_receiveTime = receiveTime;
+    }
+
+    /**
+     * @return the subscriber - null once the statistics have been serialized
+     */
+    public Subscriber getSubscriber() {
+        return m_subscriber;
+    }
+
+    /**
+     * @return the subscriber's toString()
+     */
+    public String getName() {
+        return m_name;
+    }
+
+    public long getReceivedCount() {
+        return m_receivedCount;
+    }
+
+    /**
+     * @return in fan-out mode, messages queued for the subscriber - 0 otherwise
+     */
+    public long getLag() {
+        return m_lag;
+    }
+
+    /**
+     * @return in fan-out mode, messages dropped from the subscriber's queue - 0 otherwise
+     */
+    public long getDroppedCount() {
+        return m_droppedCount;
+    }
+
+    /**
+     * @return time spent in receive() (or receiveBatch(), per batch)
+     */
+    public LatencyHistogram getReceiveTime() {
+        return m_receiveTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: received=%d lag=%d dropped=%d receive[%s]", m_name, m_receivedCount, m_lag,
+                m_droppedCount, m_receiveTime);
+    }
+}
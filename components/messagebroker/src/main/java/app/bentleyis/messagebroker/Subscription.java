@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.Arrays;
+
+/**
+ * A Subscription says which messages on a topic a subscriber accepts: messages of some types (and their
+ * subclasses) that match a content filter. A subscriber matched by several subscriptions accepts a message
+ * if any of them does.
+ */
+public final class Subscription {
+    public static final Subscription ALL = new Subscription(null, null);
+
+    final Class<?>[] m_types; // null accepts all
+    final MessageFilter m_filter; // null accepts all
+
+    /**
+     * @param types accepted message types, null or empty for all
+     * @param filter content filter, null or empty for all
+     */
+    public Subscription(Class<?>[] types, MessageFilter filter) {
+        m_types = types == null || types.length == 0 ? null : types.clone();
+        m_filter = filter == null || filter.isEmpty() ? null : new MessageFilter(filter);
+    }
+
+    public MessageFilter getFilter() {
+        return m_filter == null ? null : new MessageFilter(m_filter);
+    }
+
+    /**
+     * @param type concrete message class
+     * @return true if the type or one of its supertypes is accepted
+     */
+    public boolean accepts(Class<?> type) {
+        return DispatchTable.accepts(m_types, type);
+    }
+
+    public boolean accepts(Message message) {
+        return accepts(message.getClass()) && (m_filter == null || m_filter.matches(message));
+    }
+
+    /**
+     * @param subscriptions
+     * @param message
+     * @return true if any of the subscriptions accepts the message
+     */
+    static boolean accepts(Subscription[] subscriptions, Message message) {
+        for(Subscription subscription: subscriptions) {
+            if(subscription.accepts(message)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof Subscription)) {
+            return false;
+        }
+        Subscription subscription = (Subscription) o;
+        return Arrays.equals(m_types, subscription.m_types)
+                && (m_filter == null ? subscription.m_filter == null : m_filter.equals(subscription.m_filter));
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(m_types) * 31 + (m_filter == null ? 0 : m_filter.hashCode());
+    }
+}
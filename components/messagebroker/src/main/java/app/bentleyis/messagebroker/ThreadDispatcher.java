@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The ThreadDispatcher dedicates a thread to each Exchange (topic), and to each fan-out subscriber.
+ * This is the original delivery model - simple and isolated, but every topic costs a thread even when idle.
+ * Use PooledDispatcher when there are many topics.
+ */
+public class ThreadDispatcher implements Dispatcher {
+    ConcurrentHashMap<Runnable, ExecutorService> m_threads = new ConcurrentHashMap<>();
+    private final NamedThreadFactory m_threadFactory = new NamedThreadFactory("Exchange-");
+
+    @Override
+    public void attach(Runnable task) {
+        m_threads.put(task, Executors.newSingleThreadExecutor(m_threadFactory));
+    }
+
+    @Override
+    public void dispatch(Runnable task) {
+        ExecutorService thread = m_threads.get(task);
+        if(thread == null) {
+            return;
+        }
+        try {
+            thread.execute(task);
+        } catch (RejectedExecutionException e) {
+            // detached while dispatching - nothing more to deliver
+        }
+    }
+
+    @Override
+    public void detach(Runnable task) {
+        ExecutorService thread = m_threads.remove(task);
+        if(thread != null) {
+            thread.shutdownNow();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        for(ExecutorService thread: m_threads.values()) {
+            thread.shutdownNow();
+        }
+        m_threads.clear();
+    }
+}
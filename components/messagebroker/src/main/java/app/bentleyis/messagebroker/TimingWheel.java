@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hierarchical timing wheel - a single thread runs any number of timeouts with O(1) schedule and cancel.
+ * Time is divided into ticks. The first level has a bucket per tick for one revolution; each further level has
+ * the same number of buckets, each as long as a whole revolution of the level below. A timeout is kept in the
+ * lowest level that reaches its deadline and moves down a level each time its bucket comes round, so expiring
+ * a tick only touches the timeouts due in it. Expiry precision is one tick.
+ *
+ * The thread is started by the first schedule(). Tasks run on the wheel thread, so they must be short.
+ */
+public class TimingWheel {
+    public static final long DEFAULT_TICK = 10; // milliseconds
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    static final int LEVELS = 4; // 512 buckets of 10ms reach 21 years
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    /**
+     * Handle to a scheduled task
+     */
+    public static class Timeout {
+        final TimingWheel m_wheel;
+        final Runnable m_task;
+        final long m_period; // nanoseconds between runs, 0 to run once
+        long m_deadline; // nanoseconds since the wheel started
+        final AtomicInteger m_state = new AtomicInteger(PENDING);
+        // bucket list - touched only by the wheel thread
+        Bucket m_bucket;
+        Timeout m_next;
+        Timeout m_prev;
+
+        Timeout(TimingWheel wheel, Runnable task, long deadline, long period) {
+            m_wheel = wheel;
+            m_task = task;
+            m_deadline = deadline;
+            m_period = period;
+        }
+
+        /**
+         * Prevent the task from running. The wheel releases the timeout on its next tick.
+         * A periodic task that is already running finishes its current run.
+         * @return false if the task already ran or was cancelled
+         */
+        public boolean cancel() {
+            if(!m_state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            m_wheel.m_cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return m_state.get() == CANCELLED;
+        }
+
+        /**
+         * @return true once a one-off task has run - periodic tasks never expire
+         */
+        public boolean isExpired() {
+            return m_state.get() == EXPIRED;
+        }
+
+        public boolean isPeriodic() {
+            return m_period > 0;
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts sharing a bucket
+     */
+    static class Bucket {
+        Timeout m_head;
+        Timeout m_tail;
+
+        void add(Timeout timeout) {
+            timeout.m_bucket = this;
+            if(m_head == null) {
+                m_head = m_tail = timeout;
+            } else {
+                m_tail.m_next = timeout;
+                timeout.m_prev = m_tail;
+                m_tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.m_next;
+            if(timeout.m_prev != null) {
+                timeout.m_prev.m_next = next;
+            }
+            if(next != null) {
+                next.m_prev = timeout.m_prev;
+            }
+            if(timeout == m_head) {
+                m_head = next;
+            }
+            if(timeout == m_tail) {
+                m_tail = timeout.m_prev;
+            }
+            timeout.m_prev = null;
+            timeout.m_next = null;
+            timeout.m_bucket = null;
+            return next;
+        }
+    }
+
+    private final long m_tickNanos;
+    private final int m_bits; // log2 of the wheel size
+    private final int m_mask;
+    private final Bucket[][] m_levels;
+    private final Bucket m_rearm = new Bucket(); // periodic timeouts that ran this tick
+    private final long m_startTime = System.nanoTime();
+    private final ConcurrentLinkedQueue<Timeout> m_scheduled = new ConcurrentLinkedQueue<>();
+    final ConcurrentLinkedQueue<Timeout> m_cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger m_pending = new AtomicInteger();
+    private final AtomicBoolean m_started = new AtomicBoolean(false);
+    private volatile boolean m_shutdown;
+    private volatile Thread m_thread;
+
+    public TimingWheel() {
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param wheelSize number of buckets per level - rounded up to a power of two, at least 2
+     */
+    public TimingWheel(long tickMillis, int wheelSize) {
+        if(tickMillis < 1 || wheelSize < 1) {
+            throw new IllegalArgumentException("tick and wheel size must be at least 1");
+        }
+        int size = Integer.highestOneBit(wheelSize);
+        if(size < wheelSize) {
+            size <<= 1;
+        }
+        size = Math.max(2, size);
+        m_tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        m_bits = Integer.numberOfTrailingZeros(size);
+        m_mask = size - 1;
+        // keep every level's shift inside a long
+        m_levels = new Bucket[Math.min(LEVELS, 62 / m_bits + 1)][size];
+        for(Bucket[] level: m_levels) {
+            for(int i = 0; i < size; i++) {
+                level[i] = new Bucket();
+            }
+        }
+    }
+
+    /**
+     * Run the task after the delay
+     * @param task
+     * @param delayMillis
+     * @return handle to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        return schedule(task, delayMillis, 0);
+    }
+
+    /**
+     * Run the task after the initial delay and then every period, measured from when each run was due.
+     * A late run happens once, at the next tick - runs missed while the wheel was held up are skipped, and the
+     * schedule carries on at its original phase.
+     * @param task
+     * @param initialDelayMillis
+     * @param periodMillis at least 1
+     * @return handle to cancel the task
+     */
+    public Timeout scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis) {
+        if(periodMillis < 1) {
+            throw new IllegalArgumentException("period must be at least 1ms");
+        }
+        return schedule(task, initialDelayMillis, TimeUnit.MILLISECONDS.toNanos(periodMillis));
+    }
+
+    private Timeout schedule(Runnable task, long delayMillis, long periodNanos) {
+        start();
+        long deadline = System.nanoTime() - m_startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(this, task, deadline, periodNanos);
+        m_pending.incrementAndGet();
+        m_scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * @return number of timeouts scheduled and not yet run or released after cancel
+     */
+    public int getPendingCount() {
+        return m_pending.get();
+    }
+
+    /**
+     * Stop the wheel thread. Pending tasks never run.
+     */
+    public void shutdown() {
+        m_shutdown = true;
+        if(m_thread != null) {
+            m_thread.interrupt();
+        }
+    }
+
+    private void start() {
+        if(m_started.get() || !m_started.compareAndSet(false, true)) {
+            return;
+        }
+        m_thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                turn();
+            }
+        }, "TimingWheel");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    private void turn() {
+        long tick = (System.nanoTime() - m_startTime) / m_tickNanos;
+        while(!m_shutdown) {
+            long deadline = (tick + 1) * m_tickNanos;
+            long sleep = deadline - (System.nanoTime() - m_startTime);
+            if(sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    // shutdown
+                    break;
+                }
+                continue;
+            }
+            releaseCancelled();
+            cascade(tick);
+            transferScheduled(tick);
+            expire(m_levels[0][(int) (tick & m_mask)], tick);
+            tick++;
+        }
+    }
+
+    private void releaseCancelled() {
+        Timeout timeout;
+        while((timeout = m_cancelled.poll()) != null) {
+            if(timeout.m_bucket != null) {
+                timeout.m_bucket.remove(timeout);
+                m_pending.decrementAndGet();
+            }
+        }
+    }
+
+    private void transferScheduled(long tick) {
+        Timeout timeout;
+        while((timeout = m_scheduled.poll()) != null) {
+            if(timeout.isCancelled()) {
+                m_pending.decrementAndGet();
+                continue;
+            }
+            place(timeout, tick);
+        }
+    }
+
+    /**
+     * Move the timeouts of each upper level bucket that starts at this tick down to the levels below
+     */
+    private void cascade(long tick) {
+        for(int level = 1; level < m_levels.length; level++) {
+            int shift = m_bits * level;
+            if((tick & ((1L << shift) - 1)) != 0) {
+                break;
+            }
+            Bucket bucket = m_levels[level][(int) ((tick >> shift) & m_mask)];
+            Timeout timeout = bucket.m_head;
+            while(timeout != null) {
+                Timeout next = bucket.remove(timeout);
+                place(timeout, tick);
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Add the timeout to the lowest level whose revolution reaches its deadline - never to a bucket that
+     * has already come round, so it can't miss its tick
+     */
+    private void place(Timeout timeout, long tick) {
+        // anything already due goes in the current bucket
+        long due = Math.max(timeout.m_deadline / m_tickNanos, tick);
+        for(int level = 0; level < m_levels.length; level++) {
+            int shift = m_bits * level;
+            if((due >> shift) - (tick >> shift) <= m_mask) {
+                m_levels[level][(int) ((due >> shift) & m_mask)].add(timeout);
+                return;
+            }
+        }
+        // beyond the top level - wait in its furthest bucket and be placed again from there
+        int top = m_levels.length - 1;
+        int shift = m_bits * top;
+        m_levels[top][(int) (((tick >> shift) + m_mask) & m_mask)].add(timeout);
+    }
+
+    /**
+     * Run every timeout in the current bucket - all are due - and put periodic ones back on the wheel. A one-shot
+     * timeout is released before its task runs, so the pending count is already down when the task is seen to run.
+     */
+    private void expire(Bucket bucket, long tick) {
+        Timeout timeout = bucket.m_head;
+        while(timeout != null) {
+            Timeout next = bucket.remove(timeout);
+            if(timeout.isPeriodic()) {
+                if(timeout.m_state.get() == PENDING) {
+                    run(timeout);
+                }
+                if(timeout.m_state.get() == PENDING) {
+                    m_rearm.add(timeout);
+                } else {
+                    m_pending.decrementAndGet();
+                }
+            } else {
+                m_pending.decrementAndGet();
+                if(timeout.m_state.compareAndSet(PENDING, EXPIRED)) {
+                    run(timeout);
+                }
+            }
+            timeout = next;
+        }
+        // rearmed after the bucket is done so a period shorter than the tick can't run twice in one tick
+        timeout = m_rearm.m_head;
+        long now = System.nanoTime() - m_startTime;
+        while(timeout != null) {
+            Timeout next = m_rearm.remove(timeout);
+            timeout.m_deadline += timeout.m_period;
+            if(timeout.m_deadline < now) {
+                // the wheel stalled - skip the missed runs instead of catching up one per tick, keeping the phase
+                timeout.m_deadline = now + timeout.m_period - (now - timeout.m_deadline) % timeout.m_period;
+            }
+            place(timeout, tick + 1);
+            timeout = next;
+        }
+    }
+
+    private void run(Timeout timeout) {
+        try {
+            timeout.m_task.run();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+}
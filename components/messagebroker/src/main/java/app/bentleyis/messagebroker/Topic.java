@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+/**
+ * A Topic is a handle for publishing to one topic without looking it up each time. Get it from
+ * MessageBroker.topic() and keep it - publishing through it goes straight to the topic's Exchange.
+ */
+public class Topic {
+    final MessageBroker m_broker;
+    final String m_name;
+    volatile Exchange m_exchange;
+
+    Topic(MessageBroker broker, String name, Exchange exchange) {
+        m_broker = broker;
+        m_name = name;
+        m_exchange = exchange;
+    }
+
+    public String getName() {
+        return m_name;
+    }
+
+    /**
+     * Queue a message for delivery to the topic's subscribers
+     * @param message
+     * @throws MessageRejectedException if the topic's queue is full and its OverflowPolicy is REJECT
+     */
+    public void publish(Message message) {
+        Exchange exchange = acquire();
+        try {
+            exchange.enqueue(message);
+        } finally {
+            exchange.release();
+        }
+    }
+
+    /**
+     * Queue a message for delivery and track it
+     * @param message
+     * @return Delivery that completes when every subscriber has received the message, or fails if it is
+     * dropped or expires
+     * @throws MessageRejectedException if the topic's queue is full and its OverflowPolicy is REJECT
+     */
+    public Delivery publishAsync(Message message) {
+        return publishAsync(message, 0);
+    }
+
+    /**
+     * Queue a message for delivery and track it
+     * @param message
+     * @param timeout milliseconds after which the Delivery fails with a TimeoutException, 0 for none
+     * @return Delivery that completes when every subscriber has received the message, or fails if it is
+     * dropped, expires or times out
+     * @throws MessageRejectedException if the topic's queue is full and its OverflowPolicy is REJECT
+     */
+    public Delivery publishAsync(Message message, long timeout) {
+        Exchange exchange = acquire();
+        try {
+            return exchange.enqueueAsync(message, timeout);
+        } finally {
+            exchange.release();
+        }
+    }
+
+    /**
+     * @return the topic's current Exchange, acquired - looked up again if the one held was retired as idle or
+     * shut down with the broker, as MessageBroker.publish() would
+     */
+    private Exchange acquire() {
+        Exchange exchange = m_exchange;
+        if(exchange.acquire()) {
+            if(!exchange.m_shutdown) {
+                return exchange;
+            }
+            exchange.release();
+        }
+        exchange = m_broker.acquire(m_name);
+        m_exchange = exchange;
+        return exchange;
+    }
+
+    @Override
+    public String toString() {
+        return m_name;
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.io.File;
+
+/**
+ * TopicConfiguration describes how a topic's Exchange queues and expires messages. Register it with
+ * MessageBroker.configure() before the topic is first used.
+ */
+public class TopicConfiguration {
+    static final int[] DEFAULT_LANE_WEIGHTS = {1, 4, 16}; // LOW, NORMAL, HIGH
+    static final int DEFAULT_RETENTION_CAPACITY = 256;
+    static final int DEFAULT_MAX_DELIVERY_ATTEMPTS = 3;
+    static final long DEFAULT_RETRY_BACKOFF = 100; // milliseconds
+    static final long DEFAULT_MAX_RETRY_BACKOFF = 30000; // milliseconds
+    static final long DEFAULT_BLOCK_TIMEOUT = 1000; // milliseconds
+
+    int m_capacity = Exchange.DEFAULT_CAPACITY;
+    int[] m_laneWeights = DEFAULT_LANE_WEIGHTS.clone();
+    OverflowPolicy m_overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    long m_blockTimeout = DEFAULT_BLOCK_TIMEOUT; // milliseconds, 0 waits indefinitely
+    long m_timeToLive; // milliseconds, 0 never expires
+    Subscriber m_expirySubscriber;
+    String m_deadLetterTopic;
+    int m_maxDeliveryAttempts = DEFAULT_MAX_DELIVERY_ATTEMPTS;
+    long m_retryBackoff = DEFAULT_RETRY_BACKOFF;
+    long m_maxRetryBackoff = DEFAULT_MAX_RETRY_BACKOFF;
+    int m_batchSize = Exchange.DEFAULT_BATCH_SIZE;
+    long m_batchLinger; // milliseconds
+    boolean m_fanOut;
+    int m_subscriberCapacity = Exchange.DEFAULT_CAPACITY;
+    OverflowPolicy m_subscriberOverflowPolicy = OverflowPolicy.BLOCK;
+    File m_journalDirectory;
+    MessageCodec m_journalCodec;
+    int m_journalSegmentSize = Journal.DEFAULT_SEGMENT_SIZE;
+    long m_journalCommitInterval = Journal.DEFAULT_COMMIT_INTERVAL;
+    boolean m_instrumented = true;
+    boolean m_conflated;
+    String m_conflationProperty; // null conflates by id
+    boolean m_retained;
+    String m_retentionProperty; // null retains the last message only
+    int m_retentionCapacity = DEFAULT_RETENTION_CAPACITY;
+
+    /**
+     * Maximum number of messages queued for delivery in each priority lane - rounded up to a power of two.
+     * A topic with messages of every Priority queues up to three times this.
+     * @param capacity per priority lane
+     */
+    public void setCapacity(int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        m_capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return m_capacity;
+    }
+
+    /**
+     * How many messages a priority lane may deliver per round when lanes compete. Higher lanes go first in
+     * each round, so the weights set the minimum share each lower lane keeps under load.
+     * Defaults: LOW 1, NORMAL 4, HIGH 16
+     * @param priority
+     * @param weight at least 1
+     */
+    public void setLaneWeight(Priority priority, int weight) {
+        if(weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+        m_laneWeights[priority.ordinal()] = weight;
+    }
+
+    public int getLaneWeight(Priority priority) {
+        return m_laneWeights[priority.ordinal()];
+    }
+
+    int[] getLaneWeights() {
+        return m_laneWeights;
+    }
+
+    /**
+     * What to do with a published message when the queue is full. The default, DROP_OLDEST, never holds up the
+     * publisher; dropped messages are counted in MessageBroker.getOverflowCount(). BLOCK makes the publisher wait
+     * for room instead - don't choose it for topics published from a UI or timer thread.
+     * @param policy default DROP_OLDEST
+     */
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        m_overflowPolicy = policy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return m_overflowPolicy;
+    }
+
+    /**
+     * How long a publisher waits for room under OverflowPolicy.BLOCK before the message is dropped. Waiting
+     * indefinitely can hang a publisher for good - or deadlock a subscriber publishing to its own topic.
+     * @param milliseconds default 1000, 0 waits indefinitely
+     */
+    public void setBlockTimeout(long milliseconds) {
+        m_blockTimeout = milliseconds;
+    }
+
+    public long getBlockTimeout() {
+        return m_blockTimeout;
+    }
+
+    /**
+     * How long after its timestamp a message on this topic expires. Messages with their own
+     * time-to-live use that instead.
+     * @param milliseconds 0 (the default) never expires
+     */
+    public void setTimeToLive(long milliseconds) {
+        m_timeToLive = milliseconds;
+    }
+
+    public long getTimeToLive() {
+        return m_timeToLive;
+    }
+
+    /**
+     * Receives messages that expire before delivery. Called on the timer thread - keep it short.
+     * @param subscriber
+     */
+    public void setExpirySubscriber(Subscriber subscriber) {
+        m_expirySubscriber = subscriber;
+    }
+
+    public Subscriber getExpirySubscriber() {
+        return m_expirySubscriber;
+    }
+
+    /**
+     * Topic that messages which could not be delivered (expired, or a subscriber threw on every delivery
+     * attempt) are published to. Republishing runs on the timer or delivery thread, so don't configure the
+     * dead-letter topic to BLOCK.
+     * @param topic
+     */
+    public void setDeadLetterTopic(String topic) {
+        m_deadLetterTopic = topic;
+    }
+
+    public String getDeadLetterTopic() {
+        return m_deadLetterTopic;
+    }
+
+    /**
+     * How many times a message is delivered to a subscriber that throws before it goes to the dead-letter
+     * topic. Retries wait on the timing wheel - the topic carries on delivering meanwhile.
+     * @param attempts default 3, 1 for no retries
+     */
+    public void setMaxDeliveryAttempts(int attempts) {
+        if(attempts < 1) {
+            throw new IllegalArgumentException("attempts must be at least 1");
+        }
+        m_maxDeliveryAttempts = attempts;
+    }
+
+    public int getMaxDeliveryAttempts() {
+        return m_maxDeliveryAttempts;
+    }
+
+    /**
+     * How long after a failed delivery it is retried - doubled for each further retry
+     * @param milliseconds default 100
+     */
+    public void setRetryBackoff(long milliseconds) {
+        if(milliseconds < 1) {
+            throw new IllegalArgumentException("backoff must be at least 1ms");
+        }
+        m_retryBackoff = milliseconds;
+    }
+
+    public long getRetryBackoff() {
+        return m_retryBackoff;
+    }
+
+    /**
+     * Longest wait between retries, however many have failed
+     * @param milliseconds default 30000
+     */
+    public void setMaxRetryBackoff(long milliseconds) {
+        if(milliseconds < 1) {
+            throw new IllegalArgumentException("backoff must be at least 1ms");
+        }
+        m_maxRetryBackoff = milliseconds;
+    }
+
+    public long getMaxRetryBackoff() {
+        return m_maxRetryBackoff;
+    }
+
+    /**
+     * Maximum number of messages delivered together - a BatchSubscriber receives up to this many per call.
+     * Also the number of messages delivered before a PooledDispatcher thread moves on to other topics.
+     * @param size default 64
+     */
+    public void setBatchSize(int size) {
+        if(size < 1) {
+            throw new IllegalArgumentException("batch size must be at least 1");
+        }
+        m_batchSize = size;
+    }
+
+    public int getBatchSize() {
+        return m_batchSize;
+    }
+
+    /**
+     * How long a batch that isn't full waits for more messages before delivery, while a BatchSubscriber is
+     * subscribed. The delivery thread is held while waiting, keep it short.
+     * @param milliseconds 0 (the default) delivers whatever is queued immediately
+     */
+    public void setBatchLinger(long milliseconds) {
+        m_batchLinger = milliseconds;
+    }
+
+    public long getBatchLinger() {
+        return m_batchLinger;
+    }
+
+    /**
+     * Give each subscriber its own queue and delivery thread (or turn on the Dispatcher) so a slow
+     * subscriber doesn't delay the others. Costs a queue per subscriber.
+     * @param fanOut default false - all subscribers are called in turn on the topic's delivery thread
+     */
+    public void setFanOut(boolean fanOut) {
+        m_fanOut = fanOut;
+    }
+
+    public boolean isFanOut() {
+        return m_fanOut;
+    }
+
+    /**
+     * Maximum number of messages queued for each subscriber in fan-out mode - rounded up to a power of two
+     * @param capacity
+     */
+    public void setSubscriberCapacity(int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        m_subscriberCapacity = capacity;
+    }
+
+    public int getSubscriberCapacity() {
+        return m_subscriberCapacity;
+    }
+
+    /**
+     * What to do when a subscriber's queue is full in fan-out mode - default BLOCK, which holds the topic's
+     * delivery until the subscriber catches up - the topic's queue fills meanwhile, under its own OverflowPolicy.
+     * DROP_OLDEST and DROP_NEWEST drop for that subscriber only.
+     * @param policy REJECT is not supported - there is no publisher to reject to
+     */
+    public void setSubscriberOverflowPolicy(OverflowPolicy policy) {
+        if(policy == OverflowPolicy.REJECT) {
+            throw new IllegalArgumentException("REJECT does not apply to subscriber queues");
+        }
+        m_subscriberOverflowPolicy = policy;
+    }
+
+    public OverflowPolicy getSubscriberOverflowPolicy() {
+        return m_subscriberOverflowPolicy;
+    }
+
+    /**
+     * Keep only the latest value per key: a message replaces a queued, not yet delivered message with the same
+     * key in place, so the queue holds at most one message per key however fast publishers are. Messages queued
+     * with publishAsync() are never replaced or replace others. Can't be combined with a journal.
+     * @param conflated default false - every message is delivered
+     */
+    public void setConflated(boolean conflated) {
+        m_conflated = conflated;
+    }
+
+    public boolean isConflated() {
+        return m_conflated;
+    }
+
+    /**
+     * Conflate by a property (see Message.getProperty()) instead of the message id. Messages without the
+     * property are queued as usual.
+     * @param name property name, null for the id
+     */
+    public void setConflationProperty(String name) {
+        m_conflationProperty = name;
+    }
+
+    public String getConflationProperty() {
+        return m_conflationProperty;
+    }
+
+    /**
+     * Keep the last delivered message and deliver it to each new subscriber as soon as it registers, so it
+     * starts with the current value instead of waiting for the next publish. A new subscriber gets the retained
+     * message and then everything delivered after it - none missed, none twice.
+     * @param retained default false
+     */
+    public void setRetained(boolean retained) {
+        m_retained = retained;
+    }
+
+    public boolean isRetained() {
+        return m_retained;
+    }
+
+    /**
+     * Retain the last message for each value of a property (see Message.getProperty()) rather than just the
+     * last message. Messages without the property share one entry.
+     * @param name property name, null retains the last message only
+     */
+    public void setRetentionProperty(String name) {
+        m_retentionProperty = name;
+    }
+
+    public String getRetentionProperty() {
+        return m_retentionProperty;
+    }
+
+    /**
+     * Most messages retained with a retention property - beyond it the least recently updated key is dropped
+     * @param keys default 256
+     */
+    public void setRetentionCapacity(int keys) {
+        if(keys < 1) {
+            throw new IllegalArgumentException("retention capacity must be at least 1");
+        }
+        m_retentionCapacity = keys;
+    }
+
+    public int getRetentionCapacity() {
+        return m_retentionCapacity;
+    }
+
+    /**
+     * Persist the topic's queued messages so they survive a restart. Each topic needs its own directory.
+     * @param directory created if missing, null (the default) disables the journal
+     * @param codec encodes the topic's messages
+     */
+    public void setJournal(File directory, MessageCodec codec) {
+        if(directory != null && codec == null) {
+            throw new IllegalArgumentException("a journal needs a codec");
+        }
+        m_journalDirectory = directory;
+        m_journalCodec = codec;
+    }
+
+    public File getJournalDirectory() {
+        return m_journalDirectory;
+    }
+
+    public MessageCodec getJournalCodec() {
+        return m_journalCodec;
+    }
+
+    /**
+     * Size of each journal segment file - also the largest message that can be journaled
+     * @param bytes
+     */
+    public void setJournalSegmentSize(int bytes) {
+        if(bytes < 64) {
+            throw new IllegalArgumentException("segment size must be at least 64 bytes");
+        }
+        m_journalSegmentSize = bytes;
+    }
+
+    public int getJournalSegmentSize() {
+        return m_journalSegmentSize;
+    }
+
+    /**
+     * How often journal writes are forced to disk. Messages written since the last commit can be lost
+     * if the machine (not just the application) fails.
+     * @param milliseconds 0 leaves it to the operating system
+     */
+    public void setJournalCommitInterval(long milliseconds) {
+        m_journalCommitInterval = milliseconds;
+    }
+
+    public long getJournalCommitInterval() {
+        return m_journalCommitInterval;
+    }
+
+    /**
+     * Count and time the topic's messages and subscribers - see MessageBroker.getStatistics(). One message in 64
+     * is timed, from enqueue until delivery starts and for each subscriber's receive(). On by default; the cost
+     * is a few percent of delivery at most.
+     * @param instrumented
+     */
+    public void setInstrumented(boolean instrumented) {
+        m_instrumented = instrumented;
+    }
+
+    public boolean isInstrumented() {
+        return m_instrumented;
+    }
+}
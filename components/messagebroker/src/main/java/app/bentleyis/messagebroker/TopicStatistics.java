@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of an instrumented topic - from MessageBroker.getStatistics(), or received on the statistics
+ * topic set with MessageBroker.publishStatistics(). Its id is the topic name, also available as the "topic"
+ * property for MessageFilters. Latencies are in nanoseconds, from a sample of the messages.
+ */
+public class TopicStatistics extends Message {
+    private static final long serialVersionUID = 1L;
+
+    public static final String TYPE = "application/x-topic-statistics";
+    final String m_topic;
+    final long m_queueDepth;
+    final long m_enqueuedCount;
+    final long m_deliveredCount;
+    final long m_droppedCount;
+    final long m_expiredCount;
+    final long m_conflatedCount;
+    final long m_failedCount;
+    final LatencyHistogram m_latency;
+    final List<SubscriberStatistics> m_subscribers;
+
+    TopicStatistics(String topic, long queueDepth, long enqueuedCount, long deliveredCount, long droppedCount,
+                    long expiredCount, long conflatedCount, long failedCount, LatencyHistogram latency,
+                    List<SubscriberStatistics> subscribers) {
+        super(topic);
+        setType(TYPE);
+        setTimestamp(System.currentTimeMillis());
+        m_topic = topic;
+        m_queueDepth = queueDepth;
+        m_enqueuedCount = enqueuedCount;
+        m_deliveredCount = deliveredCount;
+        m_droppedCount = droppedCount;
+        m_expiredCount = expiredCount;
+        m_conflatedCount = conflatedCount;
+        m_failedCount = failedCount;
+        m_latency = latency;
+        m_subscribers = Collections.unmodifiableList(subscribers);
+    }
+
+    public String getTopic() {
+        return m_topic;
+    }
+
+    /**
+     * @return messages waiting for delivery when the snapshot was taken
+     */
+    public long getQueueDepth() {
+        return m_queueDepth;
+    }
+
+    /**
+     * @return messages queued since the topic was created
+     */
+    public long getEnqueuedCount() {
+        return m_enqueuedCount;
+    }
+
+    /**
+     * @return messages delivered (handed to subscriber queues, in fan-out mode)
+     */
+    public long getDeliveredCount() {
+        return m_deliveredCount;
+    }
+
+    /**
+     * @return messages dropped or rejected by the topic's OverflowPolicy
+     */
+    public long getDroppedCount() {
+        return m_droppedCount;
+    }
+
+    public long getExpiredCount() {
+        return m_expiredCount;
+    }
+
+    /**
+     * @return messages replaced in the queue by a newer one with the same key, on a conflated topic
+     */
+    public long getConflatedCount() {
+        return m_conflatedCount;
+    }
+
+    /**
+     * @return deliveries given up after a subscriber threw on every attempt
+     */
+    public long getFailedCount() {
+        return m_failedCount;
+    }
+
+    /**
+     * @return time from enqueue until delivery started
+     */
+    public LatencyHistogram getLatency() {
+        return m_latency;
+    }
+
+    public List<SubscriberStatistics> getSubscribers() {
+        return m_subscribers;
+    }
+
+    @Override
+    public String getProperty(String name) {
+        return "topic".equals(name) ? m_topic : null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: depth=%d enqueued=%d delivered=%d dropped=%d expired=%d conflated=%d failed=%d "
+                        + "latency[%s]", m_topic, m_queueDepth, m_enqueuedCount, m_deliveredCount, m_droppedCount,
+                m_expiredCount, m_conflatedCount, m_failedCount, m_latency);
+    }
+}
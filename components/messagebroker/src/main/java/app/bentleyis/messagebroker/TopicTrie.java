@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The TopicTrie indexes subscriptions by topic level so the subscribers for a topic are found by walking the
+ * topic's levels - O(topic depth), independent of the number of subscriptions.
+ * Topics are hierarchical, levels separated by '/', e.g. "sensors/kitchen/temperature". Subscription filters
+ * may use MQTT-style wildcards: '+' matches exactly one level, '#' (last level only) matches any number of
+ * remaining levels including none. Topics starting with '$' are not matched by a wildcard in the first level.
+ * Each subscription may be limited to Message types and content (see Subscription) - a subscriber matched by
+ * several subscriptions accepts what any of them accepts.
+ * Not thread safe - the MessageBroker guards it.
+ */
+class TopicTrie {
+    static final char SEPARATOR = '/';
+    static final String SINGLE_LEVEL = "+";
+    static final String MULTI_LEVEL = "#";
+
+    static class Node {
+        HashMap<String,Node> m_children;
+        // subscriptions whose filter ends at this node
+        LinkedHashMap<Subscriber,Subscription> m_subscribers;
+
+        boolean isEmpty() {
+            return (m_children == null || m_children.isEmpty())
+                    && (m_subscribers == null || m_subscribers.isEmpty());
+        }
+    }
+
+    private final Node m_root = new Node();
+
+    /**
+     * @param filter topic or topic filter
+     * @param subscriber
+     * @param subscription the messages the subscription accepts
+     * @return false if the same subscription already existed
+     */
+    boolean add(String filter, Subscriber subscriber, Subscription subscription) {
+        Node node = m_root;
+        for(String level: split(filter)) {
+            if(node.m_children == null) {
+                node.m_children = new HashMap<>();
+            }
+            Node child = node.m_children.get(level);
+            if(child == null) {
+                child = new Node();
+                node.m_children.put(level, child);
+            }
+            node = child;
+        }
+        if(node.m_subscribers == null) {
+            node.m_subscribers = new LinkedHashMap<>();
+        }
+        boolean existed = node.m_subscribers.containsKey(subscriber);
+        Subscription previous = node.m_subscribers.put(subscriber, subscription);
+        return !existed || !previous.equals(subscription);
+    }
+
+    /**
+     * @param filter topic or topic filter
+     * @param subscriber
+     * @return false if there was no such subscription
+     */
+    boolean remove(String filter, Subscriber subscriber) {
+        return remove(m_root, split(filter), 0, subscriber);
+    }
+
+    /**
+     * Collect the subscribers of every subscription matching a topic
+     * @param topic a concrete topic - no wildcards
+     * @return the subscribers, each once, in subscription order per filter, with their matching subscriptions
+     */
+    LinkedHashMap<Subscriber,Subscription[]> match(String topic) {
+        LinkedHashMap<Subscriber,Subscription[]> result = new LinkedHashMap<>();
+        String[] levels = split(topic);
+        match(m_root, levels, 0, !topic.startsWith("$"), result);
+        return result;
+    }
+
+    void clear() {
+        m_root.m_children = null;
+        m_root.m_subscribers = null;
+    }
+
+    static boolean isWildcard(String filter) {
+        return filter.indexOf('+') >= 0 || filter.indexOf('#') >= 0;
+    }
+
+    /**
+     * @param filter
+     * @param topic a concrete topic
+     * @return true if the filter matches the topic
+     */
+    static boolean matches(String filter, String topic) {
+        String[] filterLevels = split(filter);
+        String[] topicLevels = split(topic);
+        for(int i = 0; i < filterLevels.length; i++) {
+            String level = filterLevels[i];
+            boolean wildcardAllowed = i > 0 || !topic.startsWith("$");
+            if(level.equals(MULTI_LEVEL)) {
+                return wildcardAllowed;
+            }
+            if(i >= topicLevels.length) {
+                return false;
+            }
+            if(level.equals(SINGLE_LEVEL) ? !wildcardAllowed : !level.equals(topicLevels[i])) {
+                return false;
+            }
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    /**
+     * @param filter
+     * @throws IllegalArgumentException if a wildcard is mixed with other characters in a level, or '#' is not
+     * the last level
+     */
+    static void validateFilter(String filter) {
+        String[] levels = split(filter);
+        for(int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if(level.equals(SINGLE_LEVEL) || (level.equals(MULTI_LEVEL) && i == levels.length - 1)) {
+                continue;
+            }
+            if(isWildcard(level)) {
+                throw new IllegalArgumentException("invalid topic filter " + filter);
+            }
+        }
+    }
+
+    /**
+     * @param topic
+     * @throws IllegalArgumentException if the topic contains a wildcard - only subscriptions may
+     */
+    static void validateTopic(String topic) {
+        if(isWildcard(topic)) {
+            throw new IllegalArgumentException("wildcards are not allowed in published topic " + topic);
+        }
+    }
+
+    static String[] split(String topic) {
+        ArrayList<String> levels = new ArrayList<>();
+        int start = 0;
+        int end;
+        while((end = topic.indexOf(SEPARATOR, start)) >= 0) {
+            levels.add(topic.substring(start, end));
+            start = end + 1;
+        }
+        levels.add(topic.substring(start));
+        return levels.toArray(new String[levels.size()]);
+    }
+
+    private static void match(Node node, String[] levels, int depth, boolean wildcards,
+                              LinkedHashMap<Subscriber,Subscription[]> result) {
+        HashMap<String,Node> children = node.m_children;
+        if(children != null && wildcards) {
+            // '#' also matches the parent level - "sensors/#" matches "sensors"
+            Node multi = children.get(MULTI_LEVEL);
+            if(multi != null && multi.m_subscribers != null) {
+                merge(multi.m_subscribers, result);
+            }
+        }
+        if(depth == levels.length) {
+            if(node.m_subscribers != null) {
+                merge(node.m_subscribers, result);
+            }
+            return;
+        }
+        if(children == null) {
+            return;
+        }
+        Node child = children.get(levels[depth]);
+        if(child != null) {
+            match(child, levels, depth + 1, true, result);
+        }
+        if(wildcards) {
+            child = children.get(SINGLE_LEVEL);
+            if(child != null) {
+                match(child, levels, depth + 1, true, result);
+            }
+        }
+    }
+
+    private static void merge(LinkedHashMap<Subscriber,Subscription> subscriptions,
+                              LinkedHashMap<Subscriber,Subscription[]> result) {
+        for(Map.Entry<Subscriber,Subscription> entry: subscriptions.entrySet()) {
+            Subscriber subscriber = entry.getKey();
+            Subscription subscription = entry.getValue();
+            Subscription[] merged = result.get(subscriber);
+            if(merged == null) {
+                result.put(subscriber, new Subscription[] {subscription});
+            } else if(!Arrays.asList(merged).contains(subscription)) {
+                merged = Arrays.copyOf(merged, merged.length + 1);
+                merged[merged.length - 1] = subscription;
+                result.put(subscriber, merged);
+            }
+        }
+    }
+
+    private static boolean remove(Node node, String[] levels, int depth, Subscriber subscriber) {
+        if(depth == levels.length) {
+            if(node.m_subscribers == null || !node.m_subscribers.containsKey(subscriber)) {
+                return false;
+            }
+            node.m_subscribers.remove(subscriber);
+            return true;
+        }
+        Node child = node.m_children == null ? null : node.m_children.get(levels[depth]);
+        if(child == null || !remove(child, levels, depth + 1, subscriber)) {
+            return false;
+        }
+        // prune branches without subscriptions
+        if(child.isEmpty()) {
+            node.m_children.remove(levels[depth]);
+        }
+        return true;
+    }
+}
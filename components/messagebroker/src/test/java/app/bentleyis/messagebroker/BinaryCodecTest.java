@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BinaryCodecTest {
+    static final BinaryCodec.TypeCodec<ExchangeTest.Labelled> LABELLED =
+            new BinaryCodec.TypeCodec<ExchangeTest.Labelled>() {
+        @Override
+        public ExchangeTest.Labelled create(String id) {
+            return new ExchangeTest.Labelled(id, null);
+        }
+
+        @Override
+        public void encode(ExchangeTest.Labelled message, ByteBuffer buffer, BinaryCodec codec) {
+            codec.writeProperties(buffer, message.m_properties);
+        }
+
+        @Override
+        public void decode(ExchangeTest.Labelled message, ByteBuffer buffer, BinaryCodec codec) {
+            codec.readProperties(buffer, message.m_properties);
+        }
+    };
+
+    BinaryCodec underTest;
+
+    @Before
+    public void setUp() {
+        underTest = new BinaryCodec();
+        underTest.register(1, ExchangeTest.Labelled.class, LABELLED);
+        underTest.addString("application/json");
+        underTest.addString("room");
+    }
+
+    private static ExchangeTest.Labelled sample() {
+        ExchangeTest.Labelled message = new ExchangeTest.Labelled("sensor-17/reading", "application/json",
+                "room", "kitchen", "unit", "\u00b0C", "note", "\ud83c\udf21 h\u00e9at");
+        message.setTimestamp(1600000000000L);
+        message.setTimeToLive(30000);
+        message.setPriority(Priority.HIGH);
+        return message;
+    }
+
+    @Test
+    public void roundTrip() {
+        for(ByteBuffer buffer: new ByteBuffer[] {ByteBuffer.allocate(256), ByteBuffer.allocateDirect(256)}) {
+            ExchangeTest.Labelled message = sample();
+            underTest.encode(message, buffer);
+            buffer.flip();
+            ExchangeTest.Labelled decoded = (ExchangeTest.Labelled) underTest.decode(buffer);
+            assertFalse(buffer.hasRemaining());
+            assertEquals(message.getId(), decoded.getId());
+            assertEquals(message.getTimestamp(), decoded.getTimestamp());
+            assertEquals(message.getType(), decoded.getType());
+            assertEquals(message.getTimeToLive(), decoded.getTimeToLive());
+            assertEquals(Priority.HIGH, decoded.getPriority());
+            assertEquals(message.m_properties, decoded.m_properties);
+        }
+    }
+
+    @Test
+    public void nullsAndDictionary() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        underTest.writeString(buffer, null);
+        underTest.writeString(buffer, "");
+        underTest.writeString(buffer, "application/json");
+        // null, empty and a dictionary entry take a byte each
+        assertEquals(3, buffer.position());
+        buffer.flip();
+        assertNull(underTest.readString(buffer));
+        assertEquals("", underTest.readString(buffer));
+        assertEquals("application/json", underTest.readString(buffer));
+    }
+
+    @Test
+    public void varints() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        long[] values = {0, 1, 127, 128, 1600000000000L, Long.MAX_VALUE, -1};
+        for(long value: values) {
+            BinaryCodec.writeVarLong(buffer, value);
+        }
+        buffer.flip();
+        for(long value: values) {
+            assertEquals(value, BinaryCodec.readVarLong(buffer));
+        }
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void overflow() {
+        underTest.encode(sample(), ByteBuffer.allocate(16));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unregisteredClass() {
+        underTest.encode(new RingBufferQueueTest.TestableMessage("test"), ByteBuffer.allocate(64));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateTag() {
+        underTest.register(1, MessagePoolTest.PooledMessage.class,
+                new BinaryCodec.TypeCodec<MessagePoolTest.PooledMessage>() {
+            @Override
+            public MessagePoolTest.PooledMessage create(String id) {
+                return null;
+            }
+
+            @Override
+            public void encode(MessagePoolTest.PooledMessage message, ByteBuffer buffer, BinaryCodec codec) {
+            }
+
+            @Override
+            public void decode(MessagePoolTest.PooledMessage message, ByteBuffer buffer, BinaryCodec codec) {
+            }
+        });
+    }
+
+    /**
+     * Encoded size against Java serialization. CodecBenchmark measures the encode and decode times.
+     */
+    @Test
+    public void smallerThanSerialization() throws IOException {
+        ExchangeTest.Labelled message = sample();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        underTest.encode(message, buffer);
+        assertTrue(buffer.position() * 4 < serialize(message).length);
+    }
+
+    private static byte[] serialize(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(message);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DeliveryTest {
+    static class TestableMessage extends Message {
+        public TestableMessage(String id) {
+            super(id);
+        }
+    }
+
+    Message message;
+    Delivery underTest;
+
+    @Before
+    public void setUp() {
+        message = new TestableMessage("test");
+        underTest = new Delivery(message);
+    }
+
+    @Test
+    public void completes() throws Exception {
+        assertFalse(underTest.isDone());
+        assertTrue(underTest.complete());
+        assertTrue(underTest.isDone());
+        assertTrue(underTest.isDelivered());
+        assertSame(message, underTest.get());
+        // only the first outcome counts
+        assertFalse(underTest.fail(new MessageExpiredException("late")));
+        assertNull(underTest.getCause());
+    }
+
+    @Test
+    public void fails() throws Exception {
+        MessageExpiredException cause = new MessageExpiredException("expired");
+        assertTrue(underTest.fail(cause));
+        assertTrue(underTest.isDone());
+        assertFalse(underTest.isDelivered());
+        assertSame(cause, underTest.getCause());
+        try {
+            underTest.get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertSame(cause, e.getCause());
+        }
+    }
+
+    @Test
+    public void arriveCompletesAfterLastSubscriber() {
+        underTest.m_remaining.set(3);
+        underTest.arrive();
+        underTest.arrive();
+        assertFalse(underTest.isDone());
+        underTest.arrive();
+        assertTrue(underTest.isDelivered());
+    }
+
+    @Test
+    public void listenersRunOnceOnCompletion() {
+        final AtomicInteger calls = new AtomicInteger();
+        Delivery.Listener listener = new Delivery.Listener() {
+            @Override
+            public void onComplete(Delivery delivery) {
+                calls.incrementAndGet();
+            }
+        };
+        underTest.addListener(listener);
+        assertEquals(0, calls.get());
+        underTest.complete();
+        underTest.complete();
+        assertEquals(1, calls.get());
+        // added after completion - runs immediately
+        underTest.addListener(listener);
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void getTimesOut() throws Exception {
+        try {
+            underTest.get(10, TimeUnit.MILLISECONDS);
+            fail("expected TimeoutException");
+        } catch (TimeoutException e) {
+            // expected
+        }
+        assertFalse(underTest.isDone());
+    }
+
+    @Test
+    public void cannotCancel() {
+        assertFalse(underTest.cancel(true));
+        assertFalse(underTest.isCancelled());
+    }
+}
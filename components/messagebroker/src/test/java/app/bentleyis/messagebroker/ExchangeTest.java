@@ -0,0 +1,1569 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ExchangeTest {
+    static class TestableMessage extends Message {
+        public TestableMessage(String id) {
+            super(id);
+        }
+    }
+
+    /**
+     * Never runs the exchange - queued messages stay queued. The benchmarks keep their own copy, as they are
+     * built from the broker's main sources without its tests.
+     */
+    static class HeldDispatcher implements Dispatcher {
+        @Override
+        public void attach(Runnable task) {
+        }
+
+        @Override
+        public void dispatch(Runnable task) {
+        }
+
+        @Override
+        public void detach(Runnable task) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Exchange underTest;
+
+    @After
+    public void tearDown() {
+        if(underTest != null) {
+            underTest.shutdown();
+        }
+    }
+
+    private Exchange createFull(OverflowPolicy policy, long blockTimeout) {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(4);
+        configuration.setOverflowPolicy(policy);
+        configuration.setBlockTimeout(blockTimeout);
+        Exchange exchange = new Exchange(new HeldDispatcher(), configuration);
+        for(int i = 0; i < 4; i++) {
+            assertTrue(exchange.enqueue(new TestableMessage(Integer.toString(i))));
+        }
+        return exchange;
+    }
+
+    @Test
+    public void dropNewest() {
+        underTest = createFull(OverflowPolicy.DROP_NEWEST, 0);
+        assertFalse(underTest.enqueue(new TestableMessage("new")));
+        assertFalse(underTest.enqueue(new TestableMessage("new")));
+        assertEquals(2, underTest.getOverflowCount(OverflowPolicy.DROP_NEWEST));
+        assertEquals("0", underTest.m_queue.poll().getId());
+        assertEquals(3, underTest.m_queue.size());
+    }
+
+    @Test
+    public void dropOldest() {
+        underTest = createFull(OverflowPolicy.DROP_OLDEST, 0);
+        assertTrue(underTest.enqueue(new TestableMessage("4")));
+        assertTrue(underTest.enqueue(new TestableMessage("5")));
+        assertEquals(2, underTest.getOverflowCount(OverflowPolicy.DROP_OLDEST));
+        for(int i = 2; i < 6; i++) {
+            assertEquals(Integer.toString(i), underTest.m_queue.poll().getId());
+        }
+        assertTrue(underTest.m_queue.isEmpty());
+    }
+
+    @Test
+    public void reject() {
+        underTest = createFull(OverflowPolicy.REJECT, 0);
+        try {
+            underTest.enqueue(new TestableMessage("new"));
+            fail("expected MessageRejectedException");
+        } catch (MessageRejectedException e) {
+            // expected
+        }
+        assertEquals(1, underTest.getOverflowCount(OverflowPolicy.REJECT));
+        assertEquals(4, underTest.m_queue.size());
+    }
+
+    @Test
+    public void blockTimesOut() {
+        underTest = createFull(OverflowPolicy.BLOCK, 50);
+        long start = System.currentTimeMillis();
+        assertFalse(underTest.enqueue(new TestableMessage("new")));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(1, underTest.getOverflowCount(OverflowPolicy.BLOCK));
+    }
+
+    @Test
+    public void defaultDoesNotBlock() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(4);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        for(int i = 0; i < 4; i++) {
+            assertTrue(underTest.enqueue(new TestableMessage(Integer.toString(i))));
+        }
+        long start = System.currentTimeMillis();
+        assertTrue(underTest.enqueue(new TestableMessage("new")));
+        assertTrue(System.currentTimeMillis() - start < TopicConfiguration.DEFAULT_BLOCK_TIMEOUT);
+        assertEquals(1, underTest.getOverflowCount(OverflowPolicy.DROP_OLDEST));
+        assertEquals(0, underTest.getOverflowCount(OverflowPolicy.BLOCK));
+        assertEquals("1", underTest.m_queue.poll().getId());
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws InterruptedException {
+        underTest = createFull(OverflowPolicy.BLOCK, 0);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                underTest.m_queue.poll();
+            }
+        });
+        consumer.start();
+        assertTrue(underTest.enqueue(new TestableMessage("new")));
+        consumer.join();
+        assertEquals(0, underTest.getOverflowCount(OverflowPolicy.BLOCK));
+        assertEquals(4, underTest.m_queue.size());
+    }
+
+    @Test
+    public void memoryBoundedUnderOverload() {
+        underTest = createFull(OverflowPolicy.DROP_OLDEST, 0);
+        for(int i = 0; i < 100000; i++) {
+            underTest.enqueue(new TestableMessage("overload"));
+        }
+        assertEquals(4, underTest.m_queue.size());
+        assertEquals(100000, underTest.getOverflowCount(OverflowPolicy.DROP_OLDEST));
+    }
+
+    @Test
+    public void throwingExpirySubscriberStillDeadLetters() throws InterruptedException {
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        final CountDownLatch latch = new CountDownLatch(3);
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setTimeToLive(20);
+        configuration.setExpirySubscriber(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                throw new IllegalStateException("expiry subscriber failed");
+            }
+        });
+        underTest = new Exchange(new HeldDispatcher(), configuration, timingWheel);
+        underTest.setDeadLetter(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                latch.countDown();
+            }
+        });
+        for(int i = 0; i < 3; i++) {
+            assertTrue(underTest.enqueue(new TestableMessage(Integer.toString(i))));
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(3, underTest.getExpiredCount());
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void expiresWhileQueued() throws InterruptedException {
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        final CountDownLatch latch = new CountDownLatch(2);
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setTimeToLive(30);
+        configuration.setExpirySubscriber(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                latch.countDown();
+            }
+        });
+        underTest = new Exchange(new HeldDispatcher(), configuration, timingWheel);
+
+        Message topicTtl = new TestableMessage("topic");
+        Message ownTtl = new TestableMessage("own");
+        ownTtl.setTimeToLive(10);
+        Message live = new TestableMessage("live");
+        live.setTimeToLive(60000);
+        assertTrue(underTest.enqueue(topicTtl));
+        assertTrue(underTest.enqueue(ownTtl));
+        assertTrue(underTest.enqueue(live));
+        assertTrue(topicTtl.getTimestamp() > 0);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, underTest.getExpiredCount());
+        assertFalse(underTest.m_queue.contains(topicTtl));
+        assertFalse(underTest.m_queue.contains(ownTtl));
+        assertSame(live, underTest.m_queue.poll());
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void expiryFreesCapacityWithoutSubscribers() throws InterruptedException {
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(8);
+        configuration.setTimeToLive(20);
+        // fails the test instead of hanging it if expiry frees nothing
+        configuration.setBlockTimeout(2000);
+        underTest = new Exchange(new HeldDispatcher(), configuration, timingWheel);
+        for(int round = 1; round <= 3; round++) {
+            for(int i = 0; i < 8; i++) {
+                assertTrue(underTest.enqueue(new TestableMessage(round + ":" + i)));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while(underTest.getExpiredCount() < round * 8 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(round * 8, underTest.getExpiredCount());
+            assertEquals(0, underTest.m_queue.size());
+            assertTrue(underTest.m_queue.isEmpty());
+        }
+        assertEquals(0, underTest.getOverflowCount(OverflowPolicy.BLOCK));
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void expiredOnArrival() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setTimeToLive(1000);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        Message message = new TestableMessage("stale");
+        message.setTimestamp(System.currentTimeMillis() - 2000);
+        assertFalse(underTest.enqueue(message));
+        assertEquals(1, underTest.getExpiredCount());
+        assertTrue(underTest.m_queue.isEmpty());
+    }
+
+    @Test
+    public void deliveryCancelsExpiry() throws InterruptedException {
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        final CountDownLatch latch = new CountDownLatch(1);
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setTimeToLive(60000);
+        underTest = new Exchange(new PooledDispatcher(1), configuration, timingWheel);
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                latch.countDown();
+            }
+        });
+        underTest.enqueue(new TestableMessage("test"));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        // the timer was released on delivery rather than holding the message for its time-to-live
+        assertEquals(0, timingWheel.getPendingCount());
+        assertEquals(0, underTest.getExpiredCount());
+        underTest.m_dispatcher.shutdown();
+        timingWheel.shutdown();
+    }
+
+    /**
+     * Expiry removes each message in place, wherever it is in a deep queue. ExpiryBenchmark measures the cost per
+     * message at several depths.
+     */
+    @Test
+    public void expiresDeepQueue() throws InterruptedException {
+        final int depth = 10000;
+        TimingWheel timingWheel = new TimingWheel(1, 512);
+        final CountDownLatch latch = new CountDownLatch(depth);
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(depth);
+        configuration.setTimeToLive(50);
+        configuration.setExpirySubscriber(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                latch.countDown();
+            }
+        });
+        underTest = new Exchange(new HeldDispatcher(), configuration, timingWheel);
+        for(int i = 0; i < depth; i++) {
+            assertTrue(underTest.enqueue(new TestableMessage(Integer.toString(i))));
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+        assertEquals(depth, underTest.getExpiredCount());
+        assertTrue(underTest.m_queue.isEmpty());
+        timingWheel.shutdown();
+    }
+
+    /**
+     * A HIGH priority message has its own lane - it isn't held up by a full LOW lane and is delivered first.
+     * PriorityLatencyBenchmark measures the latency difference under load.
+     */
+    @Test
+    public void highPriorityBypassesLowBacklog() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(4);
+        configuration.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        for(int i = 0; i < 4; i++) {
+            Message load = new TestableMessage("load");
+            load.setPriority(Priority.LOW);
+            assertTrue(underTest.enqueue(load));
+        }
+        Message low = new TestableMessage("low");
+        low.setPriority(Priority.LOW);
+        assertFalse(underTest.enqueue(low));
+        Message high = new TestableMessage("high");
+        high.setPriority(Priority.HIGH);
+        assertTrue(underTest.enqueue(high));
+        assertEquals("high", underTest.m_queue.poll().getId());
+        assertEquals("load", underTest.m_queue.poll().getId());
+    }
+
+    @Test
+    public void journalAcknowledgedAfterRetry() throws Exception {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setJournal(folder.newFolder("topic"), new JournalTest.TestCodec());
+        configuration.setRetryBackoff(10);
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        underTest = new Exchange(new HeldDispatcher(), configuration, timingWheel);
+        underTest.register(new FailingSubscriber(1));
+        underTest.enqueue(new TestableMessage("test"));
+        underTest.run();
+        // not handled until the retry succeeds - a restart now replays it
+        assertEquals(0, underTest.m_journal.getCommittedOffset());
+        awaitRetry(underTest.m_retries);
+        underTest.run();
+        assertEquals(1, underTest.m_journal.getCommittedOffset());
+        underTest.shutdown();
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void fanOutJournalAcknowledgedAfterEveryChannel() throws Exception {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setJournal(folder.newFolder("topic"), new JournalTest.TestCodec());
+        configuration.setFanOut(true);
+        configuration.setRetryBackoff(10);
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        underTest = new Exchange(new HeldDispatcher(), configuration, timingWheel);
+        underTest.register(Mockito.mock(Subscriber.class));
+        underTest.register(new FailingSubscriber(1));
+        underTest.enqueue(new TestableMessage("test"));
+        underTest.run();
+        // handed over to the channels, not yet delivered
+        assertEquals(0, underTest.m_journal.getCommittedOffset());
+        underTest.m_channels[0].run();
+        assertEquals(0, underTest.m_journal.getCommittedOffset());
+        underTest.m_channels[1].run();
+        assertEquals(0, underTest.m_journal.getCommittedOffset());
+        awaitRetry(underTest.m_channels[1].m_retries);
+        underTest.m_channels[1].run();
+        assertEquals(1, underTest.m_journal.getCommittedOffset());
+        underTest.shutdown();
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void journalAcknowledgedWhenDeadLettered() throws Exception {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setJournal(folder.newFolder("topic"), new JournalTest.TestCodec());
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        underTest.register(new FailingSubscriber(Integer.MAX_VALUE));
+        underTest.enqueue(new TestableMessage("test"));
+        // no timing wheel - dead-lettered straight away, which handles it
+        underTest.run();
+        assertEquals(1, underTest.getFailedCount());
+        assertEquals(1, underTest.m_journal.getCommittedOffset());
+        underTest.shutdown();
+    }
+
+    @Test
+    public void journalReplaysUndeliveredMessages() throws Exception {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setJournal(folder.newFolder("topic"), new JournalTest.TestCodec());
+        // queued but never delivered before "restart"
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        for(int i = 0; i < 3; i++) {
+            underTest.enqueue(new TestableMessage(Integer.toString(i)));
+        }
+        underTest.shutdown();
+
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch = new CountDownLatch(4);
+        Subscriber subscriber = new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                received.add(message.getId());
+                latch.countDown();
+            }
+        };
+        PooledDispatcher dispatcher = new PooledDispatcher(1);
+        underTest = new Exchange(dispatcher, configuration);
+        underTest.enqueue(new TestableMessage("3"));
+        underTest.register(subscriber);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // replayed ahead of the newly published message
+        assertEquals(Arrays.asList("0", "1", "2", "3"), received);
+        // acknowledged after the subscribers return
+        long deadline = System.currentTimeMillis() + 5000;
+        while(underTest.m_journal.getCommittedOffset() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        underTest.shutdown();
+
+        // everything was delivered - nothing to replay
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        assertFalse(underTest.m_replaying);
+        dispatcher.shutdown();
+    }
+
+    static class RecordingBatchSubscriber implements BatchSubscriber {
+        final List<List<String>> m_batches = Collections.synchronizedList(new ArrayList<List<String>>());
+
+        @Override
+        public void receiveBatch(List<Message> messages) {
+            List<String> ids = new ArrayList<>();
+            for(Message message: messages) {
+                ids.add(message.getId());
+            }
+            m_batches.add(ids);
+        }
+
+        @Override
+        public void receive(Message message) {
+            m_batches.add(Collections.singletonList(message.getId()));
+        }
+    }
+
+    @Test
+    public void batchDelivery() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setBatchSize(4);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        RecordingBatchSubscriber batch = new RecordingBatchSubscriber();
+        final List<String> single = new ArrayList<>();
+        underTest.register(batch);
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                single.add(message.getId());
+            }
+        });
+        for(int i = 0; i < 6; i++) {
+            underTest.enqueue(new TestableMessage(Integer.toString(i)));
+        }
+        underTest.run();
+        underTest.run();
+        assertEquals(Arrays.asList(Arrays.asList("0", "1", "2", "3"), Arrays.asList("4", "5")), batch.m_batches);
+        // plain subscribers are unchanged
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5"), single);
+    }
+
+    @Test
+    public void batchLingersForMoreMessages() throws InterruptedException {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setBatchLinger(500);
+        PooledDispatcher dispatcher = new PooledDispatcher(1);
+        underTest = new Exchange(dispatcher, configuration);
+        RecordingBatchSubscriber batch = new RecordingBatchSubscriber();
+        underTest.register(batch);
+        underTest.enqueue(new TestableMessage("0"));
+        Thread.sleep(50);
+        for(int i = 1; i < 4; i++) {
+            underTest.enqueue(new TestableMessage(Integer.toString(i)));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while(batch.m_batches.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(Collections.singletonList(Arrays.asList("0", "1", "2", "3")), batch.m_batches);
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void slowSubscriberOnlyLagsItself() throws InterruptedException {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setFanOut(true);
+        PooledDispatcher dispatcher = new PooledDispatcher(2);
+        underTest = new Exchange(dispatcher, configuration);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch slowReceived = new CountDownLatch(100);
+        Subscriber slow = new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                slowReceived.countDown();
+            }
+        };
+        final CountDownLatch fastReceived = new CountDownLatch(100);
+        Subscriber fast = new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                fastReceived.countDown();
+            }
+        };
+        underTest.register(slow);
+        underTest.register(fast);
+        for(int i = 0; i < 100; i++) {
+            underTest.enqueue(new TestableMessage(Integer.toString(i)));
+        }
+        // the fast subscriber gets everything while the slow one is stuck on its first message
+        assertTrue(fastReceived.await(5, TimeUnit.SECONDS));
+        assertEquals(100, slowReceived.getCount());
+        assertEquals(100, underTest.getSubscriberLag(slow));
+        long deadline = System.currentTimeMillis() + 5000;
+        while(underTest.getSubscriberLag(fast) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, underTest.getSubscriberLag(fast));
+
+        release.countDown();
+        assertTrue(slowReceived.await(5, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void fullSubscriberQueueDropsForThatSubscriberOnly() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setFanOut(true);
+        configuration.setSubscriberCapacity(4);
+        configuration.setSubscriberOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        Subscriber subscriber = new Subscriber() {
+            @Override
+            public void receive(Message message) {
+            }
+        };
+        underTest.register(subscriber);
+        for(int i = 0; i < 10; i++) {
+            underTest.enqueue(new TestableMessage(Integer.toString(i)));
+        }
+        // hand over to the subscriber's queue, which is never run
+        underTest.run();
+        assertEquals(4, underTest.getSubscriberLag(subscriber));
+        assertEquals(6, underTest.getSubscriberDroppedCount(subscriber));
+        assertTrue(underTest.m_queue.isEmpty());
+    }
+
+    @Test
+    public void fullSubscriberQueueBlocksUntilDrained() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setFanOut(true);
+        configuration.setSubscriberCapacity(4);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        final List<String> received = new ArrayList<>();
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                received.add(message.getId());
+            }
+        });
+        for(int i = 0; i < 10; i++) {
+            underTest.enqueue(new TestableMessage(Integer.toString(i)));
+        }
+        underTest.run();
+        SubscriberChannel channel = underTest.m_channels[0];
+        assertSame(channel, underTest.m_blockedOn);
+        assertEquals(4, channel.getLag());
+        // draining the channel resumes the held batch
+        channel.run();
+        assertNull(underTest.m_blockedOn);
+        underTest.run();
+        channel.run();
+        underTest.run();
+        channel.run();
+        assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), received);
+        assertEquals(0, channel.getDroppedCount());
+    }
+
+    @Test
+    public void deliveryCompletesAfterEverySubscriber() throws Exception {
+        underTest = new Exchange(new HeldDispatcher());
+        final List<String> received = new ArrayList<>();
+        for(int i = 0; i < 2; i++) {
+            underTest.register(new Subscriber() {
+                @Override
+                public void receive(Message message) {
+                    received.add(message.getId());
+                }
+            });
+        }
+        Delivery delivery = underTest.enqueueAsync(new TestableMessage("test"), 0);
+        assertFalse(delivery.isDone());
+        underTest.run();
+        assertTrue(delivery.isDelivered());
+        assertEquals(2, received.size());
+    }
+
+    @Test
+    public void deliveryFailsWhenDropped() {
+        underTest = createFull(OverflowPolicy.DROP_NEWEST, 0);
+        Delivery delivery = underTest.enqueueAsync(new TestableMessage("overflow"), 0);
+        assertTrue(delivery.isDone());
+        assertTrue(delivery.getCause() instanceof MessageRejectedException);
+
+        underTest = createFull(OverflowPolicy.DROP_OLDEST, 0);
+        underTest.m_queue.poll();
+        Delivery oldest = underTest.enqueueAsync(new TestableMessage("4"), 0);
+        for(int i = 5; i < 8; i++) {
+            underTest.enqueue(new TestableMessage(Integer.toString(i)));
+        }
+        assertFalse(oldest.isDone());
+        underTest.enqueue(new TestableMessage("8"));
+        assertTrue(oldest.getCause() instanceof MessageRejectedException);
+    }
+
+    @Test
+    public void deliveryFailsOnExpiry() throws InterruptedException {
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setTimeToLive(20);
+        underTest = new Exchange(new HeldDispatcher(), configuration, timingWheel);
+        Delivery delivery = underTest.enqueueAsync(new TestableMessage("test"), 0);
+        try {
+            delivery.get(5, TimeUnit.SECONDS);
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MessageExpiredException);
+        } catch (TimeoutException e) {
+            fail("expiry did not fail the delivery");
+        }
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void deliveryTimesOut() throws Exception {
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        underTest = new Exchange(new HeldDispatcher(), new TopicConfiguration(), timingWheel);
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+            }
+        });
+        Delivery delivery = underTest.enqueueAsync(new TestableMessage("test"), 20);
+        try {
+            delivery.get(5, TimeUnit.SECONDS);
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        // delivered late - the timeout stands
+        underTest.run();
+        assertFalse(delivery.isDelivered());
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void enqueueAfterShutdownFails() throws InterruptedException {
+        underTest = new Exchange(new HeldDispatcher());
+        underTest.register(Mockito.mock(Subscriber.class));
+        underTest.shutdown();
+        assertFalse(underTest.enqueue(new TestableMessage("plain")));
+        Delivery delivery = underTest.enqueueAsync(new TestableMessage("tracked"), 0);
+        assertTrue(delivery.isDone());
+        assertTrue(delivery.getCause() instanceof IllegalStateException);
+        // returns rather than waiting for a delivery that will never happen
+        underTest.enqueueSynchronous(new TestableMessage("synchronous"));
+        assertEquals(0, underTest.m_queue.size());
+    }
+
+    @Test
+    public void fanOutDeliveryCompletesAfterEveryChannel() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setFanOut(true);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        for(int i = 0; i < 2; i++) {
+            underTest.register(new Subscriber() {
+                @Override
+                public void receive(Message message) {
+                }
+            });
+        }
+        Delivery delivery = underTest.enqueueAsync(new TestableMessage("test"), 0);
+        underTest.run();
+        underTest.m_channels[0].run();
+        assertFalse(delivery.isDone());
+        underTest.m_channels[1].run();
+        assertTrue(delivery.isDelivered());
+    }
+
+    @Test
+    public void deliveryWaitsForRetry() throws InterruptedException {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setRetryBackoff(10);
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        underTest = new Exchange(new HeldDispatcher(), configuration, timingWheel);
+        underTest.register(new FailingSubscriber(1));
+        Delivery delivery = underTest.enqueueAsync(new TestableMessage("test"), 0);
+        underTest.run();
+        // the first attempt threw - not delivered yet
+        assertFalse(delivery.isDone());
+        awaitRetry(underTest.m_retries);
+        underTest.run();
+        assertTrue(delivery.isDelivered());
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void deliveryFailsWhenDeadLettered() throws InterruptedException {
+        underTest = new Exchange(new HeldDispatcher(), new TopicConfiguration());
+        underTest.register(new FailingSubscriber(Integer.MAX_VALUE));
+        Delivery delivery = underTest.enqueueAsync(new TestableMessage("test"), 0);
+        // no timing wheel - dead-lettered straight away
+        underTest.run();
+        try {
+            delivery.get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertEquals(1, underTest.getFailedCount());
+    }
+
+    @Test
+    public void fanOutDeliveryFailsWhenDeadLettered() throws InterruptedException {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setFanOut(true);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        underTest.register(Mockito.mock(Subscriber.class));
+        underTest.register(new FailingSubscriber(Integer.MAX_VALUE));
+        Delivery delivery = underTest.enqueueAsync(new TestableMessage("test"), 0);
+        underTest.run();
+        underTest.m_channels[0].run();
+        underTest.m_channels[1].run();
+        assertTrue(delivery.isDone());
+        assertFalse(delivery.isDelivered());
+        assertTrue(delivery.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void manySynchronousPublishers() throws InterruptedException {
+        PooledDispatcher dispatcher = new PooledDispatcher(1);
+        underTest = new Exchange(dispatcher);
+        final AtomicInteger received = new AtomicInteger();
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                received.incrementAndGet();
+            }
+        });
+        Thread[] threads = new Thread[16];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i = 0; i < 200; i++) {
+                            underTest.enqueueSynchronous(new TestableMessage(Integer.toString(i)));
+                        }
+                    } catch (InterruptedException e) {
+                        // test fails on the count
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread thread: threads) {
+            thread.join(10000);
+        }
+        // each publisher only returns once its message was delivered
+        assertEquals(16 * 200, received.get());
+        dispatcher.shutdown();
+    }
+
+    static class Reading extends Message {
+        public Reading(String id) {
+            super(id);
+        }
+    }
+
+    static class Temperature extends Reading {
+        public Temperature(String id) {
+            super(id);
+        }
+    }
+
+    @Test
+    public void typedSubscribersOnlyReceiveAcceptedTypes() {
+        underTest = new Exchange(new HeldDispatcher());
+        final List<String> readings = new ArrayList<>();
+        final List<String> all = new ArrayList<>();
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                assertTrue(message instanceof Reading);
+                readings.add(message.getId());
+            }
+        }, new Class<?>[] {Reading.class});
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                all.add(message.getId());
+            }
+        });
+        RecordingBatchSubscriber temperatures = new RecordingBatchSubscriber();
+        underTest.register(temperatures, new Class<?>[] {Temperature.class});
+
+        underTest.enqueue(new TestableMessage("other"));
+        underTest.enqueue(new Reading("reading"));
+        underTest.enqueue(new Temperature("temperature"));
+        underTest.run();
+        // subclasses are included
+        assertEquals(Arrays.asList("reading", "temperature"), readings);
+        assertEquals(Arrays.asList("other", "reading", "temperature"), all);
+        assertEquals(Collections.singletonList(Collections.singletonList("temperature")), temperatures.m_batches);
+        // resolved once per concrete class
+        assertSame(underTest.m_dispatchTable.receivers(Temperature.class),
+                underTest.m_dispatchTable.receivers(Temperature.class));
+    }
+
+    @Test
+    public void fanOutSkipsChannelsThatDontAcceptType() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setFanOut(true);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        Subscriber readings = new Subscriber() {
+            @Override
+            public void receive(Message message) {
+            }
+        };
+        underTest.register(readings, new Class<?>[] {Reading.class});
+        Delivery delivery = underTest.enqueueAsync(new TestableMessage("other"), 0);
+        underTest.enqueue(new Temperature("temperature"));
+        underTest.run();
+        assertEquals(1, underTest.getSubscriberLag(readings));
+        // nobody takes it - nothing to wait for
+        assertTrue(delivery.isDelivered());
+    }
+
+    static class Labelled extends Message {
+        final HashMap<String,String> m_properties = new HashMap<>();
+
+        public Labelled(String id, String type, String... properties) {
+            super(id);
+            setType(type);
+            for(int i = 0; i < properties.length; i += 2) {
+                m_properties.put(properties[i], properties[i + 1]);
+            }
+        }
+
+        @Override
+        public String getProperty(String name) {
+            return m_properties.get(name);
+        }
+    }
+
+    @Test
+    public void filteredSubscribersOnlyReceiveMatchingMessages() {
+        underTest = new Exchange(new HeldDispatcher());
+        final List<String> kitchen = new ArrayList<>();
+        final List<String> json = new ArrayList<>();
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                kitchen.add(message.getId());
+            }
+        }, new MessageFilter().propertyStartsWith("room", "kitchen"));
+        Subscriber both = new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                json.add(message.getId());
+            }
+        };
+        // either subscription - delivered once
+        underTest.register(both, new Subscription(null, new MessageFilter().typeEquals("application/json")),
+                new Subscription(null, new MessageFilter().idStartsWith("a")));
+        RecordingBatchSubscriber garage = new RecordingBatchSubscriber();
+        underTest.register(garage, new MessageFilter().propertyEquals("room", "garage"));
+
+        underTest.enqueue(new Labelled("a1", "application/json", "room", "kitchen/oven"));
+        underTest.enqueue(new Labelled("b2", "text/plain", "room", "garage"));
+        underTest.enqueue(new Labelled("c3", "application/json"));
+        underTest.enqueue(new TestableMessage("d4"));
+        underTest.run();
+        assertEquals(Collections.singletonList("a1"), kitchen);
+        assertEquals(Arrays.asList("a1", "c3"), json);
+        assertEquals(Collections.singletonList(Collections.singletonList("b2")), garage.m_batches);
+    }
+
+    @Test
+    public void fanOutOnlyQueuesMatchingMessages() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setFanOut(true);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        Subscriber all = Mockito.mock(Subscriber.class);
+        Subscriber kitchen = Mockito.mock(Subscriber.class);
+        underTest.register(all);
+        underTest.register(kitchen, new MessageFilter().propertyEquals("room", "kitchen"));
+        Delivery matched = underTest.enqueueAsync(new Labelled("1", null, "room", "kitchen"), 0);
+        underTest.enqueue(new Labelled("2", null, "room", "garage"));
+        underTest.run();
+        assertEquals(2, underTest.getSubscriberLag(all));
+        assertEquals(1, underTest.getSubscriberLag(kitchen));
+        assertEquals(2, matched.m_remaining.get());
+    }
+
+    /**
+     * Delivery walks the DispatchTable's arrays - once the table's per-class routes are cached, delivering a
+     * message allocates nothing.
+     */
+    @Test
+    public void deliveryDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        underTest = new Exchange(new HeldDispatcher());
+        final int[] received = new int[1];
+        for(int i = 0; i < 4; i++) {
+            underTest.register(new Subscriber() {
+                @Override
+                public void receive(Message message) {
+                    received[0]++;
+                }
+            });
+        }
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                received[0]++;
+            }
+        }, new MessageFilter().typeEquals("text/plain"));
+        Message[] messages = new Message[Exchange.DEFAULT_BATCH_SIZE];
+        for(int i = 0; i < messages.length; i++) {
+            messages[i] = new Labelled(Integer.toString(i), "text/plain");
+        }
+        long thread = Thread.currentThread().getId();
+        // the first rounds warm up the route cache and the JIT
+        for(int round = 0; round < 1000; round++) {
+            for(Message message: messages) {
+                underTest.enqueue(message);
+            }
+            underTest.run();
+        }
+        // only delivery is measured. A window can still see a one-off allocation by the JVM - relinking after a
+        // deoptimization, say - but an allocation per message would show in every window.
+        long allocated = -1;
+        int rounds = 1000;
+        for(int window = 0; window < 5 && allocated != 0; window++) {
+            allocated = 0;
+            for(int round = 0; round < 200; round++) {
+                for(Message message: messages) {
+                    underTest.enqueue(message);
+                }
+                long before = threads.getThreadAllocatedBytes(thread);
+                underTest.run();
+                allocated += threads.getThreadAllocatedBytes(thread) - before;
+            }
+            rounds += 200;
+        }
+        assertEquals(rounds * messages.length * 5, received[0]);
+        assertEquals(0, allocated);
+    }
+
+    @Test
+    public void retireOnlyWhenIdle() {
+        underTest = new Exchange(new HeldDispatcher());
+        Subscriber subscriber = Mockito.mock(Subscriber.class);
+        underTest.register(subscriber);
+        assertFalse(underTest.retire());
+        underTest.unregister(subscriber);
+        underTest.enqueue(new TestableMessage("held"));
+        assertFalse(underTest.retire());
+        underTest.m_queue.release(underTest.m_queue.claimHead(Priority.NORMAL));
+        // a publisher inside enqueue
+        assertTrue(underTest.acquire());
+        assertFalse(underTest.retire());
+        underTest.release();
+        assertTrue(underTest.retire());
+        assertTrue(underTest.m_shutdown);
+        assertFalse(underTest.acquire());
+    }
+
+    @Test
+    public void statisticsCountAndTime() {
+        underTest = new Exchange(new HeldDispatcher());
+        Subscriber all = new Subscriber() {
+            @Override
+            public void receive(Message message) {
+            }
+        };
+        Subscriber json = new Subscriber() {
+            @Override
+            public void receive(Message message) {
+            }
+        };
+        underTest.register(all);
+        underTest.register(json, new MessageFilter().typeEquals("application/json"));
+        for(int i = 0; i < 320; i++) {
+            underTest.enqueue(new Labelled(Integer.toString(i), i % 4 == 0 ? "application/json" : "text/plain"));
+        }
+        TopicStatistics queued = underTest.getStatistics("sensors");
+        assertEquals("sensors", queued.getTopic());
+        assertEquals(320, queued.getEnqueuedCount());
+        assertEquals(320, queued.getQueueDepth());
+        assertEquals(0, queued.getDeliveredCount());
+        for(int i = 0; i < 5; i++) {
+            underTest.run();
+        }
+
+        TopicStatistics statistics = underTest.getStatistics("sensors");
+        assertEquals(0, statistics.getQueueDepth());
+        assertEquals(320, statistics.getDeliveredCount());
+        assertEquals(0, statistics.getDroppedCount());
+        // one message in 64 is timed
+        assertEquals(5, statistics.getLatency().getCount());
+        assertTrue(statistics.getLatency().getMax() > 0);
+        assertEquals(2, statistics.getSubscribers().size());
+        SubscriberStatistics first = statistics.getSubscribers().get(0);
+        assertSame(all, first.getSubscriber());
+        assertEquals(320, first.getReceivedCount());
+        assertEquals(5, first.getReceiveTime().getCount());
+        assertEquals(80, statistics.getSubscribers().get(1).getReceivedCount());
+        // snapshots don't change
+        assertEquals(0, queued.getDeliveredCount());
+        assertEquals(0, queued.getLatency().getCount());
+
+        underTest.unregister(json);
+        assertEquals(1, underTest.getStatistics("sensors").getSubscribers().size());
+    }
+
+    @Test
+    public void fanOutStatistics() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setFanOut(true);
+        configuration.setSubscriberCapacity(4);
+        configuration.setSubscriberOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        Subscriber subscriber = new Subscriber() {
+            @Override
+            public void receive(Message message) {
+            }
+        };
+        underTest.register(subscriber);
+        for(int i = 0; i < 10; i++) {
+            underTest.enqueue(new TestableMessage(Integer.toString(i)));
+        }
+        underTest.run();
+        TopicStatistics statistics = underTest.getStatistics("fan");
+        assertEquals(10, statistics.getDeliveredCount());
+        SubscriberStatistics channel = statistics.getSubscribers().get(0);
+        assertEquals(4, channel.getLag());
+        assertEquals(6, channel.getDroppedCount());
+        assertEquals(0, channel.getReceivedCount());
+        underTest.m_channels[0].run();
+        assertEquals(4, underTest.getStatistics("fan").getSubscribers().get(0).getReceivedCount());
+    }
+
+    @Test
+    public void uninstrumentedHasNoStatistics() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setInstrumented(false);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        underTest.register(Mockito.mock(Subscriber.class));
+        underTest.enqueue(new TestableMessage("test"));
+        underTest.run();
+        assertNull(underTest.getStatistics("plain"));
+    }
+
+    private Exchange createConflated(String property) {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setConflated(true);
+        configuration.setConflationProperty(property);
+        return new Exchange(new HeldDispatcher(), configuration);
+    }
+
+    private List<String> recordValues(Exchange exchange) {
+        final List<String> received = new ArrayList<>();
+        exchange.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                received.add(message.getId() + "=" + message.getProperty("value"));
+            }
+        });
+        return received;
+    }
+
+    @Test
+    public void conflatesById() {
+        underTest = createConflated(null);
+        List<String> received = recordValues(underTest);
+        underTest.enqueue(new Labelled("a", "text/plain", "value", "1"));
+        underTest.enqueue(new Labelled("b", "text/plain", "value", "1"));
+        underTest.enqueue(new Labelled("a", "text/plain", "value", "2"));
+        underTest.enqueue(new Labelled("a", "text/plain", "value", "3"));
+        assertEquals(2, underTest.m_queue.size());
+        underTest.run();
+        // a keeps its first place in the queue
+        assertEquals(Arrays.asList("a=3", "b=1"), received);
+        assertEquals(2, underTest.getConflatedCount());
+        assertTrue(underTest.m_conflated.isEmpty());
+
+        // delivered - the next one is queued again
+        underTest.enqueue(new Labelled("a", "text/plain", "value", "4"));
+        underTest.run();
+        assertEquals(Arrays.asList("a=3", "b=1", "a=4"), received);
+        assertEquals(2, underTest.getConflatedCount());
+    }
+
+    @Test
+    public void conflatesByProperty() {
+        underTest = createConflated("sensor");
+        List<String> received = recordValues(underTest);
+        underTest.enqueue(new Labelled("1", "text/plain", "sensor", "kitchen", "value", "20"));
+        underTest.enqueue(new Labelled("2", "text/plain", "value", "none"));
+        underTest.enqueue(new Labelled("3", "text/plain", "sensor", "kitchen", "value", "21"));
+        underTest.enqueue(new Labelled("4", "text/plain", "value", "none"));
+        underTest.run();
+        // messages without the property are all delivered
+        assertEquals(Arrays.asList("3=21", "2=none", "4=none"), received);
+        assertEquals(1, underTest.getConflatedCount());
+    }
+
+    @Test
+    public void trackedMessagesNotConflated() throws Exception {
+        underTest = createConflated(null);
+        List<String> received = recordValues(underTest);
+        underTest.enqueue(new Labelled("a", "text/plain", "value", "1"));
+        Delivery delivery = underTest.enqueueAsync(new Labelled("a", "text/plain", "value", "2"), 0);
+        underTest.enqueue(new Labelled("a", "text/plain", "value", "3"));
+        underTest.run();
+        assertEquals(Arrays.asList("a=3", "a=2"), received);
+        assertTrue(delivery.isDone());
+        delivery.get();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void conflationWithJournalRejected() throws Exception {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setConflated(true);
+        configuration.setJournal(folder.newFolder("topic"), new JournalTest.TestCodec());
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+    }
+
+    @Test
+    public void conflationBoundsQueueByKeys() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(4);
+        configuration.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        configuration.setConflated(true);
+        underTest = new Exchange(new HeldDispatcher(), configuration);
+        List<String> received = recordValues(underTest);
+        for(int i = 0; i < 100000; i++) {
+            underTest.enqueue(new Labelled("sensor" + i % 3, "text/plain", "value", Integer.toString(i)));
+        }
+        assertEquals(3, underTest.m_queue.size());
+        assertEquals(0, underTest.getOverflowCount(OverflowPolicy.DROP_NEWEST));
+        assertEquals(100000 - 3, underTest.getConflatedCount());
+        underTest.run();
+        assertEquals(Arrays.asList("sensor0=99999", "sensor1=99997", "sensor2=99998"), received);
+    }
+
+    /**
+     * A producer outpacing a subscriber on a pool thread - the subscriber sees each key's values in order and
+     * ends with the latest, and every update is either delivered or replaced. ConflationBenchmark measures the
+     * throughput gained.
+     */
+    @Test
+    public void conflationUnderLoad() throws InterruptedException {
+        final int keys = 16;
+        final int updates = 200000;
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setConflated(true);
+        PooledDispatcher dispatcher = new PooledDispatcher(1);
+        underTest = new Exchange(dispatcher, configuration);
+        final int[] latest = new int[keys];
+        Arrays.fill(latest, -1);
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                int key = Integer.parseInt(message.getId());
+                int value = Integer.parseInt(message.getProperty("value"));
+                if(value <= latest[key]) {
+                    outOfOrder.incrementAndGet();
+                }
+                latest[key] = value;
+                received.incrementAndGet();
+            }
+        });
+        for(int i = 0; i < updates; i++) {
+            underTest.enqueue(new Labelled(Integer.toString(i % keys), "text/plain", "value", Integer.toString(i)));
+        }
+        // every update is either delivered or replaced
+        long deadline = System.currentTimeMillis() + 10000;
+        while(received.get() + underTest.getConflatedCount() < updates && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        underTest.shutdown();
+        dispatcher.shutdown();
+        assertEquals(0, outOfOrder.get());
+        for(int key = 0; key < keys; key++) {
+            assertEquals(updates - keys + key, latest[key]);
+        }
+        assertEquals(updates, received.get() + underTest.getConflatedCount());
+    }
+
+    private Exchange createRetained(String property, int capacity) {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setRetained(true);
+        configuration.setRetentionProperty(property);
+        configuration.setRetentionCapacity(capacity);
+        return new Exchange(new HeldDispatcher(), configuration);
+    }
+
+    @Test
+    public void retainsLastMessageForNewSubscribers() {
+        underTest = createRetained(null, 1);
+        List<String> first = recordValues(underTest);
+        underTest.enqueue(new Labelled("a", "text/plain", "value", "1"));
+        underTest.enqueue(new Labelled("b", "text/plain", "value", "2"));
+        underTest.run();
+        List<String> second = recordValues(underTest);
+        // nothing queued - the new subscriber gets the retained message
+        assertTrue(underTest.m_welcome);
+        underTest.run();
+        assertEquals(Collections.singletonList("b=2"), second);
+        underTest.enqueue(new Labelled("c", "text/plain", "value", "3"));
+        underTest.run();
+        assertEquals(Arrays.asList("a=1", "b=2", "c=3"), first);
+        assertEquals(Arrays.asList("b=2", "c=3"), second);
+
+        // not reclaimed while it holds a retained message
+        underTest.setSubscribers(new HashMap<Subscriber,Subscription[]>());
+        assertFalse(underTest.isIdle());
+    }
+
+    @Test
+    public void retainsLastMessagePerKey() {
+        underTest = createRetained("room", 2);
+        recordValues(underTest);
+        underTest.enqueue(new Labelled("1", "text/plain", "room", "kitchen", "value", "20"));
+        underTest.enqueue(new Labelled("2", "text/plain", "room", "garage", "value", "10"));
+        underTest.enqueue(new Labelled("3", "text/plain", "room", "kitchen", "value", "21"));
+        // beyond the capacity - garage was updated least recently
+        underTest.enqueue(new Labelled("4", "text/plain", "room", "hall", "value", "18"));
+        underTest.run();
+        List<String> late = recordValues(underTest);
+        RecordingBatchSubscriber batch = new RecordingBatchSubscriber();
+        underTest.register(batch);
+        final List<String> kitchen = new ArrayList<>();
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                kitchen.add(message.getId());
+            }
+        }, new MessageFilter().propertyEquals("room", "kitchen"));
+        underTest.run();
+        assertEquals(Arrays.asList("3=21", "4=18"), late);
+        assertEquals(Collections.singletonList(Arrays.asList("3", "4")), batch.m_batches);
+        assertEquals(Collections.singletonList("3"), kitchen);
+    }
+
+    @Test
+    public void queuedMessagesAreNotRetainedTwice() {
+        underTest = createRetained(null, 1);
+        recordValues(underTest);
+        underTest.enqueue(new Labelled("a", "text/plain", "value", "1"));
+        underTest.run();
+        underTest.enqueue(new Labelled("b", "text/plain", "value", "2"));
+        // registers with b still queued - gets a as retained, then b delivered
+        List<String> late = recordValues(underTest);
+        underTest.run();
+        assertEquals(Arrays.asList("a=1", "b=2"), late);
+    }
+
+    /**
+     * Subscribers join while a producer publishes a sequence - each sees one retained message and then every
+     * later one, with no gap and no repeat at the boundary
+     */
+    @Test
+    public void lateSubscribersSeeContiguousSequence() throws InterruptedException {
+        for(boolean fanOut: new boolean[] {false, true}) {
+            TopicConfiguration configuration = new TopicConfiguration();
+            configuration.setRetained(true);
+            configuration.setFanOut(fanOut);
+            configuration.setBatchSize(8);
+            // every message delivered
+            configuration.setOverflowPolicy(OverflowPolicy.BLOCK);
+            PooledDispatcher dispatcher = new PooledDispatcher(2);
+            underTest = new Exchange(dispatcher, configuration);
+            underTest.register(new Subscriber() {
+                @Override
+                public void receive(Message message) {
+                }
+            });
+            final int messages = 20000;
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < messages; i++) {
+                        underTest.enqueue(new TestableMessage(Integer.toString(i)));
+                    }
+                }
+            });
+            producer.start();
+            final List<List<Integer>> received = new ArrayList<>();
+            for(int s = 0; s < 20; s++) {
+                final List<Integer> sequence = Collections.synchronizedList(new ArrayList<Integer>());
+                received.add(sequence);
+                underTest.register(new Subscriber() {
+                    @Override
+                    public void receive(Message message) {
+                        sequence.add(Integer.parseInt(message.getId()));
+                    }
+                });
+                Thread.sleep(1);
+            }
+            producer.join();
+            long deadline = System.currentTimeMillis() + 10000;
+            for(List<Integer> sequence: received) {
+                while((sequence.isEmpty() || sequence.get(sequence.size() - 1) != messages - 1)
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                for(int i = 1; i < sequence.size(); i++) {
+                    assertEquals("fanOut=" + fanOut, sequence.get(i - 1) + 1, (int) sequence.get(i));
+                }
+                assertEquals(messages - 1, (int) sequence.get(sequence.size() - 1));
+            }
+            underTest.shutdown();
+            dispatcher.shutdown();
+        }
+    }
+
+    /**
+     * Throws from its first few receive() calls
+     */
+    static class FailingSubscriber implements Subscriber {
+        final AtomicInteger m_failures;
+
+        FailingSubscriber(int failures) {
+            m_failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public void receive(Message message) {
+            if(m_failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("can't handle " + message.getId());
+            }
+        }
+    }
+
+    /**
+     * Wait for a failed delivery's retry to fall due
+     * @param retries the Exchange's or a SubscriberChannel's due retries
+     */
+    private static void awaitRetry(ConcurrentLinkedQueue<Exchange.Redelivery> retries) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(retries.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertFalse(retries.isEmpty());
+    }
+
+    private Exchange createRetrying(boolean fanOut, int attempts, long backoff, TimingWheel timingWheel) {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setFanOut(fanOut);
+        configuration.setMaxDeliveryAttempts(attempts);
+        configuration.setRetryBackoff(backoff);
+        return new Exchange(new PooledDispatcher(1), configuration, timingWheel);
+    }
+
+    @Test
+    public void failedDeliveryRetriedWithBackoff() throws InterruptedException {
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        underTest = createRetrying(false, 3, 40, timingWheel);
+        final List<String> flaky = Collections.synchronizedList(new ArrayList<String>());
+        final List<Long> attempts = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch latch = new CountDownLatch(1);
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                if(message.getId().equals("poison")) {
+                    attempts.add(System.nanoTime());
+                    if(attempts.size() < 3) {
+                        throw new IllegalStateException("attempt " + attempts.size());
+                    }
+                }
+                flaky.add(message.getId());
+                if(message.getId().equals("poison")) {
+                    latch.countDown();
+                }
+            }
+        });
+        final AtomicInteger healthy = new AtomicInteger();
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                healthy.incrementAndGet();
+            }
+        });
+        underTest.enqueue(new TestableMessage("poison"));
+        for(int i = 0; i < 50; i++) {
+            underTest.enqueue(new TestableMessage(Integer.toString(i)));
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // the failure held up neither the later messages nor the other subscriber
+        assertEquals(51, flaky.size());
+        assertEquals("poison", flaky.get(50));
+        assertEquals(51, healthy.get());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(attempts.get(1) - attempts.get(0)) >= 35);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(attempts.get(2) - attempts.get(1)) >= 75);
+        assertEquals(0, underTest.getFailedCount());
+        // the redelivery gives its reference back after the successful attempt returns
+        long deadline = System.currentTimeMillis() + 5000;
+        while(underTest.m_redeliveries.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, underTest.m_redeliveries.get());
+        underTest.m_dispatcher.shutdown();
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void poisonMessageDeadLettered() throws InterruptedException {
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        underTest = createRetrying(false, 2, 10, timingWheel);
+        MessagePool<MessagePoolTest.PooledMessage> pool = new MessagePool<>(MessagePoolTest.FACTORY, 4);
+        final LinkedBlockingQueue<String> deadLetters = new LinkedBlockingQueue<>();
+        underTest.setDeadLetter(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                deadLetters.add(message.getId());
+            }
+        });
+        final AtomicInteger attempts = new AtomicInteger();
+        final LinkedBlockingQueue<String> received = new LinkedBlockingQueue<>();
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                if(message.getId().equals("poison")) {
+                    attempts.incrementAndGet();
+                    throw new IllegalArgumentException("can't handle " + message.getId());
+                }
+                received.add(message.getId());
+            }
+        });
+        MessagePoolTest.PooledMessage poison = pool.acquire();
+        poison.setId("poison");
+        underTest.enqueue(poison);
+        MessagePoolTest.PooledMessage after = pool.acquire();
+        after.setId("after");
+        underTest.enqueue(after);
+
+        assertEquals("after", received.poll(5, TimeUnit.SECONDS));
+        assertEquals("poison", deadLetters.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+        assertEquals(1, underTest.getFailedCount());
+        // the redelivery gives its reference back after dead-lettering
+        long deadline = System.currentTimeMillis() + 5000;
+        while(underTest.m_redeliveries.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, underTest.m_redeliveries.get());
+        assertEquals(2, pool.getAvailable());
+        underTest.m_dispatcher.shutdown();
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void failedBatchRetriedInFanOut() throws InterruptedException {
+        TimingWheel timingWheel = new TimingWheel(5, 64);
+        underTest = createRetrying(true, 3, 10, timingWheel);
+        final List<List<String>> batches = Collections.synchronizedList(new ArrayList<List<String>>());
+        final CountDownLatch latch = new CountDownLatch(2);
+        underTest.register(new RecordingBatchSubscriber() {
+            @Override
+            public void receiveBatch(List<Message> messages) {
+                List<String> ids = new ArrayList<>();
+                for(Message message: messages) {
+                    ids.add(message.getId());
+                }
+                batches.add(ids);
+                latch.countDown();
+                if(batches.size() == 1) {
+                    throw new IllegalStateException("first batch");
+                }
+            }
+        });
+        underTest.enqueue(new TestableMessage("a"));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(Collections.singletonList("a"), Collections.singletonList("a")), batches);
+        assertEquals(0, underTest.getFailedCount());
+        underTest.m_dispatcher.shutdown();
+        timingWheel.shutdown();
+    }
+
+    @Test
+    public void noRetryWithoutTimingWheel() {
+        underTest = new Exchange(new HeldDispatcher(), new TopicConfiguration());
+        final List<String> deadLetters = new ArrayList<>();
+        underTest.setDeadLetter(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                deadLetters.add(message.getId());
+            }
+        });
+        underTest.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                throw new IllegalStateException("fails");
+            }
+        });
+        underTest.enqueue(new TestableMessage("test"));
+        underTest.run();
+        assertEquals(Collections.singletonList("test"), deadLetters);
+        assertEquals(1, underTest.getFailedCount());
+        assertEquals(0, underTest.m_redeliveries.get());
+    }
+}
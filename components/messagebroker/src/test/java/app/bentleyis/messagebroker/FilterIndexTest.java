@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FilterIndexTest {
+    private static final int FILTERS = 10000;
+
+    @Test
+    public void matchesEqualityAndPrefixAnchors() {
+        FilterIndex underTest = new FilterIndex(5);
+        underTest.add(0, filtered(new MessageFilter().idEquals("a1")));
+        underTest.add(1, filtered(new MessageFilter().typeStartsWith("application/")));
+        underTest.add(2, filtered(new MessageFilter().propertyEquals("room", "kitchen").typeEquals("text/plain")));
+        underTest.add(3, filtered(new MessageFilter().propertyStartsWith("room", "")));
+        underTest.add(4, filtered(new MessageFilter().propertyStartsWith("room", "kit")
+                .propertyStartsWith("room", "kitchen/")));
+
+        assertEquals(Arrays.asList(0, 1, 3), matched(underTest,
+                new ExchangeTest.Labelled("a1", "application/json", "room", "garage"), null));
+        assertEquals(Arrays.asList(2, 3), matched(underTest,
+                new ExchangeTest.Labelled("b2", "text/plain", "room", "kitchen"), null));
+        // the anchor matches but the other term doesn't
+        assertEquals(Collections.singletonList(3), matched(underTest,
+                new ExchangeTest.Labelled("b2", "text/html", "room", "kitchen"), null));
+        assertEquals(Arrays.asList(3, 4), matched(underTest,
+                new ExchangeTest.Labelled("b2", "text/html", "room", "kitchen/oven"), null));
+        // no room property - property filters can't match
+        assertTrue(matched(underTest, new ExchangeTest.Labelled("c3", null), null).isEmpty());
+        boolean[] skip = new boolean[5];
+        skip[3] = true;
+        assertEquals(Collections.singletonList(4), matched(underTest,
+                new ExchangeTest.Labelled("b2", "text/html", "room", "kitchen/oven"), skip));
+    }
+
+    @Test
+    public void subscriberMatchedOnce() {
+        FilterIndex underTest = new FilterIndex(1);
+        underTest.add(0, filtered(new MessageFilter().idEquals("a1")));
+        underTest.add(0, filtered(new MessageFilter().typeEquals("text/plain")));
+        assertEquals(1, underTest.match(new ExchangeTest.Labelled("a1", "text/plain"), null));
+        assertEquals(1, underTest.match(new ExchangeTest.Labelled("a2", "text/plain"), null));
+        assertEquals(0, underTest.match(new ExchangeTest.Labelled("a2", "text/html"), null));
+    }
+
+    /**
+     * Match messages against 10k filtered subscriptions - equality on a property and a prefix on the id. The
+     * index finds the same subscriptions as testing every filter. FilterBenchmark measures the two.
+     */
+    @Test
+    public void tenThousandFilters() {
+        FilterIndex index = new FilterIndex(FILTERS);
+        Subscription[] subscriptions = new Subscription[FILTERS];
+        for(int i = 0; i < FILTERS; i++) {
+            MessageFilter filter = i % 2 == 0 ? new MessageFilter().propertyEquals("device", "device-" + i)
+                    : new MessageFilter().idStartsWith("sensor-" + i + "/");
+            subscriptions[i] = filtered(filter);
+            index.add(i, subscriptions[i]);
+        }
+        for(int i = 0; i < 1000; i++) {
+            int target = (i * 7919) % FILTERS;
+            Message message = new ExchangeTest.Labelled("sensor-" + target + "/reading", "text/plain",
+                    "device", "device-" + target);
+            // every message matches exactly its own filter
+            assertEquals(Collections.singletonList(target), matched(index, message, null));
+            List<Integer> scanned = new ArrayList<>();
+            for(int s = 0; s < subscriptions.length; s++) {
+                if(subscriptions[s].accepts(message)) {
+                    scanned.add(s);
+                }
+            }
+            assertEquals(scanned, matched(index, message, null));
+        }
+    }
+
+    private static Subscription filtered(MessageFilter filter) {
+        return new Subscription(null, filter);
+    }
+
+    private static List<Integer> matched(FilterIndex index, Message message, boolean[] skip) {
+        int count = index.match(message, skip);
+        ArrayList<Integer> matched = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            matched.add(index.m_matched[i]);
+        }
+        Collections.sort(matched);
+        return matched;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+    static class TestableMessage extends Message {
+        public TestableMessage(String id) {
+            super(id);
+        }
+    }
+
+    /**
+     * Id and timestamp only
+     */
+    static class TestCodec implements MessageCodec {
+        static final Charset UTF8 = Charset.forName("UTF-8");
+
+        @Override
+        public void encode(Message message, ByteBuffer buffer) {
+            byte[] id = message.getId().getBytes(UTF8);
+            buffer.putShort((short) id.length);
+            buffer.put(id);
+            buffer.putLong(message.getTimestamp());
+        }
+
+        @Override
+        public Message decode(ByteBuffer buffer) {
+            byte[] id = new byte[buffer.getShort()];
+            buffer.get(id);
+            Message message = new TestableMessage(new String(id, UTF8));
+            message.setTimestamp(buffer.getLong());
+            return message;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File directory;
+    Journal underTest;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new File(folder.getRoot(), "topic");
+        underTest = open(Journal.DEFAULT_SEGMENT_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        underTest.close();
+    }
+
+    private Journal open(int segmentSize) throws Exception {
+        return new Journal(directory, new TestCodec(), segmentSize, 0);
+    }
+
+    private void reopen(int segmentSize) throws Exception {
+        underTest.close();
+        underTest = open(segmentSize);
+    }
+
+    @Test
+    public void appendAssignsSequentialOffsets() {
+        assertEquals(0, underTest.append(new TestableMessage("a")));
+        assertEquals(1, underTest.append(new TestableMessage("b")));
+        assertEquals(2, underTest.getNextOffset());
+        assertEquals(-1, underTest.getReplayOffset());
+        assertNull(underTest.replay());
+    }
+
+    @Test
+    public void unacknowledgedMessagesReplayedAfterReopen() throws Exception {
+        for(int i = 0; i < 5; i++) {
+            Message message = new TestableMessage(Integer.toString(i));
+            message.setTimestamp(1000 + i);
+            underTest.append(message);
+        }
+        underTest.acknowledge(0);
+        underTest.acknowledge(1);
+        // out of order - the consumer offset can't pass 2
+        underTest.acknowledge(3);
+        assertEquals(2, underTest.getCommittedOffset());
+        reopen(Journal.DEFAULT_SEGMENT_SIZE);
+
+        assertEquals(2, underTest.getCommittedOffset());
+        for(int i = 2; i < 5; i++) {
+            assertEquals(i, underTest.getReplayOffset());
+            Message message = underTest.replay();
+            assertEquals(Integer.toString(i), message.getId());
+            assertEquals(1000 + i, message.getTimestamp());
+        }
+        assertEquals(-1, underTest.getReplayOffset());
+        assertNull(underTest.replay());
+        // offsets continue after the replayed messages
+        assertEquals(5, underTest.append(new TestableMessage("5")));
+    }
+
+    @Test
+    public void nothingReplayedOnceAcknowledged() throws Exception {
+        for(int i = 0; i < 3; i++) {
+            underTest.acknowledge(underTest.append(new TestableMessage(Integer.toString(i))));
+        }
+        reopen(Journal.DEFAULT_SEGMENT_SIZE);
+        assertNull(underTest.replay());
+        assertEquals(3, underTest.append(new TestableMessage("3")));
+    }
+
+    @Test
+    public void segmentsRollAndCompact() throws Exception {
+        reopen(256);
+        for(int i = 0; i < 100; i++) {
+            underTest.append(new TestableMessage("message " + i));
+        }
+        int segments = underTest.getSegmentCount();
+        assertTrue(segments > 5);
+        reopen(256);
+        // replay spans the segments
+        for(int i = 0; i < 100; i++) {
+            assertEquals("message " + i, underTest.replay().getId());
+            underTest.acknowledge(i);
+        }
+        assertNull(underTest.replay());
+        underTest.flush();
+        // only the active segment is left
+        assertEquals(1, underTest.getSegmentCount());
+        assertEquals(1, directory.list().length - 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void messageLargerThanSegment() throws Exception {
+        reopen(64);
+        underTest.append(new TestableMessage(new String(new char[100])));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LaneQueueTest {
+    static class TestableMessage extends Message {
+        public TestableMessage(String id, Priority priority) {
+            super(id);
+            setPriority(priority);
+        }
+    }
+
+    LaneQueue underTest;
+
+    @Before
+    public void setUp() throws Exception {
+        // LOW 1, NORMAL 2, HIGH 4
+        underTest = new LaneQueue(16, false, new int[] {1, 2, 4});
+    }
+
+    private void offer(String id, Priority priority) {
+        long ticket = underTest.claim(priority);
+        assertTrue(ticket >= 0);
+        underTest.publish(ticket, new TestableMessage(id, priority), null);
+    }
+
+    @Test
+    public void higherLanesFirst() {
+        offer("low", Priority.LOW);
+        offer("normal", Priority.NORMAL);
+        offer("high", Priority.HIGH);
+        assertEquals(3, underTest.size());
+        assertEquals("high", underTest.poll().getId());
+        assertEquals("normal", underTest.poll().getId());
+        assertEquals("low", underTest.poll().getId());
+        assertNull(underTest.poll());
+        assertTrue(underTest.isEmpty());
+    }
+
+    @Test
+    public void fifoWithinLane() {
+        for(int i = 0; i < 10; i++) {
+            offer(Integer.toString(i), Priority.NORMAL);
+        }
+        for(int i = 0; i < 10; i++) {
+            assertEquals(Integer.toString(i), underTest.poll().getId());
+        }
+    }
+
+    @Test
+    public void weightedRoundRobinPreventsStarvation() {
+        for(int i = 0; i < 12; i++) {
+            offer("high", Priority.HIGH);
+        }
+        for(int i = 0; i < 3; i++) {
+            offer("low", Priority.LOW);
+        }
+        // each round: 4 high then 1 low
+        StringBuilder order = new StringBuilder();
+        Message message;
+        while((message = underTest.poll()) != null) {
+            order.append(message.getId().charAt(0));
+        }
+        assertEquals("hhhhlhhhhlhhhhl", order.toString());
+    }
+
+    @Test
+    public void evictFromLane() {
+        offer("low", Priority.LOW);
+        offer("high", Priority.HIGH);
+        long ticket = underTest.claimHead(Priority.LOW);
+        assertTrue(ticket >= 0);
+        assertEquals("low", underTest.release(ticket).getId());
+        assertEquals(-1, underTest.claimHead(Priority.LOW));
+        assertEquals("high", underTest.poll().getId());
+    }
+
+    @Test
+    public void lanesCreatedOnUse() {
+        assertEquals(16, underTest.capacity());
+        assertEquals(-1, underTest.claimHead(Priority.HIGH));
+        offer("high", Priority.HIGH);
+        assertFalse(underTest.isEmpty());
+        assertFalse(underTest.contains(underTest.poll()));
+    }
+
+    @Test
+    public void removeInPlace() {
+        Message message = new TestableMessage("test", Priority.HIGH);
+        long ticket = underTest.claim(Priority.HIGH);
+        underTest.publish(ticket, message, null);
+        assertTrue(underTest.contains(message));
+        assertTrue(underTest.remove(ticket, message));
+        assertFalse(underTest.contains(message));
+        assertNull(underTest.poll());
+    }
+}
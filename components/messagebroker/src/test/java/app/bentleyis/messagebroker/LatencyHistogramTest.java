@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void bucketsCoverEveryDuration() {
+        long[] durations = {0, 1, 3, 4, 5, 7, 8, 9, 15, 16, 1000, 123456789, 1L << 40, (1L << 41) - 1};
+        for(long duration: durations) {
+            int bucket = LatencyHistogram.bucket(duration);
+            assertTrue(duration + " below its bucket", LatencyHistogram.lowerBound(bucket) <= duration);
+            if(bucket + 1 < LatencyHistogram.BUCKETS) {
+                assertTrue(duration + " above its bucket", duration < LatencyHistogram.lowerBound(bucket + 1));
+            }
+        }
+        for(int bucket = 1; bucket < LatencyHistogram.BUCKETS; bucket++) {
+            assertTrue(LatencyHistogram.lowerBound(bucket - 1) < LatencyHistogram.lowerBound(bucket));
+            assertEquals(bucket, LatencyHistogram.bucket(LatencyHistogram.lowerBound(bucket)));
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesWithinABucket() {
+        LatencyHistogram underTest = new LatencyHistogram();
+        assertEquals(0, underTest.getPercentile(99));
+        assertEquals(0, underTest.getMin());
+        for(long i = 1; i <= 100000; i++) {
+            underTest.record(i * 1000);
+        }
+        assertEquals(100000, underTest.getCount());
+        assertEquals(50000500, underTest.getMean());
+        assertEquals(1000, underTest.getMin());
+        assertEquals(100000000, underTest.getMax());
+        for(double percentile: new double[] {0.1, 1, 50, 90, 99, 99.9}) {
+            double expected = percentile * 1000000;
+            long actual = underTest.getPercentile(percentile);
+            assertTrue(percentile + "th percentile " + actual, actual >= expected && actual <= expected * 1.25);
+        }
+        assertEquals(100000000, underTest.getPercentile(100));
+    }
+
+    @Test
+    public void snapshotDoesNotChange() {
+        LatencyHistogram underTest = new LatencyHistogram();
+        underTest.record(500);
+        LatencyHistogram snapshot = underTest.snapshot();
+        underTest.record(5000);
+        assertEquals(1, snapshot.getCount());
+        assertEquals(500, snapshot.getMax());
+        assertEquals(2, underTest.getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void percentileOutOfRange() {
+        new LatencyHistogram().getPercentile(101);
+    }
+}
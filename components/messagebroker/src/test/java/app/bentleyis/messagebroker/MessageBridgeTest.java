@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package app.bentleyis.messagebroker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.ByteChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two brokers in one JVM, bridged over loopback
+ */
+public class MessageBridgeTest {
+    static class Collector implements Subscriber {
+        final LinkedBlockingQueue<Message> m_messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void receive(Message message) {
+            m_messages.add(message);
+        }
+
+        Message next() throws InterruptedException {
+            return m_messages.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    MessageBroker left;
+    MessageBroker right;
+    SocketTransport server;
+    MessageBridge leftBridge;
+    MessageBridge rightBridge;
+
+    @Before
+    public void setUp() throws IOException {
+        left = MessageBroker.newInstance();
+        right = MessageBroker.newInstance();
+        server = SocketTransport.server(0);
+    }
+
+    @After
+    public void tearDown() {
+        if(leftBridge != null) {
+            leftBridge.close();
+        }
+        if(rightBridge != null) {
+            rightBridge.close();
+        }
+        left.shutdown();
+        right.shutdown();
+    }
+
+    private static BinaryCodec codec() {
+        BinaryCodec codec = new BinaryCodec();
+        codec.register(1, ExchangeTest.Labelled.class, BinaryCodecTest.LABELLED);
+        return codec;
+    }
+
+    private void bridge(int window, int frameSize, String... topics) {
+        leftBridge = new MessageBridge(left, server, codec(), window, frameSize, MessageBridge.DEFAULT_QUEUE_SIZE,
+                topics);
+        rightBridge = new MessageBridge(right, SocketTransport.client(server.getLocalPort()), codec(), window,
+                frameSize, MessageBridge.DEFAULT_QUEUE_SIZE, topics);
+        leftBridge.start();
+        rightBridge.start();
+    }
+
+    @Test
+    public void newInstanceIsNotShared() {
+        assertNotSame(left, right);
+        assertNotSame(left, MessageBroker.getInstance());
+        MessageBroker.getInstance().shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wildcardTopicsRejected() {
+        new MessageBridge(left, server, codec(), "sensors/#");
+    }
+
+    @Test
+    public void mirrorsBothWays() throws InterruptedException {
+        bridge(MessageBridge.DEFAULT_WINDOW, MessageBridge.DEFAULT_FRAME_SIZE, "sensors/kitchen", "alerts");
+        Collector leftSensors = new Collector();
+        Collector rightSensors = new Collector();
+        Collector leftAlerts = new Collector();
+        left.subscribe("sensors/kitchen", leftSensors);
+        right.subscribe("sensors/kitchen", rightSensors);
+        left.subscribe("alerts", leftAlerts);
+
+        left.publish("sensors/kitchen", new ExchangeTest.Labelled("t1", "reading", "celsius", "21"));
+        Message received = rightSensors.next();
+        assertNotNull(received);
+        assertEquals("t1", received.getId());
+        assertEquals("reading", received.getType());
+        assertEquals("21", received.getProperty("celsius"));
+        assertEquals("t1", leftSensors.next().getId());
+
+        right.publish("alerts", new ExchangeTest.Labelled("a1", "alert"));
+        assertEquals("a1", leftAlerts.next().getId());
+
+        // nothing echoed back
+        Thread.sleep(200);
+        assertTrue(leftSensors.m_messages.isEmpty());
+        assertTrue(rightSensors.m_messages.isEmpty());
+        assertEquals(1, leftBridge.getSentCount());
+        assertEquals(1, leftBridge.getReceivedCount());
+        assertEquals(1, rightBridge.getSentCount());
+        assertEquals(1, rightBridge.getReceivedCount());
+    }
+
+    @Test
+    public void otherTopicsStayLocal() throws InterruptedException {
+        bridge(MessageBridge.DEFAULT_WINDOW, MessageBridge.DEFAULT_FRAME_SIZE, "sensors/kitchen");
+        Collector rightOther = new Collector();
+        Collector rightSensors = new Collector();
+        right.subscribe("sensors/hall", rightOther);
+        right.subscribe("sensors/kitchen", rightSensors);
+        left.publish("sensors/hall", new ExchangeTest.Labelled("local", "reading"));
+        left.publish("sensors/kitchen", new ExchangeTest.Labelled("bridged", "reading"));
+        assertEquals("bridged", rightSensors.next().getId());
+        assertTrue(rightOther.m_messages.isEmpty());
+    }
+
+    @Test
+    public void smallWindowAndFramesKeepOrder() throws InterruptedException {
+        // the sender has to wait for credit and split batches across frames
+        bridge(3, 128, "sensors/kitchen");
+        Collector rightSensors = new Collector();
+        right.subscribe("sensors/kitchen", rightSensors);
+        for(int i = 0; i < 1000; i++) {
+            left.publish("sensors/kitchen", new ExchangeTest.Labelled(Integer.toString(i), "reading"));
+        }
+        for(int i = 0; i < 1000; i++) {
+            Message message = rightSensors.next();
+            assertNotNull(message);
+            assertEquals(Integer.toString(i), message.getId());
+        }
+        assertEquals(0, leftBridge.getDroppedCount());
+    }
+
+    @Test
+    public void unencodableMessagesDropped() throws InterruptedException {
+        bridge(MessageBridge.DEFAULT_WINDOW, MessageBridge.DEFAULT_FRAME_SIZE, "sensors/kitchen");
+        Collector rightSensors = new Collector();
+        right.subscribe("sensors/kitchen", rightSensors);
+        // no codec registered for this type
+        left.publish("sensors/kitchen", new RingBufferQueueTest.TestableMessage("unknown"));
+        left.publish("sensors/kitchen", new ExchangeTest.Labelled("known", "reading"));
+        assertEquals("known", rightSensors.next().getId());
+        assertEquals(1, leftBridge.getDroppedCount());
+    }
+
+    @Test
+    public void reconnects() throws InterruptedException, IOException {
+        bridge(MessageBridge.DEFAULT_WINDOW, MessageBridge.DEFAULT_FRAME_SIZE, "sensors/kitchen");
+        Collector rightSensors = new Collector();
+        right.subscribe("sensors/kitchen", rightSensors);
+        left.publish("sensors/kitchen", new ExchangeTest.Labelled("before", "reading"));
+        assertEquals("before", rightSensors.next().getId());
+
+        // drop the connection under the bridge
+        ByteChannel connection = rightBridge.m_connection;
+        connection.close();
+        left.publish("sensors/kitchen", new ExchangeTest.Labelled("after", "reading"));
+        Message message = rightSensors.next();
+        if(message != null && message.getId().equals("before")) {
+            // sent again - the connection dropped before the right side's acknowledgement reached the left
+            message = rightSensors.next();
+        }
+        assertNotNull(message);
+        assertEquals("after", message.getId());
+        assertTrue(rightBridge.getConnectionCount() >= 2);
+        assertTrue(leftBridge.isConnected());
+    }
+
+    /**
+     * A long stream crosses the bridge complete and in order. BridgeBenchmark measures its throughput.
+     */
+    @Test
+    public void longStream() throws InterruptedException {
+        // lossless - publishers wait for the bridge rather than dropping
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setOverflowPolicy(OverflowPolicy.BLOCK);
+        left.configure("sensors/kitchen", configuration);
+        right.configure("sensors/kitchen", configuration);
+        bridge(MessageBridge.DEFAULT_WINDOW, MessageBridge.DEFAULT_FRAME_SIZE, "sensors/kitchen");
+        final int messages = 100000;
+        Collector rightSensors = new Collector();
+        right.subscribe("sensors/kitchen", rightSensors);
+        for(int i = 0; i < messages; i++) {
+            left.publish("sensors/kitchen", new ExchangeTest.Labelled(Integer.toString(i), "reading", "celsius", "21"));
+        }
+        for(int i = 0; i < messages; i++) {
+            Message message = rightSensors.next();
+            assertNotNull(message);
+            assertEquals(Integer.toString(i), message.getId());
+        }
+        assertEquals(0, leftBridge.getDroppedCount());
+    }
+}
@@ -26,6 +26,12 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -45,10 +51,7 @@ public class MessageBrokerTest {
 
     @After
     public void tearDown() {
-        for(Exchange exchange: underTest.m_exchanges.values()) {
-            exchange.interrupt();
-        }
-        MessageBroker.s_instance = null;
+        underTest.shutdown();
     }
 
     @Test
@@ -106,4 +109,372 @@ public class MessageBrokerTest {
         underTest.unsubscribe("test", subscriber);
         assertTrue(exchange.m_subscribers.isEmpty());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void configure() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(2);
+        configuration.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        underTest.configure("test", configuration);
+
+        for(int i = 0; i < 5; i++) {
+            underTest.publish("test", new TestableMessage("test"));
+        }
+        Exchange exchange = underTest.m_exchanges.get("test");
+        assertEquals(2, exchange.m_queue.size());
+        assertEquals(3, underTest.getOverflowCount("test", OverflowPolicy.DROP_NEWEST));
+        assertEquals(0, underTest.getOverflowCount("other", OverflowPolicy.DROP_NEWEST));
+
+        try {
+            underTest.configure("test", configuration);
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void deadLetterTopic() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setTimeToLive(20);
+        configuration.setDeadLetterTopic("dead");
+        underTest.configure("test", configuration);
+        underTest.subscribe("dead", new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                latch.countDown();
+            }
+        });
+
+        // no subscribers on "test" - the message expires in the queue
+        underTest.publish("test", new TestableMessage("test"));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, underTest.m_exchanges.get("test").getExpiredCount());
+    }
+
+    @Test
+    public void publishDropsOldestByDefault() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(2);
+        underTest.configure("test", configuration);
+        for(int i = 0; i < 5; i++) {
+            underTest.publish("test", new TestableMessage(Integer.toString(i)));
+        }
+        assertEquals(2, underTest.m_exchanges.get("test").m_queue.size());
+        assertEquals(3, underTest.getOverflowCount("test", OverflowPolicy.DROP_OLDEST));
+    }
+
+    @Test
+    public void shutdown() {
+        underTest.subscribe("test", Mockito.mock(Subscriber.class));
+        underTest.shutdown();
+        assertTrue(underTest.m_exchanges.isEmpty());
+        assertNotSame(underTest, MessageBroker.getInstance());
+        MessageBroker.getInstance().shutdown();
+    }
+
+    @Test
+    public void wildcardSubscription() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(2);
+        Subscriber subscriber = Mockito.mock(Subscriber.class);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                latch.countDown();
+                return null;
+            }
+        }).when(subscriber).receive(Mockito.any(Message.class));
+
+        // one existing topic, one created after subscribing
+        underTest.subscribe("sensors/kitchen/temperature", subscriber);
+        underTest.subscribe("sensors/+/temperature", subscriber);
+        Message kitchen = new TestableMessage("kitchen");
+        Message garage = new TestableMessage("garage");
+        underTest.publish("sensors/kitchen/temperature", kitchen);
+        underTest.publish("sensors/garage/temperature", garage);
+        underTest.publish("sensors/garage/humidity", new TestableMessage("humidity"));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        // subscribed twice to the kitchen topic but receives once
+        Mockito.verify(subscriber, Mockito.times(1)).receive(kitchen);
+        Mockito.verify(subscriber, Mockito.times(1)).receive(garage);
+        Mockito.verify(subscriber, Mockito.times(2)).receive(Mockito.any(Message.class));
+
+        underTest.unsubscribe("sensors/+/temperature", subscriber);
+        assertTrue(underTest.m_exchanges.get("sensors/garage/temperature").m_subscribers.isEmpty());
+        // still subscribed exactly
+        assertTrue(underTest.m_exchanges.get("sensors/kitchen/temperature").m_subscribers.containsKey(subscriber));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void publishToWildcard() {
+        underTest.publish("sensors/#", new TestableMessage("test"));
+    }
+
+    @Test
+    public void filteredSubscription() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Subscriber subscriber = Mockito.mock(Subscriber.class);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                latch.countDown();
+                return null;
+            }
+        }).when(subscriber).receive(Mockito.any(Message.class));
+
+        underTest.subscribe("sensors/#", subscriber, new MessageFilter().propertyEquals("room", "kitchen"));
+        Message kitchen = new ExchangeTest.Labelled("kitchen", null, "room", "kitchen");
+        underTest.publish("sensors/temperature", new ExchangeTest.Labelled("garage", null, "room", "garage"));
+        underTest.publish("sensors/temperature", kitchen);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        Mockito.verify(subscriber, Mockito.times(1)).receive(Mockito.any(Message.class));
+        Mockito.verify(subscriber).receive(kitchen);
+    }
+
+    @Test
+    public void topicHandle() {
+        Topic topic = underTest.topic("test");
+        assertEquals("test", topic.getName());
+        Exchange exchange = underTest.m_exchanges.get("test");
+        assertSame(exchange, topic.m_exchange);
+        topic.publish(new TestableMessage("test"));
+        assertFalse(exchange.m_queue.isEmpty());
+        // a handle outlives its Exchange
+        exchange.m_queue.release(exchange.m_queue.claimHead(Priority.NORMAL));
+        assertTrue(exchange.retire());
+        underTest.m_exchanges.remove("test");
+        topic.publish(new TestableMessage("again"));
+        assertNotSame(exchange, topic.m_exchange);
+        assertSame(underTest.m_exchanges.get("test"), topic.m_exchange);
+    }
+
+    @Test
+    public void topicHandleAfterShutdown() {
+        Topic topic = underTest.topic("test");
+        Exchange exchange = topic.m_exchange;
+        underTest.shutdown();
+        // looked up again, like MessageBroker.publish() - not left with the shut down Exchange
+        topic.publish(new TestableMessage("after"));
+        assertNotSame(exchange, topic.m_exchange);
+        assertSame(underTest.m_exchanges.get("test"), topic.m_exchange);
+        assertFalse(topic.m_exchange.m_queue.isEmpty());
+    }
+
+    @Test
+    public void idleTopicsReclaimed() throws InterruptedException {
+        underTest.setIdleTimeout(20);
+        Subscriber subscriber = Mockito.mock(Subscriber.class);
+        underTest.subscribe("busy", subscriber);
+        underTest.subscribe("idle", subscriber);
+        underTest.unsubscribe("idle", subscriber);
+        Exchange idle = underTest.m_exchanges.get("idle");
+        assertNotNull(idle);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(underTest.m_exchanges.containsKey("idle") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(underTest.m_exchanges.containsKey("idle"));
+        assertTrue(idle.m_shutdown);
+        // still subscribed
+        assertTrue(underTest.m_exchanges.containsKey("busy"));
+
+        // reactivated by the next subscribe
+        final CountDownLatch latch = new CountDownLatch(1);
+        underTest.subscribe("idle", new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                latch.countDown();
+            }
+        });
+        assertNotSame(idle, underTest.m_exchanges.get("idle"));
+        underTest.publish("idle", new TestableMessage("test"));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void topicWithQueuedMessagesNotReclaimed() throws InterruptedException {
+        underTest.setIdleTimeout(10);
+        underTest.publish("held", new TestableMessage("test"));
+        Thread.sleep(100);
+        // held for a subscriber
+        Exchange exchange = underTest.m_exchanges.get("held");
+        assertNotNull(exchange);
+        assertFalse(exchange.m_shutdown);
+    }
+
+    @Test
+    public void statistics() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(3);
+        Subscriber subscriber = new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                latch.countDown();
+            }
+        };
+        underTest.subscribe("sensors/kitchen", subscriber);
+        TopicConfiguration plain = new TopicConfiguration();
+        plain.setInstrumented(false);
+        underTest.configure("plain", plain);
+        underTest.subscribe("plain", subscriber);
+        for(int i = 0; i < 3; i++) {
+            underTest.publish("sensors/kitchen", new TestableMessage(Integer.toString(i)));
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        assertNull(underTest.getStatistics("plain"));
+        assertNull(underTest.getStatistics("missing"));
+        assertEquals(1, underTest.getStatistics().size());
+        TopicStatistics statistics = underTest.getStatistics("sensors/kitchen");
+        assertEquals(3, statistics.getEnqueuedCount());
+        assertEquals(1, statistics.getSubscribers().size());
+        assertSame(subscriber, statistics.getSubscribers().get(0).getSubscriber());
+    }
+
+    @Test
+    public void statisticsPublished() throws InterruptedException {
+        final LinkedBlockingQueue<TopicStatistics> published = new LinkedBlockingQueue<>();
+        underTest.subscribe("metrics", new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                published.add((TopicStatistics) message);
+            }
+        });
+        underTest.subscribe("sensors/kitchen", Mockito.mock(Subscriber.class));
+        underTest.publish("sensors/kitchen", new TestableMessage("test"));
+        underTest.publishStatistics("metrics", 20);
+
+        TopicStatistics statistics = published.poll(5, TimeUnit.SECONDS);
+        assertNotNull(statistics);
+        // the statistics topic doesn't report itself
+        assertEquals("sensors/kitchen", statistics.getId());
+        assertEquals("sensors/kitchen", statistics.getProperty("topic"));
+        assertEquals(TopicStatistics.TYPE, statistics.getType());
+        assertEquals(1, statistics.getEnqueuedCount());
+        assertNotNull(published.poll(5, TimeUnit.SECONDS));
+
+        underTest.publishStatistics(null, 0);
+        Thread.sleep(50);
+        published.clear();
+        Thread.sleep(100);
+        assertTrue(published.isEmpty());
+    }
+
+    @Test
+    public void retainedMessageForWildcardSubscriber() throws InterruptedException {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setRetained(true);
+        underTest.configure("sensors/kitchen", configuration);
+        final LinkedBlockingQueue<Message> first = new LinkedBlockingQueue<>();
+        underTest.subscribe("sensors/kitchen", new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                first.add(message);
+            }
+        });
+        underTest.publish("sensors/kitchen", new TestableMessage("old"));
+        underTest.publish("sensors/kitchen", new TestableMessage("latest"));
+        assertNotNull(first.poll(5, TimeUnit.SECONDS));
+        assertNotNull(first.poll(5, TimeUnit.SECONDS));
+
+        final LinkedBlockingQueue<Message> late = new LinkedBlockingQueue<>();
+        underTest.subscribe("sensors/#", new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                late.add(message);
+            }
+        });
+        Message retained = late.poll(5, TimeUnit.SECONDS);
+        assertNotNull(retained);
+        assertEquals("latest", retained.getId());
+        assertNull(late.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void publishAfter() throws InterruptedException {
+        final LinkedBlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        underTest.subscribe("later", new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                received.add(message);
+            }
+        });
+        long start = System.nanoTime();
+        underTest.publishAt("later", new TestableMessage("at"), System.currentTimeMillis() + 100);
+        underTest.publishAfter("later", new TestableMessage("after"), 50);
+        TimingWheel.Timeout cancelled = underTest.publishAfter("later", new TestableMessage("cancelled"), 20);
+        assertTrue(cancelled.cancel());
+
+        Message message = received.poll(5, TimeUnit.SECONDS);
+        assertEquals("after", message.getId());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 40);
+        message = received.poll(5, TimeUnit.SECONDS);
+        assertEquals("at", message.getId());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+        assertNull(received.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void publishAtFixedRate() throws InterruptedException {
+        final LinkedBlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        underTest.subscribe("ticks", new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                received.add(message);
+            }
+        });
+        final int[] count = new int[1];
+        TimingWheel.Timeout timeout = underTest.publishAtFixedRate("ticks", new MessagePool.Factory<Message>() {
+            @Override
+            public Message create() {
+                return new TestableMessage("tick" + count[0]++);
+            }
+        }, 0, 20);
+        for(int i = 0; i < 5; i++) {
+            Message message = received.poll(5, TimeUnit.SECONDS);
+            assertEquals("tick" + i, message.getId());
+        }
+        assertTrue(timeout.cancel());
+        Thread.sleep(50);
+        received.clear();
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void publishAfterToWildcardRejected() {
+        underTest.publishAfter("sensors/#", new TestableMessage("test"), 10);
+    }
+
+    @Test
+    public void failedDeliveryDeadLettered() throws InterruptedException {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setMaxDeliveryAttempts(2);
+        configuration.setRetryBackoff(10);
+        configuration.setDeadLetterTopic("orders.failed");
+        underTest.configure("orders", configuration);
+        final LinkedBlockingQueue<Message> deadLetters = new LinkedBlockingQueue<>();
+        underTest.subscribe("orders.failed", new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                deadLetters.add(message);
+            }
+        });
+        final LinkedBlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        underTest.subscribe("orders", new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                if(message.getId().equals("bad")) {
+                    throw new IllegalArgumentException("malformed order");
+                }
+                received.add(message);
+            }
+        });
+        underTest.publish("orders", new TestableMessage("bad"));
+        underTest.publish("orders", new TestableMessage("good"));
+        assertEquals("good", received.poll(5, TimeUnit.SECONDS).getId());
+        assertEquals("bad", deadLetters.poll(5, TimeUnit.SECONDS).getId());
+        assertEquals(1, underTest.getStatistics("orders").getFailedCount());
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessagePoolTest {
+    static class PooledMessage extends Message {
+        long m_value;
+
+        public PooledMessage() {
+            super(null);
+        }
+
+        @Override
+        protected void reset() {
+            super.reset();
+            m_value = 0;
+        }
+    }
+
+    static final MessagePool.Factory<PooledMessage> FACTORY = new MessagePool.Factory<PooledMessage>() {
+        @Override
+        public PooledMessage create() {
+            return new PooledMessage();
+        }
+    };
+
+    MessagePool<PooledMessage> underTest = new MessagePool<>(FACTORY, 16);
+    Exchange exchange;
+
+    @After
+    public void tearDown() {
+        if(exchange != null) {
+            exchange.shutdown();
+        }
+    }
+
+    @Test
+    public void releasedMessageIsResetAndReused() {
+        PooledMessage message = underTest.acquire();
+        assertTrue(message.isPooled());
+        message.setId("first");
+        message.setType("text/plain");
+        message.m_value = 42;
+        message.retain();
+        message.release();
+        assertEquals(0, underTest.getAvailable());
+        message.release();
+        assertEquals(1, underTest.getAvailable());
+        assertNull(message.getType());
+        assertEquals(0, message.m_value);
+        assertSame(message, underTest.acquire());
+        assertEquals(1, underTest.getCreatedCount());
+    }
+
+    @Test
+    public void unpooledMessageUnaffected() {
+        Message message = new ExchangeTest.Labelled("test", "text/plain");
+        assertFalse(message.isPooled());
+        message.release();
+        assertEquals("text/plain", message.getType());
+    }
+
+    @Test
+    public void recycledAfterEverySubscriberReceived() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setFanOut(true);
+        exchange = new Exchange(new ExchangeTest.HeldDispatcher(), configuration);
+        final List<Long> received = new ArrayList<>();
+        Subscriber subscriber = new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                received.add(((PooledMessage) message).m_value);
+            }
+        };
+        exchange.register(subscriber);
+        exchange.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                received.add(((PooledMessage) message).m_value);
+            }
+        });
+        PooledMessage message = underTest.acquire();
+        message.setId("test");
+        message.m_value = 7;
+        exchange.enqueue(message);
+        exchange.run();
+        exchange.m_channels[0].run();
+        // one subscriber still to go
+        assertEquals(0, underTest.getAvailable());
+        exchange.m_channels[1].run();
+        assertEquals(1, underTest.getAvailable());
+        assertEquals(2, received.size());
+        assertEquals(7L, (long) received.get(1));
+    }
+
+    @Test
+    public void recycledWhenDropped() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(2);
+        configuration.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+        exchange = new Exchange(new ExchangeTest.HeldDispatcher(), configuration);
+        for(int i = 0; i < 3; i++) {
+            PooledMessage message = underTest.acquire();
+            message.setId(Integer.toString(i));
+            exchange.enqueue(message);
+        }
+        // the oldest made room
+        assertEquals(1, underTest.getAvailable());
+        exchange.shutdown();
+        assertEquals(3, underTest.getAvailable());
+    }
+
+    /**
+     * Publish and deliver a long stream of pooled messages. Once the pool covers the messages in flight,
+     * publishing and delivering allocates nothing - asserted near zero.
+     */
+    @Test
+    public void soakAllocatesNothingInSteadyState() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        underTest = new MessagePool<>(FACTORY, Exchange.DEFAULT_BATCH_SIZE);
+        exchange = new Exchange(new ExchangeTest.HeldDispatcher());
+        final long[] sum = new long[1];
+        exchange.register(new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                sum[0] += ((PooledMessage) message).m_value;
+            }
+        });
+        String[] ids = new String[Exchange.DEFAULT_BATCH_SIZE];
+        for(int i = 0; i < ids.length; i++) {
+            ids[i] = Integer.toString(i);
+        }
+        long thread = Thread.currentThread().getId();
+        int rounds = 20000;
+        long allocated = 0;
+        long created = 0;
+        for(int round = 0; round < rounds; round++) {
+            if(round == rounds / 2) {
+                // warmed up
+                allocated = threads.getThreadAllocatedBytes(thread);
+                created = underTest.getCreatedCount();
+            }
+            for(String id: ids) {
+                PooledMessage message = underTest.acquire();
+                message.setId(id);
+                message.m_value = 1;
+                exchange.enqueue(message);
+            }
+            exchange.run();
+        }
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        long messages = (long) rounds / 2 * ids.length;
+        assertEquals((long) rounds * ids.length, sum[0]);
+        assertEquals(created, underTest.getCreatedCount());
+        assertTrue("allocated " + allocated + " bytes for " + messages + " messages", allocated < messages / 100);
+    }
+}
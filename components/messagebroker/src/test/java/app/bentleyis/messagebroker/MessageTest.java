@@ -71,4 +71,20 @@ public class MessageTest {
         underTest.setType("test");
         assertEquals("test", underTest.getType());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void setTimeToLive() {
+        assertEquals(0, underTest.getTimeToLive());
+        underTest.setTimeToLive(1000);
+        assertEquals(1000, underTest.getTimeToLive());
+    }
+
+    @Test
+    public void setPriority() {
+        assertEquals(Priority.NORMAL, underTest.getPriority());
+        underTest.setPriority(Priority.HIGH);
+        assertEquals(Priority.HIGH, underTest.getPriority());
+        underTest.setPriority(null);
+        assertEquals(Priority.NORMAL, underTest.getPriority());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PooledDispatcherTest {
+    class TestableMessage extends Message {
+        public TestableMessage(String id) {
+            super(id);
+        }
+    }
+
+    static final int POOL_SIZE = 4;
+
+    MessageBroker broker;
+    PooledDispatcher underTest;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = MessageBroker.getInstance();
+        underTest = new PooledDispatcher(POOL_SIZE);
+        broker.setDispatcher(underTest);
+    }
+
+    @After
+    public void tearDown() {
+        broker.shutdown();
+    }
+
+    @Test
+    public void threadCountFlatAsTopicsGrow() throws InterruptedException {
+        int before = Thread.activeCount();
+        publishToTopics(0, 10);
+        int poolThreads = countPoolThreads();
+        assertTrue(poolThreads <= POOL_SIZE);
+
+        publishToTopics(10, 500);
+        assertEquals(poolThreads, countPoolThreads());
+        assertTrue(Thread.activeCount() <= before + POOL_SIZE);
+    }
+
+    @Test
+    public void fifoPerTopic() throws InterruptedException {
+        final int count = 2000;
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch = new CountDownLatch(count);
+        // lossless - more messages than the default capacity
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setOverflowPolicy(OverflowPolicy.BLOCK);
+        broker.configure("fifo", configuration);
+        broker.subscribe("fifo", new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                received.add(message.getId());
+                latch.countDown();
+            }
+        });
+        for(int i = 0; i < count; i++) {
+            broker.publish("fifo", new TestableMessage(Integer.toString(i)));
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for(int i = 0; i < count; i++) {
+            assertEquals(Integer.toString(i), received.get(i));
+        }
+    }
+
+    @Test
+    public void deliversHeldMessagesOnSubscribe() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        broker.publish("held", new TestableMessage("held"));
+        broker.subscribe("held", new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    private void publishToTopics(int from, int to) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(to - from);
+        Subscriber subscriber = new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                latch.countDown();
+            }
+        };
+        for(int i = from; i < to; i++) {
+            broker.subscribe("topic" + i, subscriber);
+            broker.publish("topic" + i, new TestableMessage("test"));
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+
+    private int countPoolThreads() {
+        int count = 0;
+        for(Thread thread: Thread.getAllStackTraces().keySet()) {
+            if(thread.getName().startsWith(underTest.getThreadPrefix())) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
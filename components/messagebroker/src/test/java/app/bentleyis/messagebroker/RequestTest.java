@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class RequestTest {
+    static class TestableMessage extends Message {
+        public TestableMessage(String id) {
+            super(id);
+        }
+    }
+
+    MessageBroker broker;
+
+    @Before
+    public void setUp() {
+        broker = MessageBroker.newInstance();
+        broker.setDispatcher(new PooledDispatcher(2));
+    }
+
+    @After
+    public void tearDown() {
+        broker.shutdown();
+    }
+
+    /**
+     * Answers each request with its id reversed, as many times as asked
+     */
+    private void respond(String topic, final int replies) {
+        broker.subscribe(topic, new Subscriber() {
+            @Override
+            public void receive(Message message) {
+                String answer = new StringBuilder(message.getId()).reverse().toString();
+                for(int i = 0; i < replies; i++) {
+                    broker.reply(message, new TestableMessage(answer + i));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void replyCompletesRequest() throws Exception {
+        respond("echo", 1);
+        Message message = new TestableMessage("abc");
+        Request request = broker.request("echo", message, 5000);
+        assertEquals("cba0", request.get(5, TimeUnit.SECONDS).getId());
+        assertTrue(request.isDone());
+        assertSame(message, request.getMessage());
+        assertEquals(request.getCorrelationId(), message.getCorrelationId());
+        assertEquals(broker.getReplyTopic(), message.getReplyTo());
+        assertEquals(message.getCorrelationId(), request.getReply().getCorrelationId());
+        assertTrue(broker.m_requests.isEmpty());
+    }
+
+    @Test
+    public void firstReplyWins() throws Exception {
+        respond("echo", 3);
+        Request request = broker.request("echo", new TestableMessage("abc"), 5000);
+        assertEquals("cba0", request.get(5, TimeUnit.SECONDS).getId());
+        // the others arrive for a request no longer pending
+        Thread.sleep(50);
+        assertEquals("cba0", request.getReply().getId());
+    }
+
+    @Test
+    public void timesOut() throws Exception {
+        broker.subscribe("silent", new Subscriber() {
+            @Override
+            public void receive(Message message) {
+            }
+        });
+        Request request = broker.request("silent", new TestableMessage("abc"), 50);
+        try {
+            request.get(5, TimeUnit.SECONDS);
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertTrue(broker.m_requests.isEmpty());
+        // a late reply is ignored
+        broker.reply(request.getMessage(), new TestableMessage("late"));
+        Thread.sleep(50);
+        assertNull(request.getReply());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        Request request = broker.request("nobody", new TestableMessage("abc"), 0);
+        assertTrue(request.cancel(false));
+        assertTrue(request.isCancelled());
+        assertFalse(request.cancel(false));
+        assertTrue(broker.m_requests.isEmpty());
+        try {
+            request.get();
+            fail("expected CancellationException");
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void droppedRequestFails() {
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(2);
+        configuration.setOverflowPolicy(OverflowPolicy.DROP_NEWEST);
+        broker.configure("full", configuration);
+        // no subscriber, so these stay queued
+        broker.request("full", new TestableMessage("first"), 0);
+        broker.request("full", new TestableMessage("second"), 0);
+        Request request = broker.request("full", new TestableMessage("third"), 0);
+        assertTrue(request.isDone());
+        assertTrue(request.getCause() instanceof MessageRejectedException);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void replyToPlainMessage() {
+        broker.reply(new TestableMessage("abc"), new TestableMessage("cba"));
+    }
+
+    @Test
+    public void listener() throws InterruptedException {
+        respond("echo", 1);
+        final CountDownLatch replied = new CountDownLatch(1);
+        broker.request("echo", new TestableMessage("abc"), 5000).addListener(new Request.Listener() {
+            @Override
+            public void onComplete(Request request) {
+                if("cba0".equals(request.getReply().getId())) {
+                    replied.countDown();
+                }
+            }
+        });
+        assertTrue(replied.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shutdownFailsPending() {
+        Request request = broker.request("nobody", new TestableMessage("abc"), 0);
+        broker.shutdown();
+        assertTrue(request.getCause() instanceof IllegalStateException);
+    }
+
+    /**
+     * Thousands of requests in flight share the timer wheel and the map - no thread each. RequestBenchmark
+     * measures the round trip.
+     */
+    @Test
+    public void manyInFlight() throws Exception {
+        final int requests = 10000;
+        TopicConfiguration configuration = new TopicConfiguration();
+        configuration.setCapacity(requests);
+        broker.configure("later", configuration);
+        int threads = Thread.activeCount();
+        Request[] pending = new Request[requests];
+        for(int i = 0; i < requests; i++) {
+            pending[i] = broker.request("later", new TestableMessage(Integer.toString(i)), 60000);
+        }
+        assertEquals(requests, broker.m_requests.size());
+        assertTrue(broker.m_timingWheel.getPendingCount() >= requests);
+        assertTrue(Thread.activeCount() - threads < 10);
+        // answered once a responder subscribes - the requests were held for it
+        respond("later", 1);
+        for(int i = 0; i < requests; i++) {
+            assertEquals(new StringBuilder(Integer.toString(i)).reverse() + "0",
+                    pending[i].get(5, TimeUnit.SECONDS).getId());
+        }
+        assertTrue(broker.m_requests.isEmpty());
+        for(Request request: pending) {
+            assertTrue(request.m_timeout.isCancelled());
+        }
+    }
+}
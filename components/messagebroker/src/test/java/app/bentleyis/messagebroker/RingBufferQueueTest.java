@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class RingBufferQueueTest {
+    static class TestableMessage extends Message {
+        public TestableMessage(String id) {
+            super(id);
+        }
+    }
+
+    RingBufferQueue underTest;
+
+    @Before
+    public void setUp() throws Exception {
+        underTest = new RingBufferQueue(4);
+    }
+
+    @Test
+    public void capacityRoundsToPowerOfTwo() {
+        assertEquals(4, underTest.capacity());
+        assertEquals(8, new RingBufferQueue(5).capacity());
+        assertEquals(1, new RingBufferQueue(1).capacity());
+    }
+
+    @Test
+    public void offerAndPollInOrder() {
+        assertTrue(underTest.isEmpty());
+        assertNull(underTest.poll());
+        // wrap around the buffer a few times
+        for(int lap = 0; lap < 3; lap++) {
+            for(int i = 0; i < 4; i++) {
+                assertTrue(underTest.offer(new TestableMessage(lap + ":" + i)));
+            }
+            assertEquals(4, underTest.size());
+            for(int i = 0; i < 4; i++) {
+                assertEquals(lap + ":" + i, underTest.poll().getId());
+            }
+            assertTrue(underTest.isEmpty());
+        }
+    }
+
+    @Test
+    public void offerFailsWhenFull() {
+        for(int i = 0; i < 4; i++) {
+            assertTrue(underTest.offer(new TestableMessage("test")));
+        }
+        assertFalse(underTest.offer(new TestableMessage("overflow")));
+        underTest.poll();
+        assertTrue(underTest.offer(new TestableMessage("room")));
+    }
+
+    @Test
+    public void contains() {
+        Message message = new TestableMessage("test");
+        assertFalse(underTest.contains(message));
+        underTest.offer(message);
+        assertTrue(underTest.contains(message));
+        underTest.poll();
+        assertFalse(underTest.contains(message));
+    }
+
+    @Test
+    public void reclaimHeadFreesRemovedSlots() {
+        Message[] messages = new Message[4];
+        for(int i = 0; i < 4; i++) {
+            messages[i] = new TestableMessage(Integer.toString(i));
+            assertTrue(underTest.offer(messages[i]));
+        }
+        // a live message at the head keeps the removed ones behind it
+        assertTrue(underTest.remove(1, messages[1]));
+        assertEquals(0, underTest.reclaimHead());
+        assertTrue(underTest.remove(0, messages[0]));
+        assertEquals(2, underTest.reclaimHead());
+        assertEquals(2, underTest.size());
+        assertTrue(underTest.offer(new TestableMessage("4")));
+        assertTrue(underTest.offer(new TestableMessage("5")));
+        assertFalse(underTest.offer(new TestableMessage("full")));
+        assertEquals("2", underTest.poll().getId());
+    }
+
+    @Test
+    public void multipleProducersKeepPerProducerOrder() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final RingBufferQueue queue = new RingBufferQueue(64);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = startProducers(producers, perProducer, go, new Producer() {
+            @Override
+            public void publish(Message message) {
+                while(!queue.offer(message)) {
+                    Thread.yield();
+                }
+            }
+        });
+        go.countDown();
+        int[] next = new int[producers];
+        int received = 0;
+        while(received < producers * perProducer) {
+            Message message = queue.poll();
+            if(message == null) {
+                Thread.yield();
+                continue;
+            }
+            String[] parts = message.getId().split(":");
+            int producer = Integer.parseInt(parts[0]);
+            assertEquals(next[producer]++, Integer.parseInt(parts[1]));
+            received++;
+        }
+        for(Thread thread: threads) {
+            thread.join();
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    interface Producer {
+        void publish(Message message);
+    }
+
+    private Thread[] startProducers(int producers, final int perProducer, final CountDownLatch start,
+                                    final Producer producer)
+            throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(producers);
+        Thread[] threads = new Thread[producers];
+        for(int p = 0; p < producers; p++) {
+            final Message[] messages = new Message[perProducer];
+            for(int i = 0; i < perProducer; i++) {
+                messages[i] = new TestableMessage(p + ":" + i);
+            }
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for(Message message: messages) {
+                        producer.publish(message);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        ready.await();
+        return threads;
+    }
+}
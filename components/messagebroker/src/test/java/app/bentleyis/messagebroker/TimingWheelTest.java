@@ -0,0 +1,263 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TimingWheelTest {
+    TimingWheel underTest;
+
+    @Before
+    public void setUp() throws Exception {
+        underTest = new TimingWheel(5, 8);
+    }
+
+    @After
+    public void tearDown() {
+        underTest.shutdown();
+    }
+
+    @Test
+    public void schedule() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        TimingWheel.Timeout timeout = underTest.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 50);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 45);
+        assertTrue(timeout.isExpired());
+    }
+
+    @Test
+    public void scheduleBeyondOneRevolution() throws InterruptedException {
+        // 8 buckets of 5ms - 200ms is five revolutions
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        underTest.schedule(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }, 200);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 195);
+    }
+
+    @Test
+    public void cancel() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        TimingWheel.Timeout timeout = underTest.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 20);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        Thread.sleep(100);
+        assertEquals(0, runs.get());
+        assertEquals(0, underTest.getPendingCount());
+    }
+
+    @Test
+    public void manyTimeouts() throws InterruptedException {
+        final int count = 10000;
+        final CountDownLatch latch = new CountDownLatch(count);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+        for(int i = 0; i < count; i++) {
+            underTest.schedule(task, i % 100);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, underTest.getPendingCount());
+    }
+
+    @Test
+    public void scheduleAcrossLevels() throws InterruptedException {
+        // 8 buckets of 5ms per level - 40ms, 320ms and 2.56s per revolution, so these cascade down
+        final long[] delays = {3, 30, 100, 400, 700};
+        final CountDownLatch latch = new CountDownLatch(delays.length);
+        final long start = System.nanoTime();
+        final long[] ran = new long[delays.length];
+        for(int i = 0; i < delays.length; i++) {
+            final int index = i;
+            underTest.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    ran[index] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    latch.countDown();
+                }
+            }, delays[i]);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for(int i = 0; i < delays.length; i++) {
+            assertTrue(delays[i] + "ms ran at " + ran[i], ran[i] >= delays[i] - 5);
+            assertTrue(delays[i] + "ms ran at " + ran[i], ran[i] < delays[i] + 500);
+        }
+    }
+
+    @Test
+    public void scheduleBeyondTopLevel() throws InterruptedException {
+        // 2 buckets of 1ms on 4 levels reach 16ms - later timeouts wait at the top and are placed again
+        TimingWheel wheel = new TimingWheel(1, 2);
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            long start = System.nanoTime();
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            }, 60);
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 59);
+        } finally {
+            wheel.shutdown();
+        }
+    }
+
+    @Test
+    public void scheduleAtFixedRate() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(5);
+        long start = System.nanoTime();
+        TimingWheel.Timeout timeout = underTest.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                latch.countDown();
+            }
+        }, 10, 20);
+        assertTrue(timeout.isPeriodic());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        // first run at 10ms, then every 20ms
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 85);
+        assertFalse(timeout.isExpired());
+        assertEquals(1, underTest.getPendingCount());
+        assertTrue(timeout.cancel());
+        Thread.sleep(50);
+        int after = runs.get();
+        Thread.sleep(100);
+        assertEquals(after, runs.get());
+        assertEquals(0, underTest.getPendingCount());
+    }
+
+    @Test
+    public void fixedRateSkipsRunsMissedInStall() throws InterruptedException {
+        final List<Long> runs = Collections.synchronizedList(new ArrayList<Long>());
+        final AtomicLong stallEnd = new AtomicLong();
+        TimingWheel.Timeout timeout = underTest.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                runs.add(System.nanoTime());
+            }
+        }, 20, 20);
+        // holds up the wheel thread for about 15 periods
+        underTest.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                stallEnd.set(System.nanoTime());
+            }
+        }, 30);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(stallEnd.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(stallEnd.get() != 0);
+        Thread.sleep(100);
+        assertTrue(timeout.cancel());
+        int afterStall = 0;
+        synchronized (runs) {
+            for(long run: runs) {
+                if(run >= stallEnd.get() && run - stallEnd.get() < TimeUnit.MILLISECONDS.toNanos(60)) {
+                    afterStall++;
+                }
+            }
+        }
+        // one late run, then back to every 20ms - not a burst of the ~15 missed runs
+        assertTrue("runs after the stall " + afterStall, afterStall >= 1 && afterStall <= 5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fixedRateNeedsPeriod() {
+        underTest.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 0, 0);
+    }
+
+    @Test
+    public void manyTimeoutsCancelled() throws InterruptedException {
+        final int count = 50000;
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[count];
+        for(int i = 0; i < count; i++) {
+            timeouts[i] = underTest.schedule(task, 500 + i % 500);
+        }
+        for(int i = 0; i < count; i += 2) {
+            assertTrue(timeouts[i].cancel());
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while(underTest.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, underTest.getPendingCount());
+        assertEquals(count / 2, runs.get());
+        for(int i = 1; i < count; i += 2) {
+            assertTrue(timeouts[i].isExpired());
+        }
+    }
+}
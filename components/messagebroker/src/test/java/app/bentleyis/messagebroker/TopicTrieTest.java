@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2020  James Bentley
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package app.bentleyis.messagebroker;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class TopicTrieTest {
+    TopicTrie underTest;
+    Subscriber exact;
+    Subscriber single;
+    Subscriber multi;
+
+    @Before
+    public void setUp() {
+        underTest = new TopicTrie();
+        exact = Mockito.mock(Subscriber.class);
+        single = Mockito.mock(Subscriber.class);
+        multi = Mockito.mock(Subscriber.class);
+        underTest.add("sensors/kitchen/temperature", exact, Subscription.ALL);
+        underTest.add("sensors/+/temperature", single, Subscription.ALL);
+        underTest.add("sensors/#", multi, Subscription.ALL);
+    }
+
+    @Test
+    public void match() {
+        assertEquals(Arrays.asList(multi, exact, single),
+                Arrays.asList(underTest.match("sensors/kitchen/temperature").keySet().toArray()));
+        assertEquals(Arrays.asList(multi, single),
+                Arrays.asList(underTest.match("sensors/garage/temperature").keySet().toArray()));
+        assertEquals(Collections.singletonList(multi),
+                Arrays.asList(underTest.match("sensors/garage/humidity").keySet().toArray()));
+        // '#' includes the parent level
+        assertEquals(Collections.singletonList(multi), Arrays.asList(underTest.match("sensors").keySet().toArray()));
+        assertTrue(underTest.match("metrics").isEmpty());
+        // '+' is exactly one level
+        assertFalse(underTest.match("sensors/kitchen/oven/temperature").containsKey(single));
+    }
+
+    @Test
+    public void subscriberMatchedOnce() {
+        underTest.add("sensors/kitchen/+", multi, Subscription.ALL);
+        assertEquals(3, underTest.match("sensors/kitchen/temperature").size());
+    }
+
+    @Test
+    public void dollarTopicsNotMatchedByLeadingWildcard() {
+        Subscriber all = Mockito.mock(Subscriber.class);
+        underTest.add("#", all, Subscription.ALL);
+        underTest.add("+/broker", all, Subscription.ALL);
+        assertTrue(underTest.match("$SYS/broker").isEmpty());
+        assertTrue(underTest.match("sensors").containsKey(all));
+        assertFalse(TopicTrie.matches("#", "$SYS/broker"));
+        underTest.add("$SYS/#", all, Subscription.ALL);
+        assertTrue(underTest.match("$SYS/broker").containsKey(all));
+    }
+
+    @Test
+    public void remove() {
+        assertTrue(underTest.remove("sensors/+/temperature", single));
+        assertFalse(underTest.remove("sensors/+/temperature", single));
+        assertFalse(underTest.remove("other/topic", single));
+        assertFalse(underTest.match("sensors/garage/temperature").containsKey(single));
+        assertTrue(underTest.remove("sensors/#", multi));
+        assertTrue(underTest.remove("sensors/kitchen/temperature", exact));
+        assertTrue(underTest.match("sensors/kitchen/temperature").isEmpty());
+    }
+
+    @Test
+    public void matches() {
+        assertTrue(TopicTrie.matches("a/b", "a/b"));
+        assertFalse(TopicTrie.matches("a/b", "a/b/c"));
+        assertTrue(TopicTrie.matches("a/+/c", "a/b/c"));
+        assertFalse(TopicTrie.matches("a/+", "a"));
+        assertTrue(TopicTrie.matches("a/#", "a"));
+        assertTrue(TopicTrie.matches("a/#", "a/b/c"));
+        assertFalse(TopicTrie.matches("b/#", "a/b"));
+    }
+
+    @Test
+    public void validateFilter() {
+        TopicTrie.validateFilter("a/+/b/#");
+        for(String filter: new String[] {"a/#/b", "a/b+", "a#"}) {
+            try {
+                TopicTrie.validateFilter(filter);
+                fail("expected IllegalArgumentException for " + filter);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void validateTopic() {
+        TopicTrie.validateTopic("sensors/+");
+    }
+
+    @Test
+    public void subscriptionsMergedAcrossFilters() {
+        Subscriber typed = Mockito.mock(Subscriber.class);
+        Subscription temperatures = new Subscription(new Class<?>[] {ExchangeTest.Temperature.class}, null);
+        Subscription kitchen = new Subscription(null, new MessageFilter().propertyEquals("room", "kitchen"));
+        underTest.add("sensors/+/temperature", typed, temperatures);
+        underTest.add("sensors/kitchen/#", typed, kitchen);
+        assertEquals(Arrays.asList(kitchen, temperatures),
+                Arrays.asList(underTest.match("sensors/kitchen/temperature").get(typed)));
+        assertEquals(Collections.singletonList(temperatures),
+                Arrays.asList(underTest.match("sensors/garage/temperature").get(typed)));
+        // the same subscription through two filters is listed once
+        underTest.add("sensors/#", typed, temperatures);
+        assertEquals(2, underTest.match("sensors/kitchen/temperature").get(typed).length);
+        assertFalse(underTest.add("sensors/#", typed, new Subscription(
+                new Class<?>[] {ExchangeTest.Temperature.class}, new MessageFilter())));
+    }
+}